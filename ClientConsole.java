@@ -18,7 +18,7 @@ import common.*;
  * @author Dr Robert Lagani&egrave;re
  * @version September 2020
  */
-public class ClientConsole implements ChatIF 
+public final class ClientConsole implements ChatIF 
 {
   //Class variables *************************************************
   
@@ -40,6 +40,18 @@ public class ClientConsole implements ChatIF
   Scanner fromConsole; 
   
   String loginID;
+  
+  /**
+   * Where everything is displayed.  Lines wait for the terminal rather
+   * than being dropped.
+   */
+  final AsyncDisplay output = AsyncDisplay.start(System.out, AsyncDisplay.WhenFull.BLOCK);
+  
+  /**
+   * The commands typed at the client console.  Those the server handles
+   * are sent to it as they are.
+   */
+  final CommandTable<ClientConsole> commands;
 
   
   //Constructors ****************************************************
@@ -52,6 +64,57 @@ public class ClientConsole implements ChatIF
    */
   public ClientConsole(String loginID, String host, int port) 
   {
+    commands = new CommandTable<ClientConsole>()
+		  .add("quit", (console, message, argument) -> {
+			  output.display("Closing program.");
+			  client.quit(); // close client
+		  })
+		  .add("logoff", (console, message, argument) -> client.closeConnection())
+		  .add("gethost", (console, message, argument) -> output.display(client.getHost()))
+		  .add("getport", (console, message, argument) -> output.display(Integer.toString(client.getPort())))
+		  .add("sethost", (console, message, argument) -> {
+			  String para = CommandTable.word(message, argument);
+			  if (para == null) {
+				  output.display("Not a valid command.");
+			  } else if (client.isConnected()) { // error message if client is already connected
+				  output.log(AsyncDisplay.Level.WARN, "Error: Already connected to server.");
+			  } else {
+				  client.setHost(para);
+			  }
+		  })
+		  .add("setport", (console, message, argument) -> {
+			  String para = CommandTable.word(message, argument);
+			  if (para == null) {
+				  output.display("Not a valid command.");
+			  } else if (client.isConnected()) { // error message if client is already connected
+				  output.log(AsyncDisplay.Level.WARN, "Error: Already connected to server.");
+			  } else {
+				  client.setPort(Integer.parseInt(para));
+			  }
+		  })
+		  .add("login", (console, message, argument) -> {
+			  String para = CommandTable.word(message, argument);
+			  if (para == null) {
+				  output.log(AsyncDisplay.Level.WARN, "Error: missing login ID.");
+				  return;
+			  }
+			  if (client.isConnected()) {
+				  output.log(AsyncDisplay.Level.WARN, "Error: Already connected to server."); 
+			  } else {
+				  client.setLoginID(para);
+			  }
+			  client.openConnection();
+			  client.sendToServer("#loginID " + client.getLoginID());
+			  client.setLoginID(para);
+		  })
+		  .add("join", ClientConsole::toServer) // handled by the server
+		  .add("leave", ClientConsole::toServer)
+		  .add("channels", ClientConsole::toServer)
+		  .add("who", ClientConsole::toServer)
+		  .add("msg", ClientConsole::toServer)
+		  .add("history", ClientConsole::toServer)
+		  .add("typing", (console, message, argument) -> client.typing()) // a console only sees whole lines, so typing is said
+		  .otherwise((console, message, argument) -> output.display("Not a valid command.")); // if used # but not a valid command
     try 
     {
       client= new ChatClient(loginID, host, port, this);
@@ -61,7 +124,7 @@ public class ClientConsole implements ChatIF
     } 
     catch(IOException exception) 
     {
-    	System.out.println("Cannot open connection. Awaiting command.");
+    	output.display("Cannot open connection. Awaiting command.");
     }
     
     // Create scanner object to read from console
@@ -86,95 +149,25 @@ public class ClientConsole implements ChatIF
       {
         message = fromConsole.nextLine();
      
-        if (message.toString().charAt(0) == '#') { // if the first character of the input is a #
-        	
-        	if (!message.contains(" ")) { // only one word input
-        		String command = message.substring(1); // command is the second part of the input (after #)
-            	
-            	switch(command) {
-            	
-    	        	case "quit":
-    	        		System.out.println("Closing program.");
-    					client.quit(); // close client
-    					break;
-    				
-    	        	case "logoff":
-    	        		client.closeConnection(); // closeConnection
-    	        		break;
-    	        		
-    	        	case "gethost":
-    	        		System.out.println(client.getHost());
-    	        		break;
-    	        		
-    	        	case "getport":
-    	        		System.out.println(Integer.toString(client.getPort()));
-    	        		break;
-    	        		
-    	        	case "login":
-    	        		System.out.println("Error: missing login ID.");
-    					
-    	        	default:
-    	        		System.out.println("Not a valid command.");
-    	        		break;
-           
-        	}
-            
-        	
-        }
-        else if (message.contains(" ")) { // two word input
-        	String command = message.split(" ")[0];
-        	String para = message.split(" ")[1];
-        	
-        	switch (command) {
-        	
-        		case "#sethost":
-        			if (client.isConnected()) { // error message if client is already connected
-        				System.out.println("Error: Already connected to server.");
-        			} else {
-        				client.setHost(para);
-        			}
-        			break;
-        			
-        		case "#setport":
-        			if (client.isConnected()) { // error message if client is already connected
-        				System.out.println("Error: Already connected to server.");
-        			} else {
-        				client.setPort(Integer.parseInt(para));
-        			}
-        			break;
-        			
-	        	case "#login":
-	        		if (client.isConnected()) {
-	        			System.out.println("Error: Already connected to server."); 
-	        		} else {
-	        			client.setLoginID(message.split(" ")[1]);
-	        		}
-	        		client.openConnection();
-	        		client.sendToServer("#loginID " + client.getLoginID());
-	        		client.setLoginID(message.split(" ")[1]);
-	        		break;
-	        		
-        		default: 
-        			System.out.println("Not a valid command."); // if used # but not a valid command
-	        		break;
-        			
-        	}
-        		
-        }
-        	
-        }
-        else { // if the input isn't a command
+        if (!commands.dispatch(this, message)) { // if the input isn't a command
         	client.handleMessageFromClientUI(message);
         }
       }
     } 
     catch (Exception ex) 
     {
-      System.out.println
-        ("Unexpected error while reading from console!");
+      output.log
+        (AsyncDisplay.Level.ERROR, "Unexpected error while reading from console!");
     }
   }
 
+  /**
+   * Sends a command the server handles to the server.
+   */
+  private static void toServer(ClientConsole console, String message, int argument) {
+	  console.client.handleMessageFromClientUI(message);
+  }
+
   /**
    * This method overrides the method in the ChatIF interface.  It
    * displays a message onto the screen.
@@ -183,7 +176,7 @@ public class ClientConsole implements ChatIF
    */
   public void display(String message) 
   {
-    System.out.println("> " + message);
+    output.display("> " + message);
   }
 
   
@@ -203,7 +196,7 @@ public class ClientConsole implements ChatIF
 
     try
     {
-    	loginID = (String)args[0]; 
+    	loginID = args[0]; 
     }
     catch(Throwable t) {
     	System.out.println("ERROR - No login ID specified.  Connection aborted.");
@@ -3,7 +3,15 @@
 // license found at www.lloseng.com 
 
 import java.io.*;
-import ocsf.server.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import server.*;
+import common.*;
 
 /**
  * This class overrides some of the methods in the abstract 
@@ -15,7 +23,7 @@ import ocsf.server.*;
  * @author Paul Holden
  * @version July 2000
  */
-public class EchoServer extends AbstractServer 
+public final class EchoServer extends AbstractServer 
 {
   //Class variables *************************************************
   
@@ -24,8 +32,56 @@ public class EchoServer extends AbstractServer
    */
   final public static int DEFAULT_PORT = 5555;
   
+  /**
+   * How many recent messages of the lobby a client is sent when it
+   * logs on, and how many #history returns without a count.
+   */
+  final public static int BACKFILL = Integer.getInteger("simplechat.log.backfill", 20);
+  
+  /**
+   * The most messages #history returns.
+   */
+  final public static int HISTORY_MAX = Integer.getInteger("simplechat.history.max", 500);
+  
+  /**
+   * The most messages of history sent in one write.
+   */
+  final static int HISTORY_CHUNK = 64;
+  
+  /**
+   * Where resume tokens come from.
+   */
+  final static SecureRandom TOKENS = new SecureRandom();
+  
+  /**
+   * The key under which a connection keeps the token a client must
+   * present to take it over with #resume; see ConnectionToClient.setInfo.
+   */
+  final static String TOKEN_INFO = "resumeToken";
+  
   ServerConsole serverUI; // for server user
   
+  volatile MessageLog log; // chat history on disk, open while the server is up
+  
+  volatile Cluster cluster; // the other nodes, if simplechat.cluster.peers lists any
+  
+  /**
+   * The users logged on to the process this one took over from that
+   * have not resumed yet; they never left, so nobody is told they are back.
+   */
+  final Set<String> handedOver = ConcurrentHashMap.newKeySet();
+  
+  /**
+   * Tells the clients who came and went, and who is typing, once a tick.
+   */
+  final Presence presence = new Presence(this);
+  
+  /**
+   * The commands clients can send.  Any other line, including an unknown
+   * command, is a chat line.
+   */
+  final CommandTable<ConnectionToClient> commands;
+  
   //Constructors ****************************************************
   
   /**
@@ -36,19 +92,66 @@ public class EchoServer extends AbstractServer
   public EchoServer(int port) 
   {
     super(port);
+    commands = commandTable();
     serverUI = new ServerConsole(port); // new server
     serverUI.accept();
   }
   
   public EchoServer(int port, ServerConsole serverUI) throws IOException {
 	  super(port);
+	  commands = commandTable();
 	  this.serverUI = serverUI; 
+	  Handoff handoff = null;
+	  if (Handoff.DEFAULT_TAKE_OVER) { // restarting: take the port and the recent messages over from the old process
+		  try {
+			  handoff = Handoff.take(this, port);
+			  handedOver.addAll(handoff.getUsers());
+			  serverUI.log(AsyncDisplay.Level.INFO, "Took over " + handoff + " from the server on port " + port);
+		  }
+		  catch (IOException e) {
+			  serverUI.log(AsyncDisplay.Level.WARN, "Could not take over, starting afresh: " + e.getMessage());
+		  }
+	  }
 	  listen();
+	  if (handoff != null) {
+		  handoff.listening(); // the old process sends its clients over
+	  }
   }
 
   
   //Instance methods ************************************************
   
+  /**
+   * Builds the table of the commands clients can send.
+   */
+  private CommandTable<ConnectionToClient> commandTable() {
+	  return new CommandTable<ConnectionToClient>()
+		  .add("login", this::login)
+		  .add("loginID", this::login) // what ClientConsole sends
+		  .add("resume", this::resume) // what a ChatClient sends when it reconnects
+		  .add("join", this::join)
+		  .add("leave", this::leave)
+		  .add("channels", (client, message, argument) -> // how many are in each channel
+			  client.sendToClient(Frame.notice("Channels: " + getChannels().sizes())))
+		  .add("msg", this::privateMessage)
+		  .add("history", this::history)
+		  .add("who", this::who)
+		  .add("typing", (client, message, argument) -> presence.typing(client)) // sent at most every few seconds while typing
+		  .add("peer", (client, message, argument) -> { // a link from another node of the cluster
+			  Cluster cluster = this.cluster;
+			  if (cluster != null) cluster.accept(client, message, argument); else client.close();
+		  })
+		  .add("present", (client, message, argument) -> {
+			  Cluster cluster = this.cluster;
+			  if (cluster != null) cluster.present(client, message, argument);
+		  })
+		  .add("relay", (client, message, argument) -> {
+			  Cluster cluster = this.cluster;
+			  if (cluster != null) cluster.receive(client, message, argument);
+		  })
+		  .add("handoff", this::handoff); // a new process of this server taking over the port
+  }
+  
   /**
    * This method handles any messages received from the client.
    *
@@ -59,36 +162,324 @@ public class EchoServer extends AbstractServer
     (Object msg, ConnectionToClient client)
   {
 	  String message = msg.toString();
-	  serverUI.display("Message received: " + msg  + " from " + client.getInfo("loginID")); // msg received including logged on
+	  if (serverUI.isEnabled(AsyncDisplay.Level.DEBUG)) { // skip building the line when nobody will see it
+		  serverUI.log(AsyncDisplay.Level.DEBUG, "> Message received: " + msg  + " from " + client.getLoginID()); // msg received including logged on
+	  }
 	  
-	  if (message.startsWith("#login") && (client.getInfo("loginID") == null)) { // if message starts with login and loginID is null (meaning new client)
-		  client.setInfo("loginID", message.split(" ")[1]);
-		  System.out.println(client.getInfo("loginID") + " logged on.");
-		  this.sendToAllClients(client.getInfo("loginID") + " has logged on.");
+	  try {
+		  if (commands.dispatch(client, message)) { // #login, #join, ... handled by the table
+			  return;
+		  }
+	  }
+	  catch (IOException e) { // the client's connection is closing
+		  return;
 	  }
-	  else if (message.startsWith("#login")) { // if client disconnected
+	  
+	  // not a command, so a chat line
+	  String line = client.getLoginID() + ": " + msg;
+	  this.publishToChannel(client.getChannel(), line); // only to the sender's channel, kept for backfill
+	  Cluster cluster = this.cluster;
+	  if (cluster != null) {
+		  cluster.publish(Cluster.Event.CHAT, client.getChannel(), line); // and to the other nodes
+	  }
+	  logLine(client.getChannel(), line);
+  }
+  
+  /**
+   * Keeps a chat line in the message log for #history.
+   */
+  private void logLine(String channel, String line) {
+	  MessageLog log = this.log;
+	  if (log != null) {
+		  try {
+			  log.append(channel, line);
+		  }
+		  catch (IOException e) {
+			  serverUI.log(AsyncDisplay.Level.ERROR, "Could not log message: " + e.getMessage());
+		  }
+	  }
+  }
+  
+  /**
+   * Handles #login: claims the login ID for a new client, catches it up
+   * on the conversation and announces it.
+   */
+  private void login(ConnectionToClient client, String message, int argument) throws IOException {
+	  if (client.getLoginID() != null) { // already logged on, stays so
+		  client.sendToClient(Frame.notice("ERROR - already connected."));
+		  return;
+	  }
+	  String loginID = CommandTable.word(message, argument);
+	  if (loginID == null) {
+		  client.sendToClient(Frame.notice("ERROR - usage: #login <loginID>"));
+		  return;
+	  }
+	  if (!getSessions().claim(loginID, client)) { // someone else is using this login ID
+		  client.sendToClient(Frame.notice("ERROR - " + loginID + " is already logged on."));
+		  return;
+	  }
+	  serverUI.log(AsyncDisplay.Level.INFO, loginID + " logged on.");
+	  issueToken(client);
+	  if (!this.sendRecentMessages(client, BACKFILL)) { // catch up from memory in one write
+		  sendHistory(client, BACKFILL); // nothing said since the restart, use the log on disk
+	  }
+	  presence.online(loginID); // with everyone else logging on this tick
+	  Cluster cluster = this.cluster;
+	  if (cluster != null) {
+		  cluster.publish(Cluster.Event.LOGIN, null, loginID);
+	  }
+  }
+  
+  /**
+   * Handles #resume: logs a client that reconnected back on to its
+   * channel and sends it the messages it missed, by their sequence
+   * number.  A connection the server still holds for the same login ID is
+   * taken over quietly if the client presents that connection's resume
+   * token, and refused otherwise; if there is none, the others are told
+   * the user is on.
+   */
+  private void resume(ConnectionToClient client, String message, int argument) throws IOException {
+	  String loginID = CommandTable.word(message, argument);
+	  int next = CommandTable.nextWord(message, argument);
+	  String channel = CommandTable.word(message, next);
+	  int afterAt = CommandTable.nextWord(message, next);
+	  String after = CommandTable.word(message, afterAt);
+	  String token = CommandTable.word(message, CommandTable.nextWord(message, afterAt));
+	  long sequence;
+	  try {
+		  sequence = Long.parseLong(after);
+	  }
+	  catch (NumberFormatException e) {
+		  client.sendToClient(Frame.notice("ERROR - usage: #resume <loginID> <channel> <sequence> [token]"));
+		  return;
+	  }
+	  if (client.getLoginID() != null) {
+		  client.sendToClient(Frame.notice("ERROR - already connected."));
+		  return;
+	  }
+	  ConnectionToClient previous = getSessions().find(loginID);
+	  if (previous != null && !matches(token, previous.getInfo(TOKEN_INFO))) { // someone else's session
+		  client.sendToClient(Frame.notice("ERROR - " + loginID + " is already logged on."));
+		  return;
+	  }
+	  if (previous != null) { // the old connection has not timed out yet
+		  previous.setInfo("replaced", Boolean.TRUE);
+		  previous.close();
+	  }
+	  if (!getSessions().claim(loginID, client)) {
+		  client.sendToClient(Frame.notice("ERROR - " + loginID + " is already logged on."));
+		  return;
+	  }
+	  serverUI.log(AsyncDisplay.Level.INFO, loginID + " reconnected.");
+	  issueToken(client);
+	  if (!channel.equals(ChannelRegistry.DEFAULT_CHANNEL)) {
+		  getChannels().join(client, channel);
+	  }
+	  if (sequence < 0) { // never had a numbered message, catch up as on login
+		  if (!this.sendRecentMessages(client, BACKFILL)) {
+			  sendHistory(client, BACKFILL);
+		  }
+	  }
+	  else if (!this.sendMessagesAfter(client, sequence)) {
+		  client.sendToClient(Frame.notice("Some messages were missed while you were away."));
+	  }
+	  if (previous == null && !handedOver.remove(loginID)) {
+		  presence.online(loginID);
+		  Cluster cluster = this.cluster;
+		  if (cluster != null) {
+			  cluster.publish(Cluster.Event.LOGIN, null, loginID);
+		  }
+	  }
+  }
+  
+  /**
+   * Gives a client that logged on the token it must present to resume
+   * its session while the server still holds it, as a Frame.TOKEN.
+   * OCSF clients cannot resume, and
+   * would only display it, so they are not sent one.
+   */
+  private void issueToken(ConnectionToClient client) throws IOException {
+	  byte[] bytes = new byte[16];
+	  TOKENS.nextBytes(bytes);
+	  String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	  client.setInfo(TOKEN_INFO, token);
+	  if (client.getCodecId() != MessageCodec.SERIALIZATION) {
+		  client.sendToClient(new Frame(Frame.TOKEN, token));
+	  }
+  }
+  
+  /**
+   * Compares a token presented with the one issued, in constant time.
+   */
+  private static boolean matches(String presented, Object issued) {
+	  return presented != null && issued != null && MessageDigest.isEqual(
+			  presented.getBytes(StandardCharsets.UTF_8), issued.toString().getBytes(StandardCharsets.UTF_8));
+  }
+  
+  /**
+   * Handles #handoff from a new process of this server: hands it the
+   * recent messages, then, once it is listening, drains the clients over
+   * to it and exits.
+   */
+  private void handoff(ConnectionToClient client, String message, int argument) throws IOException {
+	  if (!Handoff.give(this, client, message, argument)) {
+		  return;
+	  }
+	  Thread thread = new Thread(() -> { // not on the thread serving the connection, drain waits
+		  boolean flushed = drain(Frame.notice("The server is restarting, reconnecting..."), DEFAULT_DRAIN_TIMEOUT);
+		  serverUI.log(flushed ? AsyncDisplay.Level.INFO : AsyncDisplay.Level.WARN,
+				  "Handed over to the new server" + (flushed ? "." : ", some messages were not delivered."));
 		  try {
-			  client.sendToClient("ERROR - already connected.");
 			  close();
 		  }
-		  catch (Exception e) {System.out.println("thrown");}
-		  
+		  catch (IOException e) {}
+		  System.exit(0);
+	  }, "handoff");
+	  thread.start();
+  }
+  
+  /**
+   * Handles #who: lists the users logged on to this node and, in a
+   * cluster, to the others, as a presence snapshot the client can keep
+   * up to date from the batches that follow.
+   */
+  private void who(ConnectionToClient client, String message, int argument) throws IOException {
+	  Set<String> users = getSessions().loginIDs();
+	  Cluster cluster = this.cluster;
+	  if (cluster != null) {
+		  users.addAll(cluster.getRemoteUsers());
 	  }
-	  else { // doesn't start with login
-		  	
-		    this.sendToAllClients(client.getInfo("loginID") + ": " + msg);
+	  client.sendToClient(Frame.users(users));
+  }
+  
+  /**
+   * Delivers what happened on another node of the cluster to the clients
+   * of this one, as if it had happened here.
+   */
+  private void relayed(Cluster.Event event, String channel, String text) {
+	  switch (event) {
+		  case CHAT:
+			  this.publishToChannel(channel, text);
+			  logLine(channel, text);
+			  break;
+		  case LOGIN:
+			  presence.online(text);
+			  break;
+		  case LOGOUT:
+			  presence.offline(text);
+			  break;
 	  }
-	  
-    
   }
-    
+  
+  /**
+   * Handles #join: moves the client to another channel.
+   */
+  private void join(ConnectionToClient client, String message, int argument) throws IOException {
+	  String channel = CommandTable.rest(message, argument);
+	  if (channel == null) {
+		  client.sendToClient(Frame.notice("ERROR - usage: #join <channel>"));
+		  return;
+	  }
+	  channel = channel.toLowerCase();
+	  String previous = getChannels().join(client, channel);
+	  if (!channel.equals(previous)) {
+		  this.sendToChannel(previous, Frame.notice(client.getLoginID() + " has left " + previous + "."));
+		  this.sendToChannel(channel, Frame.notice(client.getLoginID() + " has joined " + channel + "."));
+	  }
+  }
+  
+  /**
+   * Handles #leave: moves the client back to the default channel.
+   */
+  private void leave(ConnectionToClient client, String message, int argument) throws IOException {
+	  if (client.getChannel().equals(ChannelRegistry.DEFAULT_CHANNEL)) {
+		  client.sendToClient(Frame.notice("ERROR - not in a channel."));
+		  return;
+	  }
+	  String previous = getChannels().leave(client);
+	  this.sendToChannel(previous, Frame.notice(client.getLoginID() + " has left " + previous + "."));
+	  this.sendToChannel(client.getChannel(), Frame.notice(client.getLoginID() + " has joined " + client.getChannel() + "."));
+  }
+  
+  /**
+   * Handles #msg: sends a private message to one user and tells the
+   * sender whether it was delivered.
+   */
+  private void privateMessage(ConnectionToClient client, String message, int argument) throws IOException {
+	  String recipient = CommandTable.word(message, argument);
+	  String text = CommandTable.rest(message, CommandTable.nextWord(message, argument));
+	  if (recipient == null || text == null) {
+		  client.sendToClient(Frame.notice("ERROR - usage: #msg <loginID> <message>"));
+	  }
+	  else if (this.sendToUser(recipient, client.getLoginID() + " (private): " + text)) {
+		  client.sendToClient(Frame.notice("Message delivered to " + recipient + "."));
+	  }
+	  else {
+		  client.sendToClient(Frame.notice("ERROR - " + recipient + " is offline."));
+	  }
+  }
+  
+  /**
+   * Handles #history: sends the last messages of the client's channel.
+   */
+  private void history(ConnectionToClient client, String message, int argument) throws IOException {
+	  String word = CommandTable.word(message, argument);
+	  int count;
+	  try {
+		  count = word == null ? BACKFILL : Integer.parseInt(word);
+	  }
+	  catch (NumberFormatException e) {
+		  count = 0;
+	  }
+	  if (count < 1 || count > HISTORY_MAX) {
+		  client.sendToClient(Frame.notice("ERROR - usage: #history [count], count from 1 to " + HISTORY_MAX));
+		  return;
+	  }
+	  sendHistory(client, count);
+  }
+  
   /**
    * This method overrides the one in the superclass.  Called
    * when the server starts listening for connections.
    */
   protected void serverStarted()
   {
-    System.out.println("Server listening for connections on port " + getPort());
+    serverUI.log(AsyncDisplay.Level.INFO, "Server listening for connections on port " + getPort());
+    if (cluster == null) {
+    	cluster = Cluster.fromProperties(this, this::relayed);
+    	if (cluster != null) {
+    		serverUI.log(AsyncDisplay.Level.INFO, "Joining the cluster as " + cluster.getNode());
+    		cluster.start();
+    	}
+    }
+    if (log == null) {
+    	try {
+    		log = new MessageLog(); // history from before a restart is still there
+    	}
+    	catch (IOException e) {
+    		serverUI.log(AsyncDisplay.Level.WARN, "Message log unavailable, history is off: " + e.getMessage());
+    	}
+    }
+  }
+  
+  /**
+   * Sends a client the last messages of its channel from the message log.
+   *
+   * @param client the client.
+   * @param count the most messages to send.
+   */
+  private void sendHistory(ConnectionToClient client, int count) {
+	  MessageLog log = this.log;
+	  if (log == null) {
+		  return;
+	  }
+	  List<String> recent = log.recent(client.getChannel(), count);
+	  try {
+		  for (int from = 0; from < recent.size(); from += HISTORY_CHUNK) { // a few writes of bounded size, each compressed together
+			  client.sendAllToClient(recent.subList(from, Math.min(recent.size(), from + HISTORY_CHUNK)));
+		  }
+	  }
+	  catch (IOException e) {}
   }
   
   /**
@@ -97,7 +488,38 @@ public class EchoServer extends AbstractServer
    */
   protected void serverStopped()
   {
-    System.out.println("Server has stopped listening for connections.");
+    serverUI.log(AsyncDisplay.Level.INFO, "Server has stopped listening for connections.");
+  }
+  
+  /**
+   * This method overrides the one in the superclass.  Called
+   * when the server cannot go on listening, e.g. when it cannot listen
+   * again after a handoff that did not happen.
+   */
+  protected void listeningException(Throwable exception)
+  {
+    serverUI.log(AsyncDisplay.Level.ERROR, "Cannot listen for connections: " + exception.getMessage());
+  }
+  
+  /**
+   * This method overrides the one in the superclass.  Called when
+   * the server starts draining: closes the message log so that a
+   * process taking over can open it.  Chat lines said while draining
+   * are not logged.
+   */
+  protected void serverDraining()
+  {
+    serverUI.log(AsyncDisplay.Level.INFO, "Server is draining.");
+    MessageLog log = this.log;
+    this.log = null;
+    if (log != null) {
+    	try {
+    		log.close(); // writes whatever is still queued
+    	}
+    	catch (IOException e) {
+    		serverUI.log(AsyncDisplay.Level.ERROR, "Could not close message log: " + e.getMessage());
+    	}
+    }
   }
   
   //Class methods ***************************************************
@@ -140,33 +562,59 @@ public class EchoServer extends AbstractServer
    * @param client the connection connected to the client.
    */
   protected void clientConnected(ConnectionToClient client) {
-	  System.out.println("A client is connecting.");
+	  serverUI.log(AsyncDisplay.Level.INFO, "A client is connecting.");
   }
 
   /**
    * Hook method called each time a client disconnects.
-   * The default implementation does nothing. The method
-   * may be overridden by subclasses but should remains synchronized.
+   * The server calls it with its hook lock held, so it needs
+   * no synchronization of its own.
    *
    * @param client the connection with the client.
    */
-  synchronized protected void clientDisconnected(ConnectionToClient client) {
-	  System.out.println(client.getInfo("loginID") + " has disconnected.");
-	  this.sendToAllClients(client.getInfo("loginID") + " has disconnected.");
+  protected void clientDisconnected(ConnectionToClient client) {
+	  disconnected(client);
   }
   
   /**
    * Hook method called each time an exception is thrown in a
    * ConnectionToClient thread.
-   * The method may be overridden by subclasses but should remains
-   * synchronized.
+   * The server calls it with its hook lock held, so it needs
+   * no synchronization of its own.
    *
    * @param client the client that raised the exception.
    * @param Throwable the exception thrown.
    */
-  synchronized protected void clientException(ConnectionToClient client, Throwable exception) {
-	  System.out.println(client.getInfo("loginID") + " has disconnected.");
-	  this.sendToAllClients(client.getInfo("loginID") + " has disconnected.");
+  protected void clientException(ConnectionToClient client, Throwable exception) {
+	  disconnected(client);
+  }
+  
+  /**
+   * Announces that a client has gone, here and on the other nodes.  A
+   * link from another node takes that node's users with it.
+   */
+  private void disconnected(ConnectionToClient client) {
+	  Cluster cluster = this.cluster;
+	  if (client.getInfo("replaced") != null) { // the user reconnected, nobody left
+		  return;
+	  }
+	  if (Cluster.isPeer(client)) {
+		  if (cluster != null) {
+			  cluster.peerClosed(client);
+		  }
+		  return;
+	  }
+	  if (isDraining()) { // everybody is leaving, telling each of them about all the others is O(N^2)
+		  return;
+	  }
+	  serverUI.log(AsyncDisplay.Level.INFO, client.getLoginID() + " has disconnected.");
+	  if (client.getLoginID() == null) { // never logged on, so nobody was told it came
+		  return;
+	  }
+	  presence.offline(client.getLoginID());
+	  if (cluster != null) {
+		  cluster.publish(Cluster.Event.LOGOUT, null, client.getLoginID());
+	  }
   }
   
 
@@ -177,7 +625,22 @@ public class EchoServer extends AbstractServer
    * listening, serverStopped() will also be called.
    */
   protected void serverClosed() {
-	  System.out.println("Server closed.");
+	  serverUI.log(AsyncDisplay.Level.INFO, "Server closed.");
+	  Cluster cluster = this.cluster;
+	  this.cluster = null;
+	  if (cluster != null) {
+		  cluster.close();
+	  }
+	  MessageLog log = this.log;
+	  this.log = null;
+	  if (log != null) {
+		  try {
+			  log.close(); // writes whatever is still queued
+		  }
+		  catch (IOException e) {
+			  serverUI.log(AsyncDisplay.Level.ERROR, "Could not close message log: " + e.getMessage());
+		  }
+	  }
   }
 }
 //End of EchoServer class
@@ -3,9 +3,9 @@ import java.io.*;
 import java.util.Scanner;
 import client.*;
 import common.*;
-import ocsf.server.ConnectionToClient;
+import server.ConnectionToClient;
 
-public class ServerConsole implements ChatIF {
+public final class ServerConsole implements ChatIF {
 
  //Class variables *************************************************
   
@@ -25,6 +25,16 @@ public class ServerConsole implements ChatIF {
    * Scanner to read from the console
    */
   Scanner fromConsole; 
+  
+  /**
+   * Where everything is displayed, off the threads serving clients.
+   */
+  final AsyncDisplay output = AsyncDisplay.start(System.out);
+  
+  /**
+   * The commands typed at the server console.
+   */
+  final CommandTable<ServerConsole> commands;
 
   
   //Constructors ****************************************************
@@ -35,6 +45,69 @@ public class ServerConsole implements ChatIF {
    * @param port The port to connect on.
    */
   public ServerConsole(int port) {
+    commands = new CommandTable<ServerConsole>()
+		  .add("quit", (console, message, argument) -> {
+			  output.display("Closing program.");
+			  server.close(); // kills server
+		  })
+		  .add("stop", (console, message, argument) -> {
+			  server.stopListening(); // stop listening for new clients
+			  server.sendToAllClients(Frame.notice("WARNING - The server has stopped listening for connections\r\n" + 
+					  "SERVER SHUTTING DOWN! DISCONNECTING!\r\n"));
+		  })
+		  .add("close", (console, message, argument) -> { // one notice for everybody, then close at once, unlike drain
+			  server.stopListening();
+			  server.sendToAllClients(Frame.notice("Abnormal termination of connection."));
+			  for (ConnectionToClient client : server.getClientConnections()) {
+				  try {
+					  client.close(); // Close the client sockets of the already connected clients
+				  }
+				  catch (IOException e) {}
+			  }
+		  })
+		  .add("drain", (console, message, argument) -> { // stop accepting, then let the clients go once their messages are out
+			  String seconds = CommandTable.word(message, argument);
+			  long timeout;
+			  try {
+				  timeout = seconds == null ? EchoServer.DEFAULT_DRAIN_TIMEOUT : Long.parseLong(seconds) * 1000;
+			  }
+			  catch (NumberFormatException e) {
+				  output.display("Not a valid command.");
+				  return;
+			  }
+			  if (server.drain(Frame.notice("WARNING - The server is shutting down."), timeout)) {
+				  output.display("Drained: every client was sent everything.");
+			  } else {
+				  output.log(AsyncDisplay.Level.WARN, "Drain timed out: some messages were not sent.");
+			  }
+		  })
+		  .add("getport", (console, message, argument) -> output.display(Integer.toString(server.getPort())))
+		  .add("queues", (console, message, argument) -> {
+			  for (ConnectionToClient client : server.getClientConnections()) { // outbound queue of each client
+				  output.display(client.getLoginID() + ": " + client.getOutboundQueueDepth() + " queued, "
+						  + client.getDroppedMessageCount() + " dropped");
+			  }
+		  })
+		  .add("stats", (console, message, argument) -> output.display(server.getMetrics().toString().stripTrailing())) // counters and latencies
+		  .add("start", (console, message, argument) -> {
+			  if (!server.isListening()) {
+				  server.listen();
+			  } else {
+				  output.log(AsyncDisplay.Level.WARN, "Error: server is already listening for connections.");
+			  }
+		  })
+		  .add("setport", (console, message, argument) -> {
+			  String para = CommandTable.word(message, argument);
+			  if (para == null) {
+				  output.display("Not a valid command.");
+			  } else if (!server.isListening()) {
+				  server.setPort(Integer.parseInt(para));
+				  output.display("port: set to: " + server.getPort());
+			  } else {
+				  output.log(AsyncDisplay.Level.WARN, "Error: server is already running.");
+			  }
+		  })
+		  .otherwise((console, message, argument) -> output.display("Not a valid command.")); // if used # but not a valid command
     try 
     {
       server = new EchoServer(port, this);
@@ -43,7 +116,7 @@ public class ServerConsole implements ChatIF {
     } 
     	catch(IOException exception) 
     {
-      System.out.println("ERROR - Could not listen for clients!");
+      output.log(AsyncDisplay.Level.ERROR, "ERROR - Could not listen for clients!");
       System.exit(1);
     }
     
@@ -68,90 +141,16 @@ public class ServerConsole implements ChatIF {
       {
         message = fromConsole.nextLine();
      
-        if (message.toString().charAt(0) == '#') { // if the first character of the input is a #
-        	
-        	if (!message.contains(" ")) { // only one word input
-        		String command = message.substring(1); // command is the second part of the input (after #)
-            	
-            	switch(command) {
-            	
-    	        	case "quit":
-    	        		System.out.println("Closing program.");
-    					server.close(); // kills server
-    					break;
-    				
-    	        	case "stop":
-    	        		server.stopListening(); // stop listening for new clients
-    	        		server.sendToAllClients("WARNING - The server has stopped listening for connections\r\n" + 
-    	        				"SERVER SHUTTING DOWN! DISCONNECTING!\r\n");
-    	        		break;
-    	        		
-    	        	case "close":
-    	        		server.stopListening();
-    	        		Thread[] clientThreadList = server.getClientConnections(); // array of all clients
-    	        		for (int i = 0; i < clientThreadList.length; i++) {
-    	        			try {
-    	        				server.sendToAllClients("Abnormal termination of connection.");
-    	        				((ConnectionToClient)clientThreadList[i]).close(); // Close the client sockets of the already connected clients
-    	        				
-    	        			}
-    	        			catch(Exception e) {}
-    	        		}
-    	        		break;
-    	        		
-    	        	case "getport":
-    	        		System.out.println(Integer.toString(server.getPort()));
-    	        		break;
-    	        		
-    	        	case "start":
-    	        		if (!server.isListening()) {
-    	        			server.listen();
-    	        		} else if (server.isListening()) {
-    	        			System.out.println("Error: server is already listening for connections.");
-    	        		}
-    	        		break;
-    					
-    	        	default:
-    	        		System.out.println("Not a command."); // if used # but not a valid command
-    	        		break;
-   
-        	}
-            
-        }
-        else if (message.contains(" ")) { // two word input
-        	String command = message.split(" ")[0];
-        	String para = message.split(" ")[1];
-        	
-        	switch (command) {
-        			
-        		case "#setport":
-        			if (!server.isListening()) {
-	        			server.setPort(Integer.parseInt(para));
-	        			System.out.println("port: set to: " + server.getPort());
-	        		} else if (server.isListening()) {
-	        			System.out.println("Error: server is already running.");
-	        		}
-	        		break;
-	        		
-        		default: 
-        			System.out.println("Not a valid command.");
-	        		break;
-        			
-        	}
-        		
-        }
-        	
-        }
-        else { // if the input isn't a command
+        if (!commands.dispatch(this, message)) { // if the input isn't a command
         	display("SERVER MSG> " + message);
-        	server.sendToAllClients("SERVER MSG> " + message);
+        	server.sendToAllClients(Frame.notice("SERVER MSG> " + message));
         }
       }
     } 
     catch (Exception ex) 
     {
-      System.out.println
-        ("Unexpected error while reading from console!");
+      output.log
+        (AsyncDisplay.Level.ERROR, "Unexpected error while reading from console!");
     }
   }
 
@@ -163,7 +162,26 @@ public class ServerConsole implements ChatIF {
    */
   public void display(String message) 
   {
-    System.out.println("> " + message);
+    output.display("> " + message);
+  }
+
+  /**
+   * Displays a line as it is, if its level is displayed.
+   *
+   * @param level The level of the line.
+   * @param message The string to be displayed.
+   */
+  public void log(AsyncDisplay.Level level, String message) 
+  {
+    output.log(level, message);
+  }
+
+  /**
+   * Returns whether lines at a level are displayed.
+   */
+  public boolean isEnabled(AsyncDisplay.Level level) 
+  {
+    return output.isEnabled(level);
   }
 
   
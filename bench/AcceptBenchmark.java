@@ -0,0 +1,125 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import server.*;
+
+/**
+ * Reports how fast the server sets up connections during a reconnect
+ * storm, with one acceptor and with several: many threads connect at
+ * once, each waiting until the server has answered the object stream
+ * header before opening its next connection, and the connections stay
+ * open until the storm is over.  The server's own connection setup
+ * percentiles are printed along with the rate.<p>
+ *
+ * The execution mode comes from <code>simplechat.executionMode</code> as
+ * usual; the cost of starting threads shows most with
+ * <code>platform_threads</code>.<p>
+ *
+ * Usage: <code>java bench.AcceptBenchmark [connections] [threads]
+ * [acceptors]</code>, by default 8000 connections from 32 threads, with
+ * 1 acceptor against one per processor.  Client and server share the
+ * process, so it needs about two file descriptors per connection.
+ */
+public class AcceptBenchmark
+{
+  //Class variables *************************************************
+
+  final static int PORT = 5594;
+
+  final static byte[] HEADER = {(byte)0xac, (byte)0xed, 0, 5};
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+    int acceptors = args.length > 2 ? Integer.parseInt(args[2])
+      : Runtime.getRuntime().availableProcessors();
+
+    System.out.println("acceptors  connections/s  setup p50 us  setup p99 us");
+    for (int round = 0; round < 2; round++) // the first round is the warm-up
+    {
+      for (int count : new int[] {1, acceptors})
+      {
+        AbstractServer server = new AbstractServer(PORT + round)
+        {
+          protected void handleMessageFromClient(Object msg, ConnectionToClient client) {}
+        };
+        server.setAcceptorCount(count);
+        server.setBacklog(1024);
+        server.listen();
+        double rate = storm(PORT + round, connections, threads);
+        if (round == 1)
+        {
+          System.out.printf("%9d %14.0f %13d %13d%n", count, rate,
+            server.getMetrics().getConnectionSetupP50Micros(),
+            server.getMetrics().getConnectionSetupP99Micros());
+        }
+        server.close();
+        Thread.sleep(500);
+      }
+    }
+  }
+
+  /**
+   * Opens connections from many threads at once.
+   *
+   * @return The connections per second.
+   */
+  private static double storm(int port, int connections, int threads) throws Exception
+  {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<List<SocketChannel>>> opened = new ArrayList<Future<List<SocketChannel>>>();
+    CountDownLatch go = new CountDownLatch(1);
+    for (int t = 0; t < threads; t++)
+    {
+      int count = connections / threads + (t < connections % threads ? 1 : 0);
+      opened.add(pool.submit(() ->
+      {
+        go.await();
+        List<SocketChannel> channels = new ArrayList<SocketChannel>();
+        ByteBuffer answer = ByteBuffer.allocate(HEADER.length);
+        for (int i = 0; i < count; i++)
+        {
+          SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+          channel.write(ByteBuffer.wrap(HEADER));
+          answer.clear();
+          while (answer.hasRemaining())
+          {
+            if (channel.read(answer) < 0)
+            {
+              throw new EOFException("connection refused by the server");
+            }
+          }
+          channels.add(channel);
+        }
+        return channels;
+      }));
+    }
+
+    long start = System.nanoTime();
+    go.countDown();
+    List<SocketChannel> all = new ArrayList<SocketChannel>();
+    for (Future<List<SocketChannel>> future : opened)
+    {
+      all.addAll(future.get());
+    }
+    long elapsed = System.nanoTime() - start;
+    pool.shutdown();
+
+    for (SocketChannel channel : all)
+    {
+      channel.close();
+    }
+    return all.size() * 1e9 / elapsed;
+  }
+}
+//End of AcceptBenchmark class
@@ -0,0 +1,94 @@
+package bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import client.AbstractClient;
+import server.*;
+
+/**
+ * Compares how fast a client can send chat lines to the server with and
+ * without batching, the way a script piping thousands of lines into
+ * ClientConsole would.  The time runs from the first send until the
+ * server has handled the last message.<p>
+ *
+ * Usage: <code>java bench.ClientBatchingBenchmark [messages]
+ * [delay ms] [batch bytes]</code>, by default 200000 messages, batched
+ * within 2 ms or 64 KB.
+ */
+public class ClientBatchingBenchmark
+{
+  //Class variables *************************************************
+
+  final static int PORT = 5590;
+
+  final static String LINE = "the quick brown fox jumps over the lazy dog";
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int delay = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+    int bytes = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+
+    AtomicLong received = new AtomicLong();
+    AbstractServer server = new AbstractServer(PORT)
+    {
+      protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+      {
+        received.incrementAndGet();
+      }
+    };
+    server.listen();
+
+    System.out.println("mode       messages/s");
+    for (int round = 0; round < 2; round++) // the first round is the warm-up
+    {
+      report(round, "unbatched", run(0, bytes, messages, received));
+      report(round, "batched", run(delay, bytes, messages, received));
+    }
+    server.close();
+  }
+
+  private static void report(int round, String mode, double rate)
+  {
+    if (round > 0)
+    {
+      System.out.printf("%-10s %10.0f%n", mode, rate);
+    }
+  }
+
+  /**
+   * Sends the messages from one client and waits for the server to
+   * handle them all.
+   *
+   * @return The messages per second.
+   */
+  private static double run(int delay, int bytes, int messages, AtomicLong received)
+    throws Exception
+  {
+    AbstractClient client = new AbstractClient("localhost", PORT)
+    {
+      protected void handleMessageFromServer(Object msg) {}
+    };
+    client.setBatching(delay, bytes);
+    client.openConnection();
+    long expected = received.get() + messages;
+
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++)
+    {
+      client.sendToServer(LINE);
+    }
+    client.flush();
+    while (received.get() < expected)
+    {
+      Thread.sleep(1);
+    }
+    long elapsed = System.nanoTime() - start;
+
+    client.closeConnection();
+    return messages * 1e9 / elapsed;
+  }
+}
+//End of ClientBatchingBenchmark class
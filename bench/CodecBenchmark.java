@@ -0,0 +1,155 @@
+package bench;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import common.*;
+
+/**
+ * Reports, for typical chat messages, the bytes each wire format puts on
+ * the wire and the time it takes to encode and decode one message.  The
+ * baseline is what OCSF does: an ObjectOutputStream per connection with
+ * a reset and a flush after every message.<p>
+ *
+ * Usage: <code>java bench.CodecBenchmark [iterations]</code>, one
+ * million iterations per measurement by default.
+ */
+public class CodecBenchmark
+{
+  //Class variables *************************************************
+
+  final static Object[] MESSAGES =
+  {
+    "#login alice",
+    "alice: hello everyone, is anybody around this afternoon?",
+    Frame.notice("bob has logged on."),
+    "carol: déjà vu — ça marche ✓"
+  };
+
+  /**
+   * Defeats dead code elimination.
+   */
+  static long sink;
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+    System.out.println("codec            message  bytes  encode ns  decode ns");
+    for (int m = 0; m < MESSAGES.length; m++)
+    {
+      report("ObjectStream", m, objectStream(MESSAGES[m].toString(), iterations));
+      report("serialization", m, codec(new SerializationCodec(), MESSAGES[m], iterations));
+      report("binary", m, codec(new BinaryCodec(), MESSAGES[m], iterations));
+    }
+  }
+
+  private static void report(String codec, int message, double[] result)
+  {
+    System.out.printf("%-16s %7d %6.0f %10.1f %10.1f%n", codec, message, result[0],
+      result[1], result[2]);
+  }
+
+  /**
+   * Measures a codec.
+   *
+   * @return Bytes per message, encode ns and decode ns.
+   */
+  private static double[] codec(MessageCodec codec, Object msg, int iterations)
+    throws IOException
+  {
+    int size = codec.encode(msg).remaining();
+    long encode = 0;
+    for (int round = 0; round < 2; round++) // the first round is the warm-up
+    {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+        sink += codec.encode(msg).remaining();
+      }
+      encode = System.nanoTime() - start;
+    }
+
+    ByteBuffer stream = ByteBuffer.allocate(codec.header().remaining() + size * iterations);
+    stream.put(codec.header());
+    for (int i = 0; i < iterations; i++)
+    {
+      stream.put(codec.encode(msg));
+    }
+    stream.flip();
+    long decode = 0;
+    for (int round = 0; round < 2; round++)
+    {
+      MessageCodec decoder = MessageCodec.forId(codec.id());
+      ByteBuffer in = stream.duplicate();
+      long start = System.nanoTime();
+      Object decoded;
+      while ((decoded = decoder.decode(in)) != null)
+      {
+        sink += decoded.hashCode();
+      }
+      decode = System.nanoTime() - start;
+    }
+    return new double[] {size, (double)encode / iterations, (double)decode / iterations};
+  }
+
+  /**
+   * Measures an ObjectOutputStream used the way OCSF uses it.
+   *
+   * @return Bytes per message, encode ns and decode ns.
+   */
+  private static double[] objectStream(String msg, int iterations) throws Exception
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    output.flush();
+    int header = bytes.size();
+    output.writeObject(new String(msg));
+    output.reset();
+    output.flush();
+    int size = bytes.size() - header;
+
+    long encode = 0;
+    for (int round = 0; round < 2; round++)
+    {
+      bytes.reset();
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+        output.writeObject(msg);
+        output.reset();
+        output.flush();
+        if (bytes.size() > (1 << 24))
+        {
+          bytes.reset();
+        }
+      }
+      encode = System.nanoTime() - start;
+    }
+
+    bytes = new ByteArrayOutputStream();
+    output = new ObjectOutputStream(bytes);
+    for (int i = 0; i < iterations; i++)
+    {
+      output.writeObject(msg);
+      output.reset();
+    }
+    output.flush();
+    byte[] stream = bytes.toByteArray();
+    long decode = 0;
+    for (int round = 0; round < 2; round++)
+    {
+      ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(stream));
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+        sink += input.readObject().hashCode();
+      }
+      decode = System.nanoTime() - start;
+    }
+    return new double[] {size, (double)encode / iterations, (double)decode / iterations};
+  }
+}
+//End of CodecBenchmark class
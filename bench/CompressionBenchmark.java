@@ -0,0 +1,135 @@
+package bench;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import common.*;
+
+/**
+ * Reports the bandwidth the deflate codec saves against the binary codec
+ * it builds on, and what it costs in CPU: bytes on the wire and the time
+ * to encode and decode, for a short chat line (below the threshold, so
+ * not compressed), a paragraph, a long message and a backfill of fifty
+ * chat lines written together as on login.<p>
+ *
+ * Usage: <code>java bench.CompressionBenchmark [iterations]</code>, one
+ * hundred thousand iterations per measurement by default.
+ */
+public class CompressionBenchmark
+{
+  //Class variables *************************************************
+
+  final static String LINE = "alice: hello everyone, is anybody around this afternoon?";
+
+  final static String PARAGRAPH = "bob: so the plan for the release is that we freeze the branch on "
+    + "Thursday, run the whole load test suite overnight, and if the numbers look the way they "
+    + "did last week we tag it Friday morning. If anything regresses we hold the release and I "
+    + "will post the results here so that everyone can have a look before the weekend.";
+
+  /**
+   * Defeats dead code elimination.
+   */
+  static long sink;
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    StringBuilder log = new StringBuilder("carol: here is the log from last night:");
+    while (log.length() < 4000)
+    {
+      log.append(" WARN connection reset by peer after ").append(log.length() % 97)
+        .append(" ms, retrying;");
+    }
+    String[] backfill = new String[50];
+    for (int i = 0; i < backfill.length; i++)
+    {
+      backfill[i] = (i % 3 == 0 ? "alice" : i % 3 == 1 ? "bob" : "carol") + ": message " + i
+        + " about the release, "
+        + (i % 2 == 0 ? "the load test looks fine" : "I will check the numbers later");
+    }
+
+    System.out.println("message     binary B  deflate B  saved   binary enc/dec ns   deflate enc/dec ns");
+    report("line", new String[] {LINE}, iterations);
+    report("paragraph", new String[] {PARAGRAPH}, iterations);
+    report("long", new String[] {log.toString()}, iterations);
+    report("backfill", backfill, iterations / 10);
+  }
+
+  private static void report(String name, String[] messages, int iterations) throws IOException
+  {
+    double[] binary = measure(new BinaryCodec(), messages, iterations);
+    double[] deflate = measure(new DeflateCodec(), messages, iterations);
+    System.out.printf("%-11s %8.0f %10.0f %5.0f%% %10.0f /%7.0f %11.0f /%7.0f%n", name,
+      binary[0], deflate[0], 100 * (1 - deflate[0] / binary[0]), binary[1], binary[2],
+      deflate[1], deflate[2]);
+  }
+
+  /**
+   * Measures a codec writing messages together.
+   *
+   * @return Bytes on the wire, encode ns and decode ns, for all the
+   *         messages.
+   */
+  private static double[] measure(MessageCodec codec, String[] messages, int iterations)
+    throws IOException
+  {
+    ByteBuffer encoded = encode(codec, messages);
+    long encode = 0;
+    for (int round = 0; round < 2; round++) // the first round is the warm-up
+    {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+        sink += encode(codec, messages).remaining();
+      }
+      encode = System.nanoTime() - start;
+    }
+
+    long decode = 0;
+    MessageCodec decoder = MessageCodec.forId(codec.id());
+    for (int round = 0; round < 2; round++)
+    {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+        ByteBuffer in = encoded.duplicate();
+        Object decoded;
+        while ((decoded = decoder.decode(in)) != null)
+        {
+          sink += decoded.hashCode();
+        }
+      }
+      decode = System.nanoTime() - start;
+    }
+    return new double[] {encoded.remaining(), (double)encode / iterations,
+      (double)decode / iterations};
+  }
+
+  /**
+   * Encodes messages the way the server writes them: a single message
+   * on its own, several packed into one write.
+   */
+  private static ByteBuffer encode(MessageCodec codec, String[] messages) throws IOException
+  {
+    if (messages.length == 1)
+    {
+      return codec.encode(messages[0]);
+    }
+    ByteBuffer[] parts = new ByteBuffer[messages.length];
+    int size = 0;
+    for (int i = 0; i < messages.length; i++)
+    {
+      parts[i] = codec.encode(messages[i]);
+      size += parts[i].remaining();
+    }
+    ByteBuffer batch = ByteBuffer.allocate(size);
+    for (ByteBuffer part : parts)
+    {
+      batch.put(part);
+    }
+    return codec.pack(batch.flip());
+  }
+}
+//End of CompressionBenchmark class
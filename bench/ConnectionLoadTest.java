@@ -0,0 +1,123 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+
+import server.*;
+
+/**
+ * Opens a large number of concurrent connections to an in-process server
+ * and reports how many threads and how much heap the server needed to
+ * hold them, then times one broadcast to all of them and reports what
+ * the broadcast allocated.<p>
+ *
+ * Usage: <code>java bench.ConnectionLoadTest [connections] [port]</code>,
+ * 10000 connections on port 5556 by default.  Client and server share the
+ * process, so it needs about two file descriptors per connection:
+ * raise the limit first, e.g. <code>ulimit -n 65536</code>.
+ */
+public class ConnectionLoadTest
+{
+  //Class variables *************************************************
+
+  /**
+   * The broadcast sent once every client is connected.
+   */
+  final static String BROADCAST = "SERVER MSG> load test";
+
+  /**
+   * Stream header plus the reset, type code and length of BROADCAST.
+   */
+  final static int EXPECTED_BYTES = 4 + 4 + BROADCAST.length();
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 5556;
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    int baseThreads = threads.getThreadCount();
+    AbstractServer server = new AbstractServer(port)
+    {
+      protected void handleMessageFromClient(Object msg, ConnectionToClient client) {}
+    };
+    server.setBacklog(1024);
+    server.listen();
+
+    Selector selector = Selector.open();
+    ByteBuffer hello = ByteBuffer.wrap(new byte[] {(byte)0xac, (byte)0xed, 0, 5});
+
+    long start = System.nanoTime();
+    for (int i = 0; i < connections; i++)
+    {
+      SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+      channel.write(hello.duplicate());
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ, new int[1]);
+    }
+    while (server.getNumberOfClients() < connections)
+    {
+      Thread.sleep(10);
+    }
+    long connected = System.nanoTime();
+
+    System.gc();
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    System.out.println("connections:       " + server.getNumberOfClients());
+    System.out.println("connect time (ms): " + (connected - start) / 1000000);
+    System.out.println("server threads:    " + (threads.getThreadCount() - baseThreads));
+    System.out.println("heap used (MB):    " + heap.getUsed() / (1024 * 1024));
+
+    long broadcast = System.nanoTime();
+    server.sendToAllClients(BROADCAST);
+    int complete = readUntilComplete(selector, connections);
+    long received = System.nanoTime();
+    System.out.println("broadcast received by " + complete + " clients in "
+      + (received - broadcast) / 1000000 + " ms");
+    System.out.println("broadcast encodings: " + server.getBroadcastEncodingCount()
+      + ", heap bytes allocated: " + server.getBroadcastAllocatedBytes());
+
+    for (SelectionKey key : selector.keys())
+    {
+      key.channel().close();
+    }
+    selector.close();
+    server.close();
+  }
+
+  /**
+   * Reads from every client until each has received the stream header
+   * and the broadcast, or until no data arrives for ten seconds.
+   *
+   * @return The number of clients that received everything.
+   */
+  private static int readUntilComplete(Selector selector, int connections) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    int complete = 0;
+    while (complete < connections && selector.select(10000) > 0)
+    {
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext())
+      {
+        SelectionKey key = keys.next();
+        keys.remove();
+        int[] count = (int[])key.attachment();
+        buffer.clear();
+        int n = ((SocketChannel)key.channel()).read(buffer);
+        if (n > 0 && count[0] < EXPECTED_BYTES && (count[0] += n) >= EXPECTED_BYTES)
+        {
+          complete++;
+        }
+      }
+    }
+    return complete;
+  }
+}
+//End of ConnectionLoadTest class
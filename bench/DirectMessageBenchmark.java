@@ -0,0 +1,182 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import common.*;
+import server.*;
+
+/**
+ * Shows that a private message costs the same however many users are
+ * logged on.  For each population size the server holds that many idle
+ * logged-on connections, and one client sends private messages to
+ * another through sendToUser, one at a time, timing each from the send
+ * until the recipient has read it and until the sender has read the
+ * acknowledgment.<p>
+ *
+ * Usage: <code>java bench.DirectMessageBenchmark [messages]
+ * [population...]</code>, by default 2000 messages with 10, 1000 and
+ * 5000 users.  Client and server share the process, so it needs about
+ * two file descriptors per user.
+ */
+public class DirectMessageBenchmark
+{
+  //Class variables *************************************************
+
+  final static int PORT = 5580;
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int[] populations = {10, 1000, 5000};
+    if (args.length > 1)
+    {
+      populations = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++)
+      {
+        populations[i - 1] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.println("users   deliver p50 us  p99 us   ack p50 us  p99 us");
+    for (int i = 0; i < populations.length; i++)
+    {
+      run(PORT + i, populations[i], messages);
+    }
+  }
+
+  private static void run(int port, int population, int messages) throws Exception
+  {
+    AbstractServer server = new AbstractServer(port)
+    {
+      protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+      {
+        String message = msg.toString();
+        if (message.startsWith("#login "))
+        {
+          getSessions().claim(message.substring(7), client);
+          return;
+        }
+        // "#msg <loginID> <text>", routed like EchoServer does
+        int space = message.indexOf(' ', 5);
+        boolean delivered = sendToUser(message.substring(5, space),
+          client.getLoginID() + " (private): " + message.substring(space + 1));
+        try
+        {
+          client.sendToClient(Frame.notice(delivered ? "delivered" : "offline"));
+        }
+        catch (IOException e) {}
+      }
+    };
+    server.setBacklog(1024);
+    server.listen();
+
+    List<SocketChannel> idle = new ArrayList<SocketChannel>();
+    for (int i = 0; i < population - 2; i++)
+    {
+      idle.add(login(port, "user" + i));
+    }
+    SocketChannel sender = login(port, "alice");
+    SocketChannel recipient = login(port, "bob");
+    while (server.getSessions().size() < population)
+    {
+      Thread.sleep(10);
+    }
+
+    MessageCodec codec = new BinaryCodec();
+    MessageCodec recipientCodec = new BinaryCodec();
+    MessageCodec senderCodec = new BinaryCodec();
+    ByteBuffer recipientIn = ByteBuffer.allocate(4096);
+    ByteBuffer senderIn = ByteBuffer.allocate(4096);
+    long[] deliver = new long[messages];
+    long[] ack = new long[messages];
+    for (int round = 0; round < 2; round++) // the first round is the warm-up
+    {
+      for (int m = 0; m < messages; m++)
+      {
+        long start = System.nanoTime();
+        write(sender, codec.encode("#msg bob " + m));
+        receive(recipient, recipientCodec, recipientIn);
+        deliver[m] = System.nanoTime() - start;
+        receive(sender, senderCodec, senderIn);
+        ack[m] = System.nanoTime() - start;
+      }
+    }
+    Arrays.sort(deliver);
+    Arrays.sort(ack);
+    System.out.printf("%-7d %14d %7d %12d %7d%n", population, micros(deliver, 0.50),
+      micros(deliver, 0.99), micros(ack, 0.50), micros(ack, 0.99));
+
+    for (SocketChannel channel : idle)
+    {
+      channel.close();
+    }
+    sender.close();
+    recipient.close();
+    server.close();
+  }
+
+  /**
+   * Connects with the binary codec and logs on.
+   */
+  private static SocketChannel login(int port, String loginID) throws IOException
+  {
+    SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    write(channel, MessageCodec.hello(MessageCodec.BINARY));
+    ByteBuffer reply = ByteBuffer.allocate(MessageCodec.HELLO_LENGTH);
+    while (reply.hasRemaining())
+    {
+      if (channel.read(reply) < 0)
+      {
+        throw new EOFException("connection closed during handshake");
+      }
+    }
+    write(channel, new BinaryCodec().encode("#login " + loginID));
+    return channel;
+  }
+
+  private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Reads until one whole message has arrived.
+   */
+  private static Object receive(SocketChannel channel, MessageCodec codec, ByteBuffer in)
+    throws IOException
+  {
+    while (true)
+    {
+      in.flip();
+      Object msg = codec.decode(in);
+      in.compact();
+      if (msg != null)
+      {
+        return msg;
+      }
+      if (channel.read(in) < 0)
+      {
+        throw new EOFException();
+      }
+    }
+  }
+
+  private static long micros(long[] latencies, double quantile)
+  {
+    int index = Math.min(latencies.length - 1, (int)Math.ceil(quantile * latencies.length) - 1);
+    return latencies[Math.max(0, index)] / 1000;
+  }
+}
+//End of DirectMessageBenchmark class
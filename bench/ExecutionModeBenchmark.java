@@ -0,0 +1,196 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import server.*;
+
+/**
+ * Compares the execution modes of the server: how many connections each
+ * one holds, with how many threads and how much heap, and the latency
+ * of a broadcast from sendToAllClients until each client has read it.<p>
+ *
+ * Usage: <code>java bench.ExecutionModeBenchmark [connections]
+ * [broadcasts] [mode...]</code>, by default 5000 connections, 200
+ * broadcasts and every mode.  Each broadcast carries its send time and
+ * the next one starts once every client has read it, so the latency
+ * reported is the fan-out of one broadcast without queueing behind
+ * earlier ones.
+ */
+public class ExecutionModeBenchmark
+{
+  //Class variables *************************************************
+
+  final static int BASE_PORT = 5560;
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    AbstractServer.ExecutionMode[] modes = AbstractServer.ExecutionMode.values();
+    if (args.length > 2)
+    {
+      modes = new AbstractServer.ExecutionMode[args.length - 2];
+      for (int i = 2; i < args.length; i++)
+      {
+        modes[i - 2] = AbstractServer.ExecutionMode.valueOf(args[i].toUpperCase());
+      }
+    }
+
+    System.out.println("mode               connections  threads  heap MB  p50 us    p99 us    max us");
+    for (int i = 0; i < modes.length; i++)
+    {
+      run(modes[i], BASE_PORT + i, connections, broadcasts);
+    }
+  }
+
+  private static void run(AbstractServer.ExecutionMode mode, int port,
+    int connections, int broadcasts) throws Exception
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    int baseThreads = threads.getThreadCount();
+    AbstractServer server = new AbstractServer(port)
+    {
+      protected void handleMessageFromClient(Object msg, ConnectionToClient client) {}
+    };
+    server.setExecutionMode(mode);
+    server.setBacklog(1024);
+    server.listen();
+
+    Selector selector = Selector.open();
+    int opened = 0;
+    try
+    {
+      for (; opened < connections; opened++)
+      {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        channel.write(ByteBuffer.wrap(new byte[] {(byte)0xac, (byte)0xed, 0, 5}));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Reader());
+      }
+    }
+    catch (IOException e)
+    {
+      System.out.println(mode + ": stopped opening connections at " + opened + ": " + e);
+    }
+    long deadline = System.currentTimeMillis() + 30000;
+    while (server.getNumberOfClients() < opened && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(10);
+    }
+    int held = server.getNumberOfClients();
+    int serverThreads = threads.getThreadCount() - baseThreads;
+    System.gc();
+    long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+    long[] latencies = new long[broadcasts * held];
+    int samples = 0;
+    for (int b = 0; b < broadcasts; b++)
+    {
+      server.sendToAllClients(Long.toString(System.nanoTime()));
+      samples = readBroadcast(selector, held, latencies, samples);
+    }
+    Arrays.sort(latencies, 0, samples);
+
+    System.out.printf("%-18s %11d %8d %8d %9s %9s %9s%n", mode, held, serverThreads,
+      heap / (1024 * 1024), micros(latencies, samples, 0.50), micros(latencies, samples, 0.99),
+      micros(latencies, samples, 1.0));
+
+    for (SelectionKey key : selector.keys())
+    {
+      key.channel().close();
+    }
+    selector.close();
+    server.close();
+  }
+
+  /**
+   * Reads until the given number of clients have each received one more
+   * broadcast, recording the latency of each.
+   */
+  private static int readBroadcast(Selector selector, int clients, long[] latencies,
+    int samples) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    int received = 0;
+    while (received < clients && selector.select(10000) > 0)
+    {
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext())
+      {
+        SelectionKey key = keys.next();
+        keys.remove();
+        buffer.clear();
+        if (((SocketChannel)key.channel()).read(buffer) <= 0)
+        {
+          continue;
+        }
+        buffer.flip();
+        Reader reader = (Reader)key.attachment();
+        String msg;
+        while ((msg = reader.next(buffer)) != null)
+        {
+          latencies[samples++] = System.nanoTime() - Long.parseLong(msg);
+          received++;
+        }
+      }
+    }
+    return samples;
+  }
+
+  private static String micros(long[] latencies, int samples, double quantile)
+  {
+    if (samples == 0)
+    {
+      return "-";
+    }
+    int index = Math.min(samples - 1, (int)Math.ceil(quantile * samples) - 1);
+    return Long.toString(latencies[Math.max(0, index)] / 1000);
+  }
+
+  /**
+   * Reassembles the short ASCII strings sent by the server from an
+   * object stream: a 4 byte header, then for each string a reset, a
+   * type code and a 2 byte length.
+   */
+  static class Reader
+  {
+    private final ByteBuffer pending = ByteBuffer.allocate(256);
+    private boolean headerRead;
+
+    String next(ByteBuffer in)
+    {
+      while (in.hasRemaining() && pending.hasRemaining())
+      {
+        pending.put(in.get());
+        pending.flip();
+        if (!headerRead)
+        {
+          if (pending.remaining() == 4)
+          {
+            headerRead = true;
+            pending.clear();
+            continue;
+          }
+        }
+        else if (pending.remaining() >= 4 && pending.remaining() == 4 + (pending.getShort(2) & 0xffff))
+        {
+          String msg = new String(pending.array(), 4, pending.remaining() - 4, StandardCharsets.US_ASCII);
+          pending.clear();
+          return msg;
+        }
+        pending.position(pending.limit()).limit(pending.capacity());
+      }
+      return null;
+    }
+  }
+}
+//End of ExecutionModeBenchmark class
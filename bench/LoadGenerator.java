@@ -0,0 +1,396 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import client.ChatClient;
+import common.ChatIF;
+import server.AbstractServer;
+import server.Histogram;
+
+/**
+ * Puts an EchoServer under load with many simulated ChatClients and
+ * records how it copes over time.<p>
+ *
+ * Every client logs on to the lobby.  Together they send chat lines at a
+ * steady rate, each line carrying its send time, so every client that
+ * receives the broadcast records its latency.  Meanwhile clients log off
+ * and back on under new login IDs at the churn rate.  Once per interval
+ * a row goes to a CSV file: the deliveries per second, the p50, p99 and
+ * p999 latency of that interval, the number of clients the server holds
+ * and the heap and threads of the process.  A JSON file gets the
+ * settings, the totals and the same series, so runs can be compared
+ * across commits.<p>
+ *
+ * Usage: <code>java bench.LoadGenerator [name=value...]</code> with
+ * <ul>
+ * <li><code>clients</code>, the number of clients, 100 by default;
+ * <li><code>rate</code>, chat lines per second per client, 1 by default;
+ * <li><code>churn</code>, logins per second, 0 by default;
+ * <li><code>duration</code>, seconds, 30 by default;
+ * <li><code>interval</code>, seconds per row, 1 by default;
+ * <li><code>host</code> and <code>port</code> of the server, localhost
+ *     and 5555 by default;
+ * <li><code>nodes</code>, the number of servers forming a cluster on
+ *     consecutive ports from <code>port</code>, 1 by default; clients
+ *     are spread evenly over them (see server.Cluster);
+ * <li><code>server</code>, <code>inprocess</code> to start the
+ *     EchoServers in this process, the default, or <code>external</code>
+ *     to use ones already running on the same machine;
+ * <li><code>out</code>, the file name the .csv and .json files are
+ *     written to, loadgen by default.
+ * </ul>
+ * Latencies compare System.nanoTime across processes, so the server and
+ * the generator must share a machine.  With an in-process server, its
+ * console output is discarded and the heap and threads reported include
+ * the clients.
+ */
+public class LoadGenerator
+{
+  //Class variables *************************************************
+
+  /**
+   * Starts the chat lines whose latency is measured.
+   */
+  final static String MARK = "lg@";
+
+  //Instance variables **********************************************
+
+  private final int clientCount;
+  private final double rate;
+  private final double churn;
+  private final int duration;
+  private final int interval;
+  private final String host;
+  private final int port;
+  private final int nodes;
+  private final String out;
+
+  /**
+   * Where progress is printed; System.out is silenced with an in-process
+   * server.
+   */
+  private final PrintStream console = System.out;
+
+  /**
+   * The servers, if they run in this process.
+   */
+  private AbstractServer[] servers;
+
+  private ChatClient[] clients;
+
+  /**
+   * Bumped at every login so that a client coming back does not collide
+   * with its previous session.
+   */
+  private final AtomicLong logins = new AtomicLong();
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  private final Histogram total = new Histogram(); // latencies in microseconds, like the server's in nanoseconds
+  private final Histogram current = new Histogram();
+
+  private final List<String> rows = new ArrayList<String>();
+
+  private volatile boolean running = true;
+
+  //Constructors ****************************************************
+
+  private LoadGenerator(Map<String, String> options)
+  {
+    clientCount = Integer.parseInt(options.getOrDefault("clients", "100"));
+    rate = Double.parseDouble(options.getOrDefault("rate", "1"));
+    churn = Double.parseDouble(options.getOrDefault("churn", "0"));
+    duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+    interval = Integer.parseInt(options.getOrDefault("interval", "1"));
+    host = options.getOrDefault("host", "localhost");
+    port = Integer.parseInt(options.getOrDefault("port", "5555"));
+    nodes = Integer.parseInt(options.getOrDefault("nodes", "1"));
+    out = options.getOrDefault("out", "loadgen");
+    if (options.getOrDefault("server", "inprocess").equals("inprocess"))
+    {
+      if (nodes > 1)
+      {
+        StringBuilder peers = new StringBuilder();
+        for (int node = 0; node < nodes; node++)
+        {
+          peers.append(node == 0 ? "" : ",").append("localhost:").append(port + node);
+        }
+        System.setProperty("simplechat.cluster.peers", peers.toString());
+      }
+      servers = new AbstractServer[nodes];
+      for (int node = 0; node < nodes; node++)
+      {
+        servers[node] = startServer(port + node);
+      }
+      LockSupport.parkNanos(2000000000L); // let the nodes link up
+    }
+  }
+
+  //Instance methods ************************************************
+
+  private void run() throws Exception
+  {
+    clients = new ChatClient[clientCount];
+    for (int i = 0; i < clientCount; i++)
+    {
+      clients[i] = connect(i);
+    }
+
+    Thread chatter = new Thread(this::chat, "loadgen-chat");
+    chatter.start();
+    Thread churner = null;
+    if (churn > 0)
+    {
+      churner = new Thread(this::churn, "loadgen-churn");
+      churner.start();
+    }
+
+    console.println("second  clients  sent/s  delivered/s  p50 us  p99 us  p999 us  heap MB  threads");
+    long start = System.nanoTime();
+    long lastSent = 0;
+    long lastDelivered = 0;
+    for (int second = interval; second <= duration; second += interval)
+    {
+      LockSupport.parkNanos(start + second * 1000000000L - System.nanoTime());
+      long nowSent = sent.get();
+      long nowDelivered = delivered.get();
+      long[] latency = current.getPercentilesAndReset(0.50, 0.99, 0.999);
+      String row = second + "," + connectedClients() + "," + (nowSent - lastSent) / interval
+        + "," + (nowDelivered - lastDelivered) / interval + "," + latency[0] + ","
+        + latency[1] + "," + latency[2] + "," + heapMegabytes() + ","
+        + ManagementFactory.getThreadMXBean().getThreadCount();
+      rows.add(row);
+      console.println(String.format("%6s %8s %7s %12s %7s %7s %8s %8s %8s",
+        (Object[])row.split(",")));
+      lastSent = nowSent;
+      lastDelivered = nowDelivered;
+    }
+
+    running = false;
+    chatter.join();
+    if (churner != null)
+    {
+      churner.join();
+    }
+    for (ChatClient client : clients)
+    {
+      try
+      {
+        client.closeConnection();
+      }
+      catch (IOException e) {}
+    }
+    write();
+    if (servers != null)
+    {
+      for (AbstractServer server : servers)
+      {
+        server.close();
+      }
+    }
+  }
+
+  /**
+   * Opens a client and logs it on under a fresh login ID.
+   */
+  private ChatClient connect(int index) throws IOException
+  {
+    String loginID = "lg" + index + "_" + logins.incrementAndGet();
+    long since = System.nanoTime();
+    ChatIF display = message ->
+    {
+      int mark = message.indexOf(MARK);
+      long sentAt = mark < 0 ? 0 : Long.parseLong(message.substring(mark + MARK.length()));
+      if (sentAt >= since) // older lines are history replayed at login
+      {
+        long latency = System.nanoTime() - sentAt;
+        total.record(latency / 1000);
+        current.record(latency / 1000);
+        delivered.incrementAndGet();
+      }
+    };
+    ChatClient client = new ChatClient(loginID, host, port + index % nodes, display)
+    {
+      protected void connectionException(Exception exception)
+      {
+        failures.incrementAndGet(); // keep going instead of exiting
+      }
+    };
+    client.sendToServer("#login " + loginID);
+    return client;
+  }
+
+  /**
+   * Sends chat lines from the clients in turn at the overall rate.
+   */
+  private void chat()
+  {
+    long period = (long)(1e9 / (rate * clientCount));
+    long next = System.nanoTime();
+    int turn = 0;
+    while (running)
+    {
+      LockSupport.parkNanos(next - System.nanoTime());
+      next += period;
+      ChatClient client = clients[turn];
+      turn = (turn + 1) % clientCount;
+      try
+      {
+        client.sendToServer(MARK + System.nanoTime());
+        sent.incrementAndGet();
+      }
+      catch (IOException e)
+      {
+        failures.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Logs random clients off and back on at the churn rate.
+   */
+  private void churn()
+  {
+    long period = (long)(1e9 / churn);
+    long next = System.nanoTime();
+    while (running)
+    {
+      LockSupport.parkNanos(next - System.nanoTime());
+      next += period;
+      int index = ThreadLocalRandom.current().nextInt(clientCount);
+      try
+      {
+        clients[index].closeConnection();
+        clients[index] = connect(index);
+      }
+      catch (IOException e)
+      {
+        failures.incrementAndGet();
+      }
+    }
+  }
+
+  private int connectedClients()
+  {
+    if (servers != null)
+    {
+      int connected = 0;
+      for (AbstractServer server : servers)
+      {
+        connected += server.getNumberOfClients() - (nodes - 1); // less the links between nodes
+      }
+      return connected;
+    }
+    int connected = 0;
+    for (ChatClient client : clients)
+    {
+      connected += client.isConnected() ? 1 : 0;
+    }
+    return connected;
+  }
+
+  /**
+   * Writes the CSV and JSON files and prints the totals.
+   */
+  private void write() throws IOException
+  {
+    String header = "second,clients,sent_per_s,delivered_per_s,p50_us,p99_us,p999_us,heap_mb,threads";
+    try (PrintWriter csv = new PrintWriter(new FileWriter(out + ".csv")))
+    {
+      csv.println(header);
+      for (String row : rows)
+      {
+        csv.println(row);
+      }
+    }
+
+    long[] latency = total.getPercentilesAndReset(0.50, 0.99, 0.999);
+    String[] columns = header.split(",");
+    try (PrintWriter json = new PrintWriter(new FileWriter(out + ".json")))
+    {
+      json.println("{");
+      json.println("  \"clients\": " + clientCount + ", \"rate\": " + rate + ", \"churn\": "
+        + churn + ", \"duration\": " + duration + ", \"nodes\": " + nodes + ", \"server\": \""
+        + (servers == null ? "external" : "inprocess") + "\",");
+      json.println("  \"sent\": " + sent.get() + ", \"delivered\": " + delivered.get()
+        + ", \"failures\": " + failures.get() + ",");
+      json.println("  \"p50_us\": " + latency[0] + ", \"p99_us\": " + latency[1]
+        + ", \"p999_us\": " + latency[2] + ",");
+      json.println("  \"series\": [");
+      for (int r = 0; r < rows.size(); r++)
+      {
+        String[] values = rows.get(r).split(",");
+        StringBuilder line = new StringBuilder("    {");
+        for (int c = 0; c < columns.length; c++)
+        {
+          line.append(c == 0 ? "" : ", ").append('"').append(columns[c]).append("\": ")
+            .append(values[c]);
+        }
+        json.println(line.append(r + 1 < rows.size() ? "}," : "}"));
+      }
+      json.println("  ]");
+      json.println("}");
+    }
+
+    console.println("sent " + sent.get() + ", delivered " + delivered.get() + ", failures "
+      + failures.get() + "; latency p50 " + latency[0] + " us, p99 " + latency[1]
+      + " us, p999 " + latency[2] + " us");
+    console.println("wrote " + out + ".csv and " + out + ".json");
+  }
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : args)
+    {
+      int equals = arg.indexOf('=');
+      if (equals < 0)
+      {
+        System.out.println("Usage: java bench.LoadGenerator [name=value...]");
+        return;
+      }
+      options.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+    new LoadGenerator(options).run();
+    System.exit(0);
+  }
+
+  /**
+   * Starts an EchoServer in this process the way ServerConsole does,
+   * without reading the console, and discards everything it prints.
+   * EchoServer is in the default package, so it can only be reached
+   * reflectively.
+   */
+  private static AbstractServer startServer(int port)
+  {
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    try
+    {
+      Object serverConsole = Class.forName("ServerConsole").getConstructor(int.class)
+        .newInstance(port);
+      Field server = serverConsole.getClass().getDeclaredField("server");
+      server.setAccessible(true);
+      return (AbstractServer)server.get(serverConsole);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      throw new IllegalStateException("cannot start EchoServer in process", e);
+    }
+  }
+
+  private static long heapMegabytes()
+  {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+  }
+}
+//End of LoadGenerator class
@@ -0,0 +1,200 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.*;
+
+import client.AbstractClient;
+import server.*;
+
+/**
+ * Reports what TLS costs: how many connections per second a client can
+ * open with a full handshake, with a resumed session and in plain text,
+ * and how fast it can send chat lines over TLS against plain text, one
+ * at a time and batched.  Connection times include agreeing on a codec.<p>
+ *
+ * The key store named by <code>javax.net.ssl.keyStore</code> (password
+ * <code>javax.net.ssl.keyStorePassword</code>) serves as both key and
+ * trust store; without one, a self-signed certificate for localhost is
+ * made with keytool.<p>
+ *
+ * Usage: <code>java bench.TlsBenchmark [connections] [messages]</code>,
+ * by default 500 connections and 200000 messages.
+ */
+public class TlsBenchmark
+{
+  //Class variables *************************************************
+
+  final static int PORT = 5592;
+
+  final static String LINE = "the quick brown fox jumps over the lazy dog";
+
+  //Class methods ***************************************************
+
+  public static void main(String[] args) throws Exception
+  {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+    String path = System.getProperty("javax.net.ssl.keyStore");
+    char[] password = System.getProperty("javax.net.ssl.keyStorePassword", "changeit").toCharArray();
+    if (path == null)
+    {
+      path = selfSigned(new String(password));
+    }
+    KeyStore store = KeyStore.getInstance(new File(path), password);
+
+    AtomicLong received = new AtomicLong();
+    AbstractServer plain = server(PORT, null, received);
+    AbstractServer tls = server(PORT + 1, context(store, password), received);
+    SSLContext shared = context(store, password);
+
+    System.out.println("connections/s   plain    full TLS  resumed TLS");
+    double[] rates = new double[3];
+    for (int round = 0; round < 2; round++) // the first round is the warm-up
+    {
+      rates[0] = connect(PORT, connections, null, null, null);
+      rates[1] = connect(PORT + 1, connections, null, store, password);
+      rates[2] = connect(PORT + 1, connections, shared, null, null);
+    }
+    System.out.printf("%13s %7.0f %11.0f %12.0f%n", "", rates[0], rates[1], rates[2]);
+    System.out.println("server handshake p50 " + tls.getMetrics().getTlsHandshakeP50Micros()
+      + " us, p99 " + tls.getMetrics().getTlsHandshakeP99Micros() + " us");
+
+    System.out.println();
+    System.out.println("messages/s      plain         TLS  overhead");
+    for (int delay : new int[] {0, 2})
+    {
+      double plainRate = 0;
+      double tlsRate = 0;
+      for (int round = 0; round < 2; round++)
+      {
+        plainRate = send(PORT, null, delay, messages, received);
+        tlsRate = send(PORT + 1, shared, delay, messages, received);
+      }
+      System.out.printf("%-10s %10.0f %11.0f %8.0f%%%n", delay == 0 ? "unbatched" : "batched",
+        plainRate, tlsRate, 100 * (plainRate / tlsRate - 1));
+    }
+
+    plain.close();
+    tls.close();
+  }
+
+  private static AbstractServer server(int port, SSLContext context, AtomicLong received)
+    throws IOException
+  {
+    AbstractServer server = new AbstractServer(port)
+    {
+      protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+      {
+        received.incrementAndGet();
+      }
+    };
+    server.setSSLContext(context);
+    server.listen();
+    return server;
+  }
+
+  /**
+   * Opens and closes connections one after the other.  A client context
+   * made afresh for every connection cannot resume a session.
+   *
+   * @param shared The context of every connection, or null to make one
+   *        per connection from store, or for plain text if store is null.
+   * @return The connections per second.
+   */
+  private static double connect(int port, int connections, SSLContext shared, KeyStore store,
+    char[] password) throws Exception
+  {
+    long start = System.nanoTime();
+    for (int i = 0; i < connections; i++)
+    {
+      AbstractClient client = client(port);
+      client.setSSLContext(store == null ? shared : context(store, password));
+      client.openConnection();
+      client.closeConnection();
+    }
+    return connections * 1e9 / (System.nanoTime() - start);
+  }
+
+  /**
+   * Sends chat lines from one client and waits for the server to handle
+   * them all.
+   *
+   * @return The messages per second.
+   */
+  private static double send(int port, SSLContext context, int delay, int messages,
+    AtomicLong received) throws Exception
+  {
+    AbstractClient client = client(port);
+    client.setSSLContext(context);
+    client.setBatching(delay, 64 * 1024);
+    client.openConnection();
+    long expected = received.get() + messages;
+
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++)
+    {
+      client.sendToServer(LINE);
+    }
+    client.flush();
+    while (received.get() < expected)
+    {
+      Thread.sleep(1);
+    }
+    long elapsed = System.nanoTime() - start;
+
+    client.closeConnection();
+    return messages * 1e9 / elapsed;
+  }
+
+  private static AbstractClient client(int port)
+  {
+    return new AbstractClient("localhost", port)
+    {
+      protected void handleMessageFromServer(Object msg) {}
+    };
+  }
+
+  /**
+   * Makes a context using a key store as both key and trust store.
+   */
+  private static SSLContext context(KeyStore store, char[] password) throws Exception
+  {
+    KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keys.init(store, password);
+    TrustManagerFactory trust =
+      TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust.init(store);
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+    return context;
+  }
+
+  /**
+   * Makes a key store holding a self-signed certificate for localhost.
+   *
+   * @return The path of the key store.
+   */
+  private static String selfSigned(String password) throws Exception
+  {
+    Path directory = Files.createTempDirectory("simplechat-tls");
+    Path file = directory.resolve("chat.p12");
+    file.toFile().deleteOnExit();
+    directory.toFile().deleteOnExit();
+    Process keytool = new ProcessBuilder(
+      Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+      "-genkeypair", "-alias", "simplechat", "-keyalg", "EC", "-validity", "1",
+      "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1",
+      "-keystore", file.toString(), "-storepass", password)
+      .inheritIO().start();
+    if (keytool.waitFor() != 0)
+    {
+      throw new IOException("keytool failed");
+    }
+    return file.toString();
+  }
+}
+//End of TlsBenchmark class
@@ -0,0 +1,740 @@
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+import common.*;
+
+/**
+ * A replacement for <code>ocsf.client.AbstractClient</code> that frames
+ * its messages with a MessageCodec instead of an ObjectOutputStream.  The
+ * public methods and hook methods keep their OCSF names and meaning.<p>
+ *
+ * When the connection opens the client asks the server for its preferred
+ * codec, deflate by default or the one named by the system property
+ * <code>simplechat.codec</code>, and uses whatever codec the server
+ * confirms; a server that does not compress confirms binary instead.  If the server turns out to be a plain OCSF server, which
+ * answers with an object stream header, the client reconnects using the
+ * serialization codec.<p>
+ *
+ * Messages can be batched: instead of one write per message, sent
+ * messages are gathered and written together once the oldest has waited
+ * a few milliseconds or the batch is full, whichever comes first.
+ * Messages keep their order.  Batching is off unless the system property
+ * <code>simplechat.batchDelay</code> gives a delay in milliseconds or
+ * setBatching is called; <code>simplechat.batchBytes</code> sets the
+ * batch size.<p>
+ *
+ * The connection is encrypted with TLS if setSSLContext is given a
+ * context or the system property <code>simplechat.tls</code> is true.
+ * The same context is used for every connection, so reconnecting
+ * resumes the TLS session instead of doing a full handshake.<p>
+ *
+ * A client that hears nothing from the server for a while pings it, and
+ * one that still hears nothing closes the connection as broken, which
+ * calls connectionException; the server pings quiet clients the same
+ * way.  The times are set by <code>simplechat.heartbeat</code> and
+ * <code>simplechat.idleTimeout</code>, in milliseconds, or
+ * setIdleTimeouts.  Pings and their answers never reach
+ * handleMessageFromServer.
+ */
+public abstract class AbstractClient
+{
+  //Class variables *************************************************
+
+  /**
+   * The codec asked for by default.
+   */
+  final public static int DEFAULT_CODEC = MessageCodec.idFromProperty("simplechat.codec",
+    MessageCodec.DEFLATE);
+
+  /**
+   * The initial size of the buffer messages are read into.
+   */
+  final static int READ_BUFFER_SIZE = 8192;
+
+  /**
+   * The default longest time in milliseconds a message may wait to be
+   * batched with others; zero sends every message at once.
+   */
+  final public static int DEFAULT_BATCH_DELAY = Integer.getInteger("simplechat.batchDelay", 0);
+
+  /**
+   * The default size in bytes of a batch.
+   */
+  final public static int DEFAULT_BATCH_BYTES = Integer.getInteger("simplechat.batchBytes", 64 * 1024);
+
+  /**
+   * The default time in milliseconds the server may be quiet before it
+   * is pinged, or 0 for no heartbeats.
+   */
+  final public static int DEFAULT_HEARTBEAT_INTERVAL = Integer.getInteger("simplechat.heartbeat", 30000);
+
+  /**
+   * The default time in milliseconds the server may be quiet before the
+   * connection is given up, or 0 for no limit.
+   */
+  final public static int DEFAULT_IDLE_TIMEOUT = Integer.getInteger("simplechat.idleTimeout", 90000);
+
+  //Instance variables **********************************************
+
+  private String host;
+
+  private int port;
+
+  /**
+   * The ID of the codec to ask the server for.
+   */
+  private int preferredCodec = DEFAULT_CODEC;
+
+  /**
+   * The longest time in milliseconds a message may wait in a batch, or
+   * zero if messages are not batched.
+   */
+  private int batchDelay = DEFAULT_BATCH_DELAY;
+
+  private int batchBytes = DEFAULT_BATCH_BYTES;
+
+  /**
+   * The encoded messages waiting to be written, or null if messages are
+   * not batched.
+   */
+  private ByteBuffer batch;
+
+  /**
+   * When the oldest message in the batch must be written, in
+   * System.nanoTime terms.
+   */
+  private long batchDeadline;
+
+  /**
+   * The thread writing batches when they are due, or null if messages
+   * are not batched.
+   */
+  private Thread batchWriter;
+
+  /**
+   * Makes the TLS engine of each connection, or null for plain text.
+   */
+  private SSLContext sslContext;
+
+  /**
+   * The socket to the server, or null when not connected.
+   */
+  private volatile SocketChannel socket;
+
+  /**
+   * What messages are read from and written to: the TLS layer over the
+   * socket, or the socket itself; null when not connected.
+   */
+  private ByteChannel channel;
+
+  /**
+   * The codec confirmed by the server for the current connection.
+   */
+  private MessageCodec codec;
+
+  /**
+   * The thread reading messages from the server.
+   */
+  private Thread clientReader;
+
+  /**
+   * Set when the client closes the connection itself, so that the reader
+   * does not report the resulting exception.
+   */
+  private volatile boolean readyToStop;
+
+  private volatile int heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+
+  private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+  /**
+   * When bytes last came from the server.
+   */
+  private volatile long lastRead;
+
+  /**
+   * When the server was last pinged.  Only used by the timer.
+   */
+  private long lastPing;
+
+  /**
+   * Watches the connection for silence.
+   */
+  private final IdleCheck idleCheck = new IdleCheck();
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs the client.  The connection is not opened.
+   *
+   * @param host the server's host name.
+   * @param port the port number.
+   */
+  public AbstractClient(String host, int port)
+  {
+    this.host = host;
+    this.port = port;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Opens the connection with the server, agrees on a codec and starts
+   * the thread reading messages from the server.  Does nothing if the
+   * connection is already open.
+   *
+   * @exception IOException if an I/O error occurs when opening.
+   */
+  final public synchronized void openConnection() throws IOException
+  {
+    if (isConnected())
+    {
+      return;
+    }
+    try
+    {
+      connect(preferredCodec);
+    }
+    catch (IOException ex)
+    {
+      try
+      {
+        closeAll();
+      }
+      catch (Exception exc) {}
+      throw ex;
+    }
+    readyToStop = false;
+    lastRead = System.nanoTime();
+    lastPing = lastRead;
+    if (!idleCheck.isScheduled() && codec.id() != MessageCodec.SERIALIZATION
+      && (heartbeatInterval > 0 || idleTimeout > 0))
+    {
+      HashedWheelTimer.shared().schedule(idleCheck,
+        Math.min(nanos(heartbeatInterval), nanos(idleTimeout)));
+    }
+    clientReader = new Thread(this::run, "client-reader");
+    clientReader.start();
+    if (batchDelay > 0)
+    {
+      if (batch == null || batch.capacity() != batchBytes)
+      {
+        batch = ByteBuffer.allocate(batchBytes);
+      }
+      batchWriter = new Thread(this::writeBatches, "client-batch-writer");
+      batchWriter.setDaemon(true);
+      batchWriter.start();
+    }
+    connectionEstablished();
+  }
+
+  /**
+   * Sends a message to the server.  When batching, the message is only
+   * added to the current batch.
+   *
+   * @param msg the message to be sent.
+   * @exception IOException if an I/O error occurs when sending.
+   */
+  public synchronized void sendToServer(Object msg) throws IOException
+  {
+    if (channel == null || codec == null)
+    {
+      throw new SocketException("socket does not exist");
+    }
+    ByteBuffer encoded = codec.encode(msg);
+    if (batchWriter == null)
+    {
+      write(encoded);
+      return;
+    }
+    if (encoded.remaining() > batch.remaining())
+    {
+      writeBatch();
+      if (encoded.remaining() > batch.capacity())
+      {
+        write(encoded);
+        return;
+      }
+    }
+    if (batch.position() == 0)
+    {
+      batchDeadline = System.nanoTime() + batchDelay * 1000000L;
+      notifyAll();
+    }
+    batch.put(encoded);
+    if (!batch.hasRemaining())
+    {
+      writeBatch();
+    }
+  }
+
+  /**
+   * Writes the messages waiting in the current batch, if any.
+   *
+   * @exception IOException if an I/O error occurs when sending.
+   */
+  public synchronized void flush() throws IOException
+  {
+    if (channel != null && batch != null && batch.position() > 0)
+    {
+      writeBatch();
+    }
+  }
+
+  /**
+   * Closes the connection to the server.
+   *
+   * @exception IOException if an I/O error occurs when closing.
+   */
+  final public void closeConnection() throws IOException
+  {
+    readyToStop = true;
+    try
+    {
+      flush();
+    }
+    catch (IOException e) {}
+    try
+    {
+      closeAll();
+    }
+    finally
+    {
+      connectionClosed();
+    }
+  }
+
+  /**
+   * Returns whether the client is connected.
+   */
+  final public synchronized boolean isConnected()
+  {
+    return channel != null && channel.isOpen() && clientReader != null
+      && clientReader.isAlive();
+  }
+
+  final public int getPort()
+  {
+    return port;
+  }
+
+  /**
+   * Sets the server port number for the next connection.
+   *
+   * @param port the port number.
+   */
+  final public void setPort(int port)
+  {
+    this.port = port;
+  }
+
+  final public String getHost()
+  {
+    return host;
+  }
+
+  /**
+   * Sets the server host for the next connection.
+   *
+   * @param host the host name.
+   */
+  final public void setHost(String host)
+  {
+    this.host = host;
+  }
+
+  /**
+   * Sets the codec to ask the server for at the next connection.
+   *
+   * @param id the ID of the codec, see MessageCodec.
+   */
+  final public void setPreferredCodec(int id)
+  {
+    this.preferredCodec = id;
+  }
+
+  /**
+   * Sets when a quiet server is pinged and when the connection to it is
+   * given up.  Takes effect at the next check.
+   *
+   * @param heartbeatInterval the time in milliseconds the server may be
+   *        quiet before it is pinged, or 0 for no heartbeats.
+   * @param idleTimeout the time in milliseconds the server may be quiet
+   *        before the connection is given up, or 0 for no limit.
+   */
+  final public void setIdleTimeouts(int heartbeatInterval, int idleTimeout)
+  {
+    if (heartbeatInterval < 0 || idleTimeout < 0)
+    {
+      throw new IllegalArgumentException("negative timeout");
+    }
+    this.heartbeatInterval = heartbeatInterval;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Makes the next connections use TLS, or plain text.
+   *
+   * @param sslContext the context, or null for plain text.
+   */
+  final public synchronized void setSSLContext(SSLContext sslContext)
+  {
+    this.sslContext = sslContext;
+  }
+
+  /**
+   * Sets how messages are batched from the next connection on.
+   *
+   * @param delay the longest time in milliseconds a message may wait to
+   *        be written, or zero to write every message at once.
+   * @param bytes the size of a batch in bytes.
+   */
+  final public synchronized void setBatching(int delay, int bytes)
+  {
+    if (delay < 0 || bytes < 1)
+    {
+      throw new IllegalArgumentException("invalid batching settings");
+    }
+    this.batchDelay = delay;
+    this.batchBytes = bytes;
+  }
+
+  /**
+   * Returns the ID of the codec used by the current connection, or -1
+   * if the client is not connected.
+   */
+  final public synchronized int getCodec()
+  {
+    return codec == null ? -1 : codec.id();
+  }
+
+  /**
+   * Returns the address of the server, or null if not connected.
+   */
+  final public synchronized InetAddress getInetAddress()
+  {
+    return socket == null ? null : socket.socket().getInetAddress();
+  }
+
+  /**
+   * Connects and agrees on a codec, falling back to serialization if the
+   * server does not understand the hello.
+   */
+  private void connect(int codecId) throws IOException
+  {
+    if (sslContext == null && TlsChannel.DEFAULT_TLS)
+    {
+      sslContext = TlsChannel.defaultContext();
+    }
+    socket = SocketChannel.open(new InetSocketAddress(host, port));
+    socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    channel = socket;
+    if (sslContext != null)
+    {
+      TlsChannel tls = TlsChannel.client(socket, sslContext, host, port);
+      tls.handshake();
+      channel = tls;
+    }
+    if (codecId == MessageCodec.SERIALIZATION)
+    {
+      codec = new SerializationCodec();
+      write(codec.header());
+      return;
+    }
+
+    write(MessageCodec.hello(codecId));
+    ByteBuffer reply = ByteBuffer.allocate(MessageCodec.HELLO_LENGTH);
+    while (reply.hasRemaining())
+    {
+      if (channel.read(reply) < 0)
+      {
+        throw new EOFException("connection closed during handshake");
+      }
+    }
+    reply.flip();
+    if (reply.get(0) == (byte)0xac && reply.get(1) == (byte)0xed)
+    {
+      channel.close();
+      connect(MessageCodec.SERIALIZATION);
+      return;
+    }
+    if (reply.get(0) != MessageCodec.HELLO_MAGIC_0 || reply.get(1) != MessageCodec.HELLO_MAGIC_1
+      || (codec = MessageCodec.forId(reply.get(3))) == null)
+    {
+      throw new StreamCorruptedException("unexpected answer from server");
+    }
+  }
+
+  /**
+   * Writes a whole buffer to the socket.
+   */
+  private void write(ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Writes the current batch and starts a new one.  The caller holds the
+   * client's lock.
+   */
+  private void writeBatch() throws IOException
+  {
+    batch.flip();
+    try
+    {
+      write(codec.pack(batch)); // compressed as a whole if the codec compresses
+    }
+    finally
+    {
+      batch.clear();
+    }
+  }
+
+  /**
+   * Writes each batch once its oldest message is due, until the
+   * connection closes.  Runs on the batch writer thread.
+   */
+  private synchronized void writeBatches()
+  {
+    Thread self = Thread.currentThread();
+    try
+    {
+      while (batchWriter == self)
+      {
+        long delay = batchDeadline - System.nanoTime();
+        if (batch.position() == 0)
+        {
+          wait();
+        }
+        else if (delay > 0)
+        {
+          TimeUnit.NANOSECONDS.timedWait(this, delay);
+        }
+        else
+        {
+          try
+          {
+            writeBatch();
+          }
+          catch (IOException e) {} // the reader reports the broken connection
+        }
+      }
+    }
+    catch (InterruptedException e) {}
+  }
+
+  /**
+   * Reads messages from the server until the connection closes.  Runs on
+   * the client reader thread.
+   */
+  private void run()
+  {
+    ByteChannel channel;
+    MessageCodec codec;
+    synchronized (this)
+    {
+      channel = this.channel;
+      codec = this.codec;
+    }
+    ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    try
+    {
+      while (!readyToStop)
+      {
+        if (!in.hasRemaining())
+        {
+          ByteBuffer grown = ByteBuffer.allocate(2 * in.capacity());
+          in.flip();
+          in = grown.put(in);
+        }
+        if (channel.read(in) < 0)
+        {
+          throw new EOFException();
+        }
+        lastRead = System.nanoTime();
+        in.flip();
+        Object msg;
+        while (!readyToStop && (msg = codec.decode(in)) != null)
+        {
+          if (msg instanceof Frame && heartbeat((Frame)msg))
+          {
+            continue;
+          }
+          handleMessageFromServer(msg);
+        }
+        in.compact();
+      }
+    }
+    catch (Exception exception)
+    {
+      if (!readyToStop)
+      {
+        try
+        {
+          closeAll();
+        }
+        catch (Exception ex) {}
+        connectionException(exception);
+      }
+    }
+  }
+
+  /**
+   * Answers a PING and swallows a PONG.
+   *
+   * @return Whether the frame was one of them.
+   */
+  private boolean heartbeat(Frame frame) throws IOException
+  {
+    if (frame.getOpcode() == Frame.PING)
+    {
+      sendFrame(new Frame(Frame.PONG, frame.getPayload()));
+      return true;
+    }
+    return frame.getOpcode() == Frame.PONG;
+  }
+
+  /**
+   * Writes a frame at once, ahead of the current batch.
+   */
+  private synchronized void sendFrame(Frame frame) throws IOException
+  {
+    if (channel != null && codec != null)
+    {
+      write(codec.encode(frame));
+    }
+  }
+
+  /**
+   * Closes the socket.
+   */
+  private synchronized void closeAll() throws IOException
+  {
+    try
+    {
+      if (channel != null)
+      {
+        channel.close();
+      }
+    }
+    finally
+    {
+      if (codec != null)
+      {
+        codec.close();
+      }
+      socket = null;
+      channel = null;
+      codec = null;
+      batchWriter = null;
+      if (batch != null)
+      {
+        batch.clear();
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Converts milliseconds to nanoseconds, 0 meaning never.
+   */
+  private static long nanos(int millis)
+  {
+    return millis > 0 ? millis * 1000000L : Long.MAX_VALUE;
+  }
+
+  //Hook methods ****************************************************
+
+  /**
+   * Hook method called after the connection has been closed by the
+   * client.  The default implementation does nothing.
+   */
+  protected void connectionClosed() {}
+
+  /**
+   * Hook method called each time an exception is thrown by the client's
+   * thread that is waiting for messages from the server.  The default
+   * implementation does nothing.
+   *
+   * @param exception the exception raised.
+   */
+  protected void connectionException(Exception exception) {}
+
+  /**
+   * Hook method called after a connection has been established.  The
+   * default implementation does nothing.
+   */
+  protected void connectionEstablished() {}
+
+  /**
+   * Handles a message sent from the server to this client.
+   *
+   * @param msg the message sent.
+   */
+  protected abstract void handleMessageFromServer(Object msg);
+
+  //Inner classes ***************************************************
+
+  /**
+   * The check run by the shared timer each time the server may have been
+   * quiet for long enough: pings a server quiet for the heartbeat
+   * interval, and closes the socket of one still quiet at the idle
+   * timeout, which makes the reader report the connection broken.  The
+   * timer must not wait for the client's lock, which a sender stuck on a
+   * dead connection may hold, so the ping is sent from a thread of its
+   * own and the socket is closed without the lock.
+   */
+  private final class IdleCheck extends HashedWheelTimer.Timeout
+  {
+    protected void expire()
+    {
+      SocketChannel socket = AbstractClient.this.socket;
+      long heartbeat = nanos(heartbeatInterval);
+      long idle = nanos(idleTimeout);
+      if (socket == null || readyToStop || heartbeat == Long.MAX_VALUE && idle == Long.MAX_VALUE)
+      {
+        return;
+      }
+      long now = System.nanoTime();
+      long quiet = now - lastRead;
+      if (quiet >= idle)
+      {
+        try
+        {
+          socket.close();
+        }
+        catch (IOException e) {}
+        return;
+      }
+      if (quiet < heartbeat)
+      {
+        HashedWheelTimer.shared().schedule(this, Math.min(idle, heartbeat) - quiet);
+        return;
+      }
+      if (lastPing - lastRead <= 0)
+      {
+        lastPing = now;
+        Thread.ofVirtual().name("client-ping").start(() ->
+        {
+          try
+          {
+            sendFrame(new Frame(Frame.PING, ""));
+          }
+          catch (IOException e) {} // the reader reports the broken connection
+        });
+      }
+      HashedWheelTimer.shared().schedule(this, Math.min(idle - quiet, heartbeat));
+    }
+  }
+}
+//End of AbstractClient class
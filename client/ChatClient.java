@@ -4,9 +4,10 @@
 
 package client;
 
-import ocsf.client.*;
 import common.*;
 import java.io.*;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This class overrides some of the methods defined in the abstract
@@ -19,6 +20,25 @@ import java.io.*;
  */
 public class ChatClient extends AbstractClient
 {
+  //Class variables *************************************************
+  
+  /**
+   * The first delay before reconnecting after the connection broke, in
+   * milliseconds, or 0 to quit instead as OCSF clients do.
+   */
+  final public static int DEFAULT_RECONNECT_DELAY = Integer.getInteger("simplechat.reconnectDelay", 250);
+  
+  /**
+   * The longest delay between attempts to reconnect, in milliseconds.
+   */
+  final public static int DEFAULT_MAX_RECONNECT_DELAY = Integer.getInteger("simplechat.maxReconnectDelay", 30000);
+  
+  /**
+   * How often the server is told the user is still typing, at most, in
+   * milliseconds.
+   */
+  final public static int TYPING_INTERVAL = 3000;
+  
   //Instance variables **********************************************
   
   /**
@@ -29,6 +49,40 @@ public class ChatClient extends AbstractClient
 
   String loginID;
   
+  /**
+   * The channel this client is in, as far as it knows.
+   */
+  volatile String channel = "lobby";
+  
+  /**
+   * The sequence number of the last message of the channel received, or
+   * -1 if none since joining it.
+   */
+  volatile long lastSequence = -1;
+  
+  /**
+   * The token the server gave this client at login, presented when it
+   * resumes, or null.
+   */
+  volatile String resumeToken;
+  
+  /**
+   * The thread reconnecting, or null.
+   */
+  private volatile Thread reconnector;
+  
+  /**
+   * When the server was last told the user is typing, in
+   * System.nanoTime terms, or 0 if not since the last message sent.
+   */
+  private volatile long typingSent;
+  
+  /**
+   * The typing indicator last displayed, or null if something else has
+   * been displayed since, so the same one is not shown over and over.
+   */
+  private String lastTyping;
+  
   //Constructors ****************************************************
   
   /**
@@ -38,7 +92,7 @@ public class ChatClient extends AbstractClient
    * @param port The port number to connect on.
    * @param clientUI The interface type variable.
    */
-  
+  @SuppressWarnings("this-escape") // connects at once, so a subclass's hooks may run before its own fields are set
   public ChatClient(String loginID, String host, int port, ChatIF clientUI) 
     throws IOException 
   {
@@ -61,7 +115,53 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromServer(Object msg) 
   {
-    clientUI.display(msg.toString());
+    if (msg instanceof Frame && ((Frame)msg).getOpcode() == Frame.TYPING) {
+      showTyping((Frame)msg);
+      return;
+    }
+    if (msg instanceof Frame && ((Frame)msg).getOpcode() == Frame.TOKEN) { // what proves it is us when we resume
+      resumeToken = ((Frame)msg).getPayload();
+      return;
+    }
+    String text = msg.toString();
+    if (msg instanceof Frame && ((Frame)msg).getSequence() >= 0) {
+      lastSequence = ((Frame)msg).getSequence(); // where to resume from
+    }
+    lastTyping = null;
+    clientUI.display(text);
+  }
+  
+  /**
+   * Shows who else is typing, unless that is what was shown last.
+   */
+  private void showTyping(Frame frame) {
+    List<String> typing = frame.getLoginIDs('=');
+    typing.remove(loginID); // the server tells the whole channel, the typist included
+    if (typing.isEmpty()) {
+      return;
+    }
+    String line = Frame.typing(typing).toString();
+    if (!line.equals(lastTyping)) {
+      lastTyping = line;
+      clientUI.display(line);
+    }
+  }
+  
+  /**
+   * Tells the server the user is typing.  Meant to be called on every
+   * keystroke; the server is told at most once every TYPING_INTERVAL.
+   */
+  public void typing() {
+    long now = System.nanoTime();
+    long sent = typingSent;
+    if (sent != 0 && now - sent < TYPING_INTERVAL * 1000000L) {
+      return;
+    }
+    typingSent = now;
+    try {
+      sendToServer("#typing");
+    }
+    catch (IOException e) {} // not connected, nobody to tell
   }
 
   /**
@@ -74,9 +174,22 @@ public class ChatClient extends AbstractClient
     try
     {
       sendToServer(message);
+      typingSent = 0; // typing again is news
+      if (message.startsWith("#join ")) { // numbers start over in the new channel
+        channel = message.substring(6).trim().toLowerCase();
+        lastSequence = -1;
+      }
+      else if (message.trim().equals("#leave")) {
+        channel = "lobby";
+        lastSequence = -1;
+      }
     }
     catch(IOException e)
     {
+      if (reconnector != null) {
+        clientUI.display("Not connected, reconnecting.  Message not sent.");
+        return;
+      }
       clientUI.display
         ("Could not send message to server.  Terminating client.");
       quit();
@@ -103,6 +216,7 @@ public class ChatClient extends AbstractClient
 	 * attempting to reconnect.
 	 */
 	protected void connectionClosed() {
+		reconnector = null; // #logoff, stay off
 		clientUI.display("Connection closed.");
 	}
 
@@ -116,7 +230,45 @@ public class ChatClient extends AbstractClient
 	 */
 	protected void connectionException(Exception exception) {
 		clientUI.display("Connection to server was terminated.");
-		quit();
+		if (DEFAULT_RECONNECT_DELAY <= 0 || loginID == null) {
+			quit();
+			return;
+		}
+		Thread thread = new Thread(this::reconnect, "client-reconnect");
+		thread.setDaemon(true);
+		reconnector = thread;
+		thread.start();
+	}
+	
+	/**
+	 * Reconnects and resumes where the connection broke.  Attempts are
+	 * spaced by exponential backoff with full jitter, a random delay up to
+	 * a ceiling that doubles each time, so that clients cut off together
+	 * do not all come back at once.
+	 */
+	private void reconnect() {
+		Thread self = Thread.currentThread();
+		for (int attempt = 0; reconnector == self; attempt++) {
+			long ceiling = Math.min(DEFAULT_MAX_RECONNECT_DELAY, (long)DEFAULT_RECONNECT_DELAY << Math.min(attempt, 20));
+			try {
+				Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			if (reconnector != self) {
+				return;
+			}
+			try {
+				openConnection();
+				String token = resumeToken;
+				sendToServer("#resume " + loginID + " " + channel + " " + lastSequence + (token == null ? "" : " " + token));
+				reconnector = null;
+				clientUI.display("Reconnected.");
+				return;
+			}
+			catch (IOException e) {} // try again later
+		}
 	}
 	
 	//setter for loginID
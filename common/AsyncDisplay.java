@@ -0,0 +1,282 @@
+package common;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Displays lines on a console without making the caller wait for the
+ * terminal.<p>
+ *
+ * Lines go into a ring of preallocated slots.  Callers claim a slot with
+ * a compare-and-set and never take a lock.  One writer thread takes
+ * whatever lines are waiting and writes them to the console with one
+ * write and one flush, so a burst of lines costs the terminal one write
+ * rather than one per line.<p>
+ *
+ * When the ring is full a line is either dropped, and the writer later
+ * reports how many were, or the caller waits for room; see WhenFull.
+ * Lines below the display level are discarded before they are queued.
+ * The level and what happens when the ring is full default to the
+ * system properties <code>simplechat.logLevel</code> and
+ * <code>simplechat.display.whenFull</code>.  Lines still waiting when
+ * the program exits are written by a shutdown hook.
+ */
+public final class AsyncDisplay implements ChatIF
+{
+  //Class variables *************************************************
+
+  /**
+   * How important a line is.
+   */
+  public enum Level
+  {
+    DEBUG, INFO, WARN, ERROR
+  }
+
+  /**
+   * What happens to a line when the ring is full.
+   */
+  public enum WhenFull
+  {
+    /**
+     * Drop the line; the number dropped is displayed later.
+     */
+    DROP,
+
+    /**
+     * Wait until the writer has made room.
+     */
+    BLOCK
+  }
+
+  /**
+   * The lowest level displayed by default.
+   */
+  final public static Level DEFAULT_LEVEL = Level.valueOf
+    (System.getProperty("simplechat.logLevel", "debug").toUpperCase());
+
+  /**
+   * What happens to a line when the ring is full, by default.
+   */
+  final public static WhenFull DEFAULT_WHEN_FULL = WhenFull.valueOf
+    (System.getProperty("simplechat.display.whenFull", "drop").toUpperCase());
+
+  /**
+   * The number of lines the ring holds.
+   */
+  final static int CAPACITY = 8192;
+
+  /**
+   * The most characters written in one batch.
+   */
+  final static int MAX_BATCH = 64 * 1024;
+
+  //Instance variables **********************************************
+
+  private final PrintStream out;
+
+  private final WhenFull whenFull;
+
+  private volatile Level level = DEFAULT_LEVEL;
+
+  private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<String>(CAPACITY);
+
+  /**
+   * The number of lines claimed by callers.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * The number of lines written.  Only the writer advances it.
+   */
+  private volatile long head;
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private final Thread writer;
+
+  /**
+   * Set by the writer before it parks, so that callers know to wake it.
+   */
+  private volatile boolean idle;
+
+  //Constructors ****************************************************
+
+  private AsyncDisplay(PrintStream out, WhenFull whenFull)
+  {
+    this.out = out;
+    this.whenFull = whenFull;
+    writer = new Thread(this::run, "display-writer"); // started once constructed, by start
+    writer.setDaemon(true);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Displays a line at level INFO.
+   *
+   * @param message The line.
+   */
+  public void display(String message)
+  {
+    log(Level.INFO, message);
+  }
+
+  /**
+   * Displays a line if its level is displayed.
+   *
+   * @param level The level of the line.
+   * @param message The line.
+   */
+  public void log(Level level, String message)
+  {
+    if (level.compareTo(this.level) < 0)
+    {
+      return;
+    }
+    long claimed;
+    while (true)
+    {
+      claimed = tail.get();
+      if (claimed - head >= CAPACITY)
+      {
+        if (whenFull == WhenFull.DROP)
+        {
+          dropped.incrementAndGet();
+          return;
+        }
+        LockSupport.unpark(writer);
+        LockSupport.parkNanos(100000);
+        continue;
+      }
+      if (tail.compareAndSet(claimed, claimed + 1))
+      {
+        break;
+      }
+    }
+    slots.set((int)(claimed & (CAPACITY - 1)), message);
+    if (idle)
+    {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Returns whether lines at a level are displayed, so callers can skip
+   * building lines nobody will see.
+   */
+  public boolean isEnabled(Level level)
+  {
+    return level.compareTo(this.level) >= 0;
+  }
+
+  /**
+   * Sets the lowest level displayed.
+   */
+  public void setLevel(Level level)
+  {
+    this.level = level;
+  }
+
+  /**
+   * Returns the number of lines dropped because the ring was full.
+   */
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Waits until every line queued so far has been written.
+   *
+   * @param millis The longest time to wait.
+   */
+  public void flush(long millis)
+  {
+    long target = tail.get();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    while (head < target && System.nanoTime() < deadline)
+    {
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(100000);
+    }
+  }
+
+  /**
+   * Writes waiting lines in batches for as long as the program runs.
+   * Runs on the writer thread.
+   */
+  private void run()
+  {
+    StringBuilder batch = new StringBuilder(MAX_BATCH);
+    String separator = System.lineSeparator();
+    long reported = 0;
+    while (true)
+    {
+      long next = head;
+      String line;
+      while (batch.length() < MAX_BATCH
+        && (line = slots.getAndSet((int)(next & (CAPACITY - 1)), null)) != null)
+      {
+        batch.append(line).append(separator);
+        next++;
+      }
+      long lost = dropped.get();
+      if (lost != reported)
+      {
+        batch.append("[").append(lost - reported).append(" lines dropped]").append(separator);
+        reported = lost;
+      }
+      if (batch.length() > 0)
+      {
+        out.print(batch);
+        out.flush();
+        head = next; // only now is flush sure the lines are out
+        if (batch.capacity() > 2 * MAX_BATCH)
+        {
+          batch = new StringBuilder(MAX_BATCH);
+        }
+        batch.setLength(0);
+        continue;
+      }
+      idle = true;
+      if (slots.get((int)(next & (CAPACITY - 1))) == null)
+      {
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+      }
+      idle = false;
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Starts displaying lines on a console, dropping or waiting according
+   * to the default.
+   *
+   * @param out The console.
+   */
+  public static AsyncDisplay start(PrintStream out)
+  {
+    return start(out, DEFAULT_WHEN_FULL);
+  }
+
+  /**
+   * Starts displaying lines on a console: starts the writer, and a
+   * shutdown hook that writes the lines still waiting at exit.
+   *
+   * @param out The console.
+   * @param whenFull What happens to a line when the ring is full.
+   */
+  public static AsyncDisplay start(PrintStream out, WhenFull whenFull)
+  {
+    AsyncDisplay display = new AsyncDisplay(out, whenFull);
+    display.writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> display.flush(1000)));
+    return display;
+  }
+}
+//End of AsyncDisplay class
@@ -0,0 +1,246 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compact codec.  Each message is one frame: a one byte opcode (see
+ * Frame), the length of the payload as an unsigned LEB128 varint, and the
+ * payload in UTF-8.  A short chat line therefore costs two bytes of
+ * overhead instead of a reset, a type code and a two byte length, and
+ * there is no stream header or handle table.<p>
+ *
+ * Frames with one of the text opcodes are decoded to their text, so the
+ * server and client see the same strings as with the serialization
+ * codec.  Frames with an opcode unknown to this version are decoded to a
+ * Frame.
+ */
+public final class BinaryCodec implements MessageCodec
+{
+  //Instance methods ************************************************
+
+  public int id()
+  {
+    return BINARY;
+  }
+
+  public ByteBuffer header()
+  {
+    return ByteBuffer.allocate(0);
+  }
+
+  /**
+   * Encodes a String or a Frame.
+   *
+   * @param msg The message to encode.
+   * @return A buffer ready to be written.
+   * @exception NotSerializableException If msg is of any other type.
+   */
+  public ByteBuffer encode(Object msg) throws IOException
+  {
+    Frame frame = frame(msg);
+    int length = utf8Length(frame.getPayload());
+    ByteBuffer buffer = ByteBuffer.allocate(frameSize(length));
+    putFrame(buffer, frame, length);
+    buffer.flip();
+    return buffer;
+  }
+
+  public Object decode(ByteBuffer in) throws IOException
+  {
+    int start = in.position();
+    if (in.remaining() < 2)
+    {
+      return null;
+    }
+    byte opcode = in.get();
+    int length = getVarint(in);
+    if (length < 0 || in.remaining() < length)
+    {
+      in.position(start);
+      return null;
+    }
+
+    String payload;
+    if (in.hasArray())
+    {
+      payload = new String(in.array(), in.arrayOffset() + in.position(), length,
+        StandardCharsets.UTF_8);
+      in.position(in.position() + length);
+    }
+    else
+    {
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      payload = new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    Frame frame = new Frame(opcode, payload);
+    return frame.isText() ? frame.toString() : frame;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the frame for a String or a Frame.
+   *
+   * @exception NotSerializableException If msg is of any other type.
+   */
+  static Frame frame(Object msg) throws IOException
+  {
+    if (msg instanceof Frame)
+    {
+      return (Frame)msg;
+    }
+    if (msg instanceof String)
+    {
+      return Frame.of((String)msg);
+    }
+    throw new NotSerializableException(msg == null ? "null" : msg.getClass().getName());
+  }
+
+  /**
+   * Returns the size of a frame whose payload is length bytes long.
+   */
+  static int frameSize(int length)
+  {
+    return 1 + varintSize(length) + length;
+  }
+
+  /**
+   * Writes a frame.
+   *
+   * @param length The length of the payload in UTF-8.
+   */
+  static void putFrame(ByteBuffer buffer, Frame frame, int length)
+  {
+    buffer.put(frame.getOpcode());
+    putVarint(buffer, length);
+    putUtf8(buffer, frame.getPayload());
+  }
+
+  /**
+   * Returns the number of bytes of the string in UTF-8.  Unpaired
+   * surrogates count as the one byte '?' they are replaced with.
+   */
+  static int utf8Length(String string)
+  {
+    int length = 0;
+    for (int i = 0; i < string.length(); i++)
+    {
+      char c = string.charAt(i);
+      if (c < 0x80)
+        length += 1;
+      else if (c < 0x800)
+        length += 2;
+      else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+        && Character.isLowSurrogate(string.charAt(i + 1)))
+      {
+        length += 4;
+        i++;
+      }
+      else if (Character.isSurrogate(c))
+        length += 1;
+      else
+        length += 3;
+    }
+    return length;
+  }
+
+  /**
+   * Writes the string in UTF-8, without a length prefix.
+   */
+  static void putUtf8(ByteBuffer buffer, String string)
+  {
+    for (int i = 0; i < string.length(); i++)
+    {
+      char c = string.charAt(i);
+      if (c < 0x80)
+      {
+        buffer.put((byte)c);
+      }
+      else if (c < 0x800)
+      {
+        buffer.put((byte)(0xc0 | (c >> 6)));
+        buffer.put((byte)(0x80 | (c & 0x3f)));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+        && Character.isLowSurrogate(string.charAt(i + 1)))
+      {
+        int code = Character.toCodePoint(c, string.charAt(++i));
+        buffer.put((byte)(0xf0 | (code >> 18)));
+        buffer.put((byte)(0x80 | ((code >> 12) & 0x3f)));
+        buffer.put((byte)(0x80 | ((code >> 6) & 0x3f)));
+        buffer.put((byte)(0x80 | (code & 0x3f)));
+      }
+      else if (Character.isSurrogate(c))
+      {
+        buffer.put((byte)'?');
+      }
+      else
+      {
+        buffer.put((byte)(0xe0 | (c >> 12)));
+        buffer.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+        buffer.put((byte)(0x80 | (c & 0x3f)));
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bytes of value as a varint.
+   */
+  static int varintSize(int value)
+  {
+    int size = 1;
+    while ((value >>>= 7) != 0)
+    {
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Writes a non-negative int as an unsigned LEB128 varint.
+   */
+  static void putVarint(ByteBuffer buffer, int value)
+  {
+    while ((value & ~0x7f) != 0)
+    {
+      buffer.put((byte)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte)value);
+  }
+
+  /**
+   * Reads a varint written by putVarint.
+   *
+   * @return The value, or -1 if the buffer ends inside the varint.
+   * @exception StreamCorruptedException If the value is larger than
+   *            MAX_MESSAGE_SIZE.
+   */
+  static int getVarint(ByteBuffer buffer) throws IOException
+  {
+    int value = 0;
+    for (int shift = 0; shift < 28; shift += 7)
+    {
+      if (!buffer.hasRemaining())
+      {
+        return -1;
+      }
+      byte b = buffer.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0)
+      {
+        if (value > MAX_MESSAGE_SIZE)
+        {
+          throw new StreamCorruptedException("message too large: " + value);
+        }
+        return value;
+      }
+    }
+    throw new StreamCorruptedException("message too large");
+  }
+}
+//End of BinaryCodec class
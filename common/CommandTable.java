@@ -0,0 +1,225 @@
+package common;
+
+import java.io.IOException;
+
+/**
+ * Recognizes the <code>#command argument</code> lines typed into the
+ * consoles or sent to the server, and calls the handler registered for
+ * the command.<p>
+ *
+ * A line is scanned once.  A line that does not start with '#', which is
+ * every chat line, is rejected after looking at its first character.  A
+ * command is looked up by hashing its name in place, so dispatching
+ * allocates nothing either; handlers are given the line and where its
+ * argument starts, and only take out the words they need.<p>
+ *
+ * Commands are registered with add, normally when the table is built;
+ * a table must not be changed while another thread dispatches with it.
+ *
+ * @param <C> What handlers act on, e.g. the client a line came from.
+ */
+public class CommandTable<C>
+{
+  //Class variables *************************************************
+
+  /**
+   * Starts every command.
+   */
+  final public static char PREFIX = '#';
+
+  /**
+   * Handles one command.
+   *
+   * @param <C> What the handler acts on.
+   */
+  public interface Handler<C>
+  {
+    /**
+     * @param context What the command acts on.
+     * @param line The whole line.
+     * @param argument The index in the line where the argument starts,
+     *        or the length of the line if there is none.
+     */
+    void handle(C context, String line, int argument) throws IOException;
+  }
+
+  //Instance variables **********************************************
+
+  /**
+   * Command names without the prefix, in an open-addressing table.
+   */
+  private String[] names = new String[16];
+
+  private Handler<C>[] handlers = newHandlers(16);
+
+  private int size;
+
+  /**
+   * Called for commands not in the table, or null to leave them to the
+   * caller.
+   */
+  private Handler<C> otherwise;
+
+  //Instance methods ************************************************
+
+  /**
+   * Registers a command, replacing any handler it already had.
+   *
+   * @param name The name of the command, without the prefix.
+   * @param handler The handler.
+   * @return This table.
+   */
+  public CommandTable<C> add(String name, Handler<C> handler)
+  {
+    if (2 * (size + 1) > names.length)
+    {
+      String[] oldNames = names;
+      Handler<C>[] oldHandlers = handlers;
+      names = new String[2 * oldNames.length];
+      handlers = newHandlers(2 * oldNames.length);
+      size = 0;
+      for (int i = 0; i < oldNames.length; i++)
+      {
+        if (oldNames[i] != null)
+        {
+          add(oldNames[i], oldHandlers[i]);
+        }
+      }
+    }
+    int slot = name.hashCode() & (names.length - 1);
+    while (names[slot] != null && !names[slot].equals(name))
+    {
+      slot = (slot + 1) & (names.length - 1);
+    }
+    if (names[slot] == null)
+    {
+      size++;
+    }
+    names[slot] = name;
+    handlers[slot] = handler;
+    return this;
+  }
+
+  /**
+   * Sets the handler of commands that are not in the table.
+   *
+   * @param handler The handler, or null to leave them to the caller.
+   * @return This table.
+   */
+  public CommandTable<C> otherwise(Handler<C> handler)
+  {
+    this.otherwise = handler;
+    return this;
+  }
+
+  /**
+   * Calls the handler of the command on a line.
+   *
+   * @param context What the command acts on.
+   * @param line The line.
+   * @return Whether a handler was called; false if the line is not a
+   *         command, or is an unknown command and there is no handler
+   *         for those.
+   */
+  public boolean dispatch(C context, String line) throws IOException
+  {
+    if (line.isEmpty() || line.charAt(0) != PREFIX)
+    {
+      return false;
+    }
+    int end = 1;
+    int hash = 0;
+    while (end < line.length() && line.charAt(end) != ' ')
+    {
+      hash = 31 * hash + line.charAt(end);
+      end++;
+    }
+    int length = end - 1;
+    int slot = hash & (names.length - 1);
+    for (String name; (name = names[slot]) != null; slot = (slot + 1) & (names.length - 1))
+    {
+      if (name.length() == length && line.regionMatches(1, name, 0, length))
+      {
+        handlers[slot].handle(context, line, argumentStart(line, end));
+        return true;
+      }
+    }
+    if (otherwise == null)
+    {
+      return false;
+    }
+    otherwise.handle(context, line, argumentStart(line, end));
+    return true;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns whether a command has an argument.
+   */
+  public static boolean hasArgument(String line, int argument)
+  {
+    return argument < line.length();
+  }
+
+  /**
+   * Returns the first word of a command's argument, as split(" ")[1]
+   * would.
+   *
+   * @return The word, or null if there is no argument.
+   */
+  public static String word(String line, int argument)
+  {
+    if (argument >= line.length())
+    {
+      return null;
+    }
+    int end = line.indexOf(' ', argument);
+    return line.substring(argument, end < 0 ? line.length() : end);
+  }
+
+  /**
+   * Returns the index of the word after the first word of a command's
+   * argument, or the length of the line if there is none.
+   */
+  public static int nextWord(String line, int argument)
+  {
+    int end = line.indexOf(' ', argument);
+    return end < 0 ? line.length() : argumentStart(line, end);
+  }
+
+  /**
+   * Returns a command's argument from a given index to the end of the
+   * line, without trailing spaces.
+   *
+   * @return The text, or null if there is none.
+   */
+  public static String rest(String line, int argument)
+  {
+    int end = line.length();
+    while (end > argument && line.charAt(end - 1) == ' ')
+    {
+      end--;
+    }
+    return end > argument ? line.substring(argument, end) : null;
+  }
+
+  /**
+   * Skips the spaces after a command name or word.
+   */
+  private static int argumentStart(String line, int end)
+  {
+    while (end < line.length() && line.charAt(end) == ' ')
+    {
+      end++;
+    }
+    return end;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static <C> Handler<C>[] newHandlers(int length)
+  {
+    return (Handler<C>[])new Handler[length];
+  }
+}
+//End of CommandTable class
@@ -0,0 +1,379 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary codec with compression.  Messages are written as binary
+ * frames (see BinaryCodec); a message whose payload is at least
+ * <code>simplechat.compressThreshold</code> bytes long (256 by default)
+ * is deflated into a COMPRESSED frame instead, and so is a burst of
+ * messages written together, such as the recent messages a client gets
+ * when it logs on.  Short chat lines would not shrink and are left as
+ * they are.<p>
+ *
+ * A COMPRESSED frame carries the length of the frames it holds as a
+ * varint, followed by those frames in raw deflate format compressed
+ * against a preset dictionary of text every chat session repeats, so
+ * that even a single message of a few hundred bytes compresses.  If
+ * deflating does not make a message smaller it is sent uncompressed.<p>
+ *
+ * Nothing is allocated per message beyond the encoded buffer itself:
+ * encoding borrows a Deflater and its scratch buffers from a pool the
+ * size of the number of processors, since a Deflater holds about 256 KB
+ * of native memory and there may be a thread per connection; each
+ * connection reuses one Inflater, freed when the connection closes.
+ * Deflating is stateless from one message to the next, so encoded
+ * messages can still be shared by every connection using this codec.
+ */
+public final class DeflateCodec implements MessageCodec
+{
+  //Class variables *************************************************
+
+  /**
+   * The smallest payload, in bytes, that is compressed.
+   */
+  final public static int DEFAULT_THRESHOLD = Integer.getInteger("simplechat.compressThreshold", 256);
+
+  /**
+   * Text both sides prime their compressor with.  Deflate looks for
+   * matches in the dictionary as if it preceded every message; the most
+   * likely text goes last, nearest the message.
+   */
+  final static byte[] DICTIONARY = ("Connection to server was terminated. Abnormal termination "
+    + "of connection. WARNING - The server has stopped listening for connections. ERROR - "
+    + "is offline. Message delivered to  (private): #history #channels #leave #join #msg "
+    + "#who Users: [ has disconnected.  has logged on. the and that this with you for is "
+    + "have what just are was not it's I'm but about all so can will there your http://"
+    + "https://www. .com ").getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * Compressors not in use.  One is made when none is free, and ended
+   * rather than kept if the pool is full.
+   */
+  private static final ArrayBlockingQueue<Compressor> COMPRESSORS =
+    new ArrayBlockingQueue<Compressor>(Runtime.getRuntime().availableProcessors());
+
+  //Instance variables **********************************************
+
+  private final int threshold;
+
+  private final BinaryCodec binary = new BinaryCodec();
+
+  /**
+   * Created when the first COMPRESSED frame arrives.  Guarded by this,
+   * since close may come from any thread.
+   */
+  private Inflater inflater;
+
+  private boolean closed;
+
+  /**
+   * Reused to hold inflated frames.
+   */
+  private byte[] inflatedBytes;
+
+  /**
+   * The inflated frames not decoded yet, or null.
+   */
+  private ByteBuffer inflated;
+
+  //Constructors ****************************************************
+
+  public DeflateCodec()
+  {
+    this(DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * @param threshold The smallest payload, in bytes, to compress.
+   */
+  public DeflateCodec(int threshold)
+  {
+    this.threshold = threshold;
+  }
+
+  //Instance methods ************************************************
+
+  public int id()
+  {
+    return DEFLATE;
+  }
+
+  public ByteBuffer header()
+  {
+    return ByteBuffer.allocate(0);
+  }
+
+  /**
+   * Encodes a String or a Frame, compressed if its payload is at least
+   * the threshold long and compressing makes it smaller.
+   *
+   * @param msg The message to encode.
+   * @return A buffer ready to be written.
+   * @exception NotSerializableException If msg is of any other type.
+   */
+  public ByteBuffer encode(Object msg) throws IOException
+  {
+    Frame frame = BinaryCodec.frame(msg);
+    int length = BinaryCodec.utf8Length(frame.getPayload());
+    int size = BinaryCodec.frameSize(length);
+    if (length >= threshold)
+    {
+      Compressor compressor = borrow();
+      try
+      {
+        ByteBuffer raw = compressor.raw(size);
+        BinaryCodec.putFrame(raw, frame, length);
+        ByteBuffer compressed = compressor.compress(raw.flip());
+        if (compressed != null)
+        {
+          return compressed;
+        }
+      }
+      finally
+      {
+        giveBack(compressor);
+      }
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    BinaryCodec.putFrame(buffer, frame, length);
+    return buffer.flip();
+  }
+
+  /**
+   * Compresses messages written together into one COMPRESSED frame if
+   * they add up to at least the threshold.
+   */
+  public ByteBuffer pack(ByteBuffer messages)
+  {
+    if (messages.remaining() < threshold || messages.remaining() > MAX_MESSAGE_SIZE
+      || holdsCompressed(messages))
+    {
+      return messages;
+    }
+    Compressor compressor = borrow();
+    try
+    {
+      ByteBuffer compressed = compressor.compress(messages.duplicate());
+      return compressed == null ? messages : compressed;
+    }
+    finally
+    {
+      giveBack(compressor);
+    }
+  }
+
+  public Object decode(ByteBuffer in) throws IOException
+  {
+    while (true)
+    {
+      if (inflated != null)
+      {
+        if (inflated.get(inflated.position()) == Frame.COMPRESSED)
+        {
+          throw new StreamCorruptedException("nested compressed frame");
+        }
+        Object msg = binary.decode(inflated);
+        if (msg == null)
+        {
+          throw new StreamCorruptedException("truncated compressed frame");
+        }
+        if (!inflated.hasRemaining())
+        {
+          inflated = null;
+        }
+        return msg;
+      }
+
+      int start = in.position();
+      if (in.remaining() < 2)
+      {
+        return null;
+      }
+      if (in.get(start) != Frame.COMPRESSED)
+      {
+        return binary.decode(in);
+      }
+      in.get();
+      int length = BinaryCodec.getVarint(in);
+      if (length < 0 || in.remaining() < length)
+      {
+        in.position(start);
+        return null;
+      }
+      int end = in.position() + length;
+      int rawLength = BinaryCodec.getVarint(in);
+      if (rawLength <= 0 || in.position() > end)
+      {
+        throw new StreamCorruptedException("invalid compressed frame");
+      }
+      inflate(in.slice(in.position(), end - in.position()), rawLength);
+      in.position(end);
+    }
+  }
+
+  /**
+   * Inflates the frames of a COMPRESSED frame into inflated.
+   */
+  private synchronized void inflate(ByteBuffer compressed, int rawLength) throws IOException
+  {
+    if (closed)
+    {
+      throw new EOFException("codec closed");
+    }
+    if (inflater == null)
+    {
+      inflater = new Inflater(true);
+    }
+    if (inflatedBytes == null || inflatedBytes.length < rawLength)
+    {
+      inflatedBytes = new byte[Math.max(rawLength, 4096)];
+    }
+    inflater.reset();
+    inflater.setDictionary(DICTIONARY);
+    inflater.setInput(compressed);
+    try
+    {
+      int count = inflater.inflate(inflatedBytes, 0, rawLength);
+      if (count != rawLength || !inflater.finished())
+      {
+        throw new StreamCorruptedException("compressed frame has the wrong length");
+      }
+    }
+    catch (DataFormatException e)
+    {
+      throw new StreamCorruptedException("invalid compressed frame: " + e.getMessage());
+    }
+    inflated = ByteBuffer.wrap(inflatedBytes, 0, rawLength);
+  }
+
+  /**
+   * Frees the Inflater.
+   */
+  public synchronized void close()
+  {
+    closed = true;
+    if (inflater != null)
+    {
+      inflater.end();
+      inflater = null;
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Takes a compressor from the pool, or makes one if none is free.
+   */
+  private static Compressor borrow()
+  {
+    Compressor compressor = COMPRESSORS.poll();
+    return compressor == null ? new Compressor() : compressor;
+  }
+
+  /**
+   * Puts a compressor back in the pool, or ends it if the pool is full.
+   */
+  private static void giveBack(Compressor compressor)
+  {
+    if (!COMPRESSORS.offer(compressor))
+    {
+      compressor.deflater.end();
+    }
+  }
+
+  /**
+   * Returns whether any of the frames in a buffer is a COMPRESSED one.
+   */
+  private static boolean holdsCompressed(ByteBuffer frames)
+  {
+    ByteBuffer scan = frames.duplicate();
+    try
+    {
+      while (scan.hasRemaining())
+      {
+        if (scan.get() == Frame.COMPRESSED)
+        {
+          return true;
+        }
+        int length = BinaryCodec.getVarint(scan);
+        if (length < 0 || length > scan.remaining())
+        {
+          return true;
+        }
+        scan.position(scan.position() + length);
+      }
+    }
+    catch (IOException e)
+    {
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * A Deflater and its scratch buffers, used by one thread at a time.
+   */
+  private static final class Compressor
+  {
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+    ByteBuffer raw = ByteBuffer.allocate(4096);
+
+    byte[] out = new byte[4096];
+
+    /**
+     * Returns the scratch buffer, cleared and at least size long.
+     */
+    ByteBuffer raw(int size)
+    {
+      if (raw.capacity() < size)
+      {
+        raw = ByteBuffer.allocate(Math.max(size, 2 * raw.capacity()));
+      }
+      return raw.clear();
+    }
+
+    /**
+     * Deflates frames into a COMPRESSED frame.
+     *
+     * @return The COMPRESSED frame, or null if it would not be smaller.
+     */
+    ByteBuffer compress(ByteBuffer frames)
+    {
+      int rawLength = frames.remaining();
+      if (out.length < rawLength)
+      {
+        out = new byte[Math.max(rawLength, 2 * out.length)];
+      }
+      deflater.reset();
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(frames);
+      deflater.finish();
+      int count = deflater.deflate(out, 0, rawLength);
+      if (!deflater.finished())
+      {
+        return null;
+      }
+      int length = BinaryCodec.varintSize(rawLength) + count;
+      int size = 1 + BinaryCodec.varintSize(length) + length;
+      if (size >= rawLength)
+      {
+        return null;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      buffer.put(Frame.COMPRESSED);
+      BinaryCodec.putVarint(buffer, length);
+      BinaryCodec.putVarint(buffer, rawLength);
+      buffer.put(out, 0, count);
+      return buffer.flip();
+    }
+  }
+}
+//End of DeflateCodec class
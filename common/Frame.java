@@ -0,0 +1,315 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A chat message tagged with its kind.  The binary codec writes the kind
+ * as the opcode of the frame so that the text itself can stay short: a
+ * login, for instance, only carries the login ID.  The serialization
+ * codec just writes the text.<p>
+ *
+ * Strings passed to the codecs are classified with of, so most code
+ * keeps sending plain strings and only uses frames for kinds that
+ * cannot be told from the text, such as server notices.
+ */
+public final class Frame
+{
+  //Class variables *************************************************
+
+  /**
+   * A login: "#login &lt;id&gt;".  The payload is the login ID.
+   */
+  final public static byte LOGIN = 1;
+
+  /**
+   * A line of chat.
+   */
+  final public static byte CHAT = 2;
+
+  /**
+   * A notice from the server, e.g. that someone logged on.
+   */
+  final public static byte NOTICE = 3;
+
+  /**
+   * Any other command starting with '#'.  The payload is the whole line.
+   */
+  final public static byte COMMAND = 4;
+
+  /**
+   * One or more frames compressed together; see DeflateCodec.  Never
+   * seen outside the codec.
+   */
+  final public static byte COMPRESSED = 5;
+
+  /**
+   * A message of a chat channel numbered by the server, so that a client
+   * that reconnects can ask for what it missed.  The payload is the
+   * sequence number, a space and the text.  Only codecs with frames
+   * send the number; to the serialization codec it is just the text.
+   */
+  final public static byte SEQUENCED = 6;
+
+  /**
+   * A heartbeat asking the other side to show it is still there.  It is
+   * answered with a PONG carrying the same payload.  Neither is handed to
+   * handleMessageFromClient or handleMessageFromServer, and neither is
+   * sent over the serialization codec, which would show them as text.
+   */
+  final public static byte PING = 7;
+
+  /**
+   * The answer to a PING.
+   */
+  final public static byte PONG = 8;
+
+  /**
+   * Who came and went.  The payload is login IDs separated by spaces,
+   * each after a '+' for a user who logged on or a '-' for one who left;
+   * or, for everybody logged on, a '=' followed by their login IDs.  As
+   * text it reads like the notices it replaces.
+   */
+  final public static byte PRESENCE = 9;
+
+  /**
+   * The users typing in a channel.  The payload is their login IDs
+   * separated by spaces.  Like PING, it is not sent over the
+   * serialization codec.
+   */
+  final public static byte TYPING = 10;
+
+  /**
+   * The token a client presents with <code>#resume</code> to show that
+   * it is the one that logged on.  The payload is the token.  Being a
+   * frame of its own, it cannot be forged by text sent to the client,
+   * and like PING it is not sent over the serialization codec.
+   */
+  final public static byte TOKEN = 11;
+
+  //Instance variables **********************************************
+
+  private final byte opcode;
+
+  private final String payload;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a frame.
+   *
+   * @param opcode The kind of message.
+   * @param payload The text carried by the frame.
+   */
+  public Frame(byte opcode, String payload)
+  {
+    this.opcode = opcode;
+    this.payload = payload;
+  }
+
+  //Instance methods ************************************************
+
+  public byte getOpcode()
+  {
+    return opcode;
+  }
+
+  public String getPayload()
+  {
+    return payload;
+  }
+
+  /**
+   * Returns whether the frame carries one of the kinds of text above, as
+   * opposed to a kind added by a later version of the protocol.
+   */
+  public boolean isText()
+  {
+    return opcode >= LOGIN && opcode <= COMMAND;
+  }
+
+  /**
+   * Returns the sequence number of a SEQUENCED frame, or -1.
+   */
+  public long getSequence()
+  {
+    if (opcode != SEQUENCED)
+    {
+      return -1;
+    }
+    int space = payload.indexOf(' ');
+    try
+    {
+      return Long.parseLong(space < 0 ? payload : payload.substring(0, space));
+    }
+    catch (NumberFormatException e)
+    {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the text of the message as it was typed or sent.
+   */
+  public String toString()
+  {
+    if (opcode == SEQUENCED)
+    {
+      return payload.substring(payload.indexOf(' ') + 1);
+    }
+    if (opcode == PRESENCE)
+    {
+      return presenceText();
+    }
+    if (opcode == TYPING)
+    {
+      List<String> typing = words(payload, 0);
+      return String.join(", ", typing) + (typing.size() == 1 ? " is typing..." : " are typing...");
+    }
+    return opcode == LOGIN ? "#login " + payload : payload;
+  }
+
+  /**
+   * Returns the login IDs of a PRESENCE or TYPING frame, without their
+   * '+' or '-'.
+   *
+   * @param prefix '+' or '-' for the users who logged on or left,
+   *        anything else for all of them.
+   */
+  public List<String> getLoginIDs(char prefix)
+  {
+    List<String> loginIDs = new ArrayList<String>();
+    for (String word : words(payload, payload.startsWith("=") ? 1 : 0))
+    {
+      char first = word.charAt(0);
+      boolean marked = first == '+' || first == '-';
+      if (prefix != '+' && prefix != '-' || first == prefix)
+      {
+        loginIDs.add(marked ? word.substring(1) : word);
+      }
+    }
+    return loginIDs;
+  }
+
+  /**
+   * Reads a PRESENCE frame the way the notices it replaces read.
+   */
+  private String presenceText()
+  {
+    if (payload.startsWith("="))
+    {
+      return "Users: " + getLoginIDs('=');
+    }
+    List<String> on = getLoginIDs('+');
+    List<String> off = getLoginIDs('-');
+    StringBuilder text = new StringBuilder();
+    if (!on.isEmpty())
+    {
+      text.append(String.join(", ", on)).append(on.size() == 1 ? " has" : " have").append(" logged on.");
+    }
+    if (!off.isEmpty())
+    {
+      text.append(text.length() > 0 ? " " : "").append(String.join(", ", off))
+        .append(off.size() == 1 ? " has" : " have").append(" disconnected.");
+    }
+    return text.toString();
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns a notice from the server.
+   *
+   * @param text The text of the notice.
+   */
+  public static Frame notice(String text)
+  {
+    return new Frame(NOTICE, text);
+  }
+
+  /**
+   * Returns a message of a chat channel with its sequence number.
+   *
+   * @param sequence The number of the message in its channel.
+   * @param text The text of the message.
+   */
+  public static Frame sequenced(long sequence, String text)
+  {
+    return new Frame(SEQUENCED, sequence + " " + text);
+  }
+
+  /**
+   * Returns the users who logged on and left since the last presence
+   * update.
+   *
+   * @param online Who logged on.
+   * @param offline Who left.
+   */
+  public static Frame presence(Collection<String> online, Collection<String> offline)
+  {
+    StringBuilder payload = new StringBuilder();
+    for (String loginID : online)
+    {
+      payload.append(payload.length() > 0 ? " +" : "+").append(loginID);
+    }
+    for (String loginID : offline)
+    {
+      payload.append(payload.length() > 0 ? " -" : "-").append(loginID);
+    }
+    return new Frame(PRESENCE, payload.toString());
+  }
+
+  /**
+   * Returns everybody logged on, as a PRESENCE frame.
+   *
+   * @param loginIDs Their login IDs.
+   */
+  public static Frame users(Collection<String> loginIDs)
+  {
+    return new Frame(PRESENCE, "=" + String.join(" ", loginIDs));
+  }
+
+  /**
+   * Returns the users typing in a channel.
+   *
+   * @param loginIDs Their login IDs.
+   */
+  public static Frame typing(Collection<String> loginIDs)
+  {
+    return new Frame(TYPING, String.join(" ", loginIDs));
+  }
+
+  /**
+   * Returns the words of a payload from an index on.
+   */
+  private static List<String> words(String payload, int from)
+  {
+    List<String> words = new ArrayList<String>();
+    for (String word : payload.substring(from).split(" "))
+    {
+      if (!word.isEmpty())
+      {
+        words.add(word);
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Classifies a line of text: "#login" alone or followed by a space is
+   * a login whose ID follows that space, any other line starting with
+   * '#' is a command and everything else is chat.
+   *
+   * @param text The line of text.
+   */
+  public static Frame of(String text)
+  {
+    if (text.startsWith("#login") && (text.length() == 6 || text.charAt(6) == ' '))
+    {
+      return new Frame(LOGIN, text.length() == 6 ? "" : text.substring(7));
+    }
+    return new Frame(text.startsWith("#") ? COMMAND : CHAT, text);
+  }
+}
+//End of Frame class
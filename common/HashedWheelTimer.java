@@ -0,0 +1,273 @@
+package common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer for very many timeouts that are rarely exact and mostly put
+ * off, such as the idle timeouts of connections.  Timeouts hang in a
+ * ring of buckets, one per tick, which a single thread walks one bucket
+ * per tick; a timeout further away than one turn of the ring waits in
+ * its bucket for as many turns as it needs.  Scheduling is O(1) and each
+ * tick only looks at one bucket, so a hundred thousand timeouts cost as
+ * little per tick as a few hundred.  Timeouts fire up to one tick late.<p>
+ *
+ * A Timeout is an object the caller keeps and schedules again and again,
+ * so rescheduling allocates nothing; a timeout rescheduled by its own
+ * expire method goes straight into its bucket.  The timer thread parks
+ * while no timeout is scheduled.
+ */
+public final class HashedWheelTimer
+{
+  //Class variables *************************************************
+
+  /**
+   * The default length of a tick, in milliseconds.
+   */
+  final public static int DEFAULT_TICK = 100;
+
+  /**
+   * The default number of buckets, a power of two.
+   */
+  final public static int DEFAULT_WHEEL_SIZE = 512;
+
+  private static HashedWheelTimer shared;
+
+  //Instance variables **********************************************
+
+  private final long tick;
+
+  private final int mask;
+
+  /**
+   * The first timeout of each bucket, linked through Timeout.next.
+   */
+  private final Timeout[] buckets;
+
+  /**
+   * Timeouts scheduled by other threads, waiting to be put in their
+   * buckets by the timer thread.
+   */
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+  private final Thread thread;
+
+  /**
+   * When tick 0 started, in System.nanoTime terms.
+   */
+  private final long start;
+
+  /**
+   * The number of the tick the timer thread is at.  Only used by the
+   * timer thread.
+   */
+  private long current;
+
+  /**
+   * The number of timeouts in buckets.  Only used by the timer thread.
+   */
+  private int count;
+
+  private volatile boolean parked;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs and starts a timer.
+   *
+   * @param name The name of the timer thread.
+   * @param tickMillis The length of a tick, in milliseconds.
+   * @param wheelSize The number of buckets, rounded up to a power of two.
+   */
+  public HashedWheelTimer(String name, int tickMillis, int wheelSize)
+  {
+    if (tickMillis <= 0 || wheelSize <= 0 || wheelSize > 1 << 30)
+    {
+      throw new IllegalArgumentException("invalid tick or wheel size");
+    }
+    int size = Integer.highestOneBit(wheelSize - 1) << 1;
+    this.tick = tickMillis * 1000000L;
+    this.buckets = new Timeout[Math.max(1, size)];
+    this.mask = buckets.length - 1;
+    this.start = System.nanoTime();
+    this.thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Schedules a timeout that is not scheduled already.
+   *
+   * @param timeout The timeout.
+   * @param delayNanos How long from now it expires.
+   * @exception IllegalStateException If it is scheduled already.
+   */
+  public void schedule(Timeout timeout, long delayNanos)
+  {
+    if (timeout.scheduled)
+    {
+      throw new IllegalStateException("timeout already scheduled");
+    }
+    timeout.scheduled = true;
+    timeout.cancelled = false;
+    timeout.deadline = System.nanoTime() + Math.max(0, delayNanos);
+    if (Thread.currentThread() == thread)
+    {
+      place(timeout);
+    }
+    else
+    {
+      added.add(timeout);
+      if (parked)
+      {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  /**
+   * The body of the timer thread.
+   */
+  private void run()
+  {
+    while (true)
+    {
+      long wait = start + (current + 1) * tick - System.nanoTime();
+      if (count == 0 && added.isEmpty())
+      {
+        parked = true;
+        if (added.isEmpty())
+        {
+          LockSupport.park(this);
+        }
+        parked = false;
+        current = Math.max(current, (System.nanoTime() - start) / tick);
+        continue;
+      }
+      if (wait > 0)
+      {
+        LockSupport.parkNanos(this, wait);
+        continue;
+      }
+
+      Timeout timeout;
+      while ((timeout = added.poll()) != null)
+      {
+        place(timeout);
+      }
+      int bucket = (int)(current & mask);
+      current++; // what expiring timeouts reschedule goes after this tick
+      expire(bucket);
+    }
+  }
+
+  /**
+   * Puts a timeout in the bucket of its deadline.  A deadline already
+   * past goes in the current bucket.
+   */
+  private void place(Timeout timeout)
+  {
+    long ticks = Math.max(current, (timeout.deadline - start) / tick);
+    timeout.rounds = (ticks - current) >> Integer.numberOfTrailingZeros(buckets.length);
+    int bucket = (int)(ticks & mask);
+    timeout.next = buckets[bucket];
+    buckets[bucket] = timeout;
+    count++;
+  }
+
+  /**
+   * Fires the timeouts of a bucket that are due in this turn of the
+   * ring, and leaves the others for later turns.
+   */
+  private void expire(int bucket)
+  {
+    Timeout timeout = buckets[bucket];
+    buckets[bucket] = null;
+    while (timeout != null)
+    {
+      Timeout next = timeout.next;
+      timeout.next = null;
+      if (timeout.rounds > 0 && !timeout.cancelled)
+      {
+        timeout.rounds--;
+        timeout.next = buckets[bucket];
+        buckets[bucket] = timeout;
+      }
+      else
+      {
+        count--;
+        timeout.scheduled = false;
+        if (!timeout.cancelled)
+        {
+          try
+          {
+            timeout.expire();
+          }
+          catch (RuntimeException e) {} // one timeout must not stop the others
+        }
+      }
+      timeout = next;
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the timer shared by everything in this process that needs
+   * one, started on first use.
+   */
+  public static synchronized HashedWheelTimer shared()
+  {
+    if (shared == null)
+    {
+      shared = new HashedWheelTimer("wheel-timer", DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+    return shared;
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Something to be done once a delay is over.  Subclasses implement
+   * expire, which runs on the timer thread and should be quick, since
+   * every other timeout waits for it.
+   */
+  public abstract static class Timeout
+  {
+    private Timeout next;
+
+    private long deadline;
+
+    private long rounds;
+
+    private volatile boolean scheduled;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Called by the timer thread when the delay is over.
+     */
+    protected abstract void expire();
+
+    /**
+     * Keeps the timeout from expiring.  It stays in its bucket until its
+     * tick, so it cannot be scheduled again before then.
+     */
+    public void cancel()
+    {
+      cancelled = true;
+    }
+
+    /**
+     * Returns whether the timeout is scheduled and has not expired yet.
+     */
+    public boolean isScheduled()
+    {
+      return scheduled;
+    }
+  }
+}
+//End of HashedWheelTimer class
@@ -0,0 +1,175 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the messages exchanged by client and server into bytes on the
+ * wire and back.  A codec instance belongs to one connection: encoding
+ * may be called from any thread, decoding only from the thread reading
+ * the connection.<p>
+ *
+ * Client and server agree on a codec when the connection opens.  A
+ * client that wants anything but plain Java serialization starts with a
+ * four byte hello: the bytes 'S' and 'C', the protocol version and the
+ * ID of the codec it asks for.  The server answers with the same four
+ * bytes carrying the ID of the codec it picked.  A client that starts
+ * with an object stream header instead, like an OCSF client, gets the
+ * serialization codec without any hello.
+ */
+public interface MessageCodec
+{
+  /**
+   * ID of the codec writing Java object serialization streams.
+   */
+  final static int SERIALIZATION = 0;
+
+  /**
+   * ID of the codec writing length-prefixed binary frames.
+   */
+  final static int BINARY = 1;
+
+  /**
+   * ID of the codec writing binary frames, compressing large ones.
+   */
+  final static int DEFLATE = 2;
+
+  /**
+   * The number of codec IDs: IDs run from 0 to CODEC_COUNT - 1.
+   */
+  final static int CODEC_COUNT = 3;
+
+  /**
+   * The first two bytes of a hello.
+   */
+  final static byte HELLO_MAGIC_0 = 'S';
+  final static byte HELLO_MAGIC_1 = 'C';
+
+  /**
+   * The protocol version sent in the hello.
+   */
+  final static byte PROTOCOL_VERSION = 1;
+
+  /**
+   * The length of a hello in bytes.
+   */
+  final static int HELLO_LENGTH = 4;
+
+  /**
+   * The largest message accepted by any codec, in bytes on the wire.
+   */
+  final static int MAX_MESSAGE_SIZE = 1 << 20;
+
+  /**
+   * Returns the ID of this codec.
+   */
+  int id();
+
+  /**
+   * Returns the bytes to write once, before the first message, or an
+   * empty buffer.
+   */
+  ByteBuffer header();
+
+  /**
+   * Encodes one message.  Codecs do not keep any state between messages
+   * they encode, so the bytes can be shared by every connection using the
+   * same kind of codec.
+   *
+   * @param msg The message, a String or a Frame.
+   * @return A buffer ready to be written.
+   * @exception IOException If the message cannot be encoded.
+   */
+  ByteBuffer encode(Object msg) throws IOException;
+
+  /**
+   * Decodes the next complete message from the buffer.  If the buffer
+   * does not hold a complete message yet, its position is left where the
+   * message starts and null is returned.
+   *
+   * @param in The bytes received so far, in read mode.
+   * @return The message, or null if more bytes are needed.
+   * @exception IOException If the bytes are not a valid message.
+   */
+  Object decode(ByteBuffer in) throws IOException;
+
+  /**
+   * Returns several messages encoded by this codec, concatenated, as
+   * they should be written together.  Codecs that compress can
+   * compress them as a whole; the others return them unchanged.
+   *
+   * @param messages The encoded messages, ready to be written.
+   * @return A buffer ready to be written.
+   */
+  default ByteBuffer pack(ByteBuffer messages)
+  {
+    return messages;
+  }
+
+  /**
+   * Frees what the codec holds outside the heap, once its connection has
+   * closed.  Decoding afterwards fails.  The default does nothing.
+   */
+  default void close() {}
+
+  //Class methods ***************************************************
+
+  /**
+   * Creates a new codec for one connection.
+   *
+   * @param id The ID of the codec.
+   * @return The codec, or null if the ID is unknown.
+   */
+  static MessageCodec forId(int id)
+  {
+    switch (id)
+    {
+      case SERIALIZATION:
+        return new SerializationCodec();
+
+      case BINARY:
+        return new BinaryCodec();
+
+      case DEFLATE:
+        return new DeflateCodec();
+
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the ID of the codec named by a system property such as
+   * <code>simplechat.codec</code>: "deflate", "binary" or
+   * "serialization".
+   *
+   * @param property The name of the system property.
+   * @param defaultId The ID to use if the property is not set.
+   */
+  static int idFromProperty(String property, int defaultId)
+  {
+    String name = System.getProperty(property);
+    if (name == null)
+    {
+      return defaultId;
+    }
+    if (name.equalsIgnoreCase("serialization"))
+    {
+      return SERIALIZATION;
+    }
+    return name.equalsIgnoreCase("deflate") ? DEFLATE : BINARY;
+  }
+
+  /**
+   * Returns a hello asking for, or confirming, a codec.
+   *
+   * @param id The ID of the codec.
+   */
+  static ByteBuffer hello(int id)
+  {
+    ByteBuffer hello = ByteBuffer.allocate(HELLO_LENGTH);
+    hello.put(HELLO_MAGIC_0).put(HELLO_MAGIC_1).put(PROTOCOL_VERSION).put((byte)id).flip();
+    return hello;
+  }
+}
+//End of MessageCodec interface
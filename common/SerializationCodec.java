@@ -0,0 +1,280 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fallback codec: reads and writes the subset of the Java object
+ * serialization stream format that OCSF clients and servers use for chat,
+ * a stream header followed by strings, back-references to strings and
+ * resets.  Messages can therefore be framed out of a ByteBuffer without
+ * wrapping each socket in an ObjectInputStream.  Frames are written as
+ * their text.<p>
+ *
+ * Encoding is stateless and may be called from any thread; decoding keeps
+ * the handle table of one connection.
+ */
+public final class SerializationCodec implements MessageCodec
+{
+  //Class variables *************************************************
+
+  final static short STREAM_MAGIC = (short)0xaced;
+  final static short STREAM_VERSION = 5;
+
+  final static byte TC_NULL = (byte)0x70;
+  final static byte TC_REFERENCE = (byte)0x71;
+  final static byte TC_STRING = (byte)0x74;
+  final static byte TC_RESET = (byte)0x79;
+  final static byte TC_LONGSTRING = (byte)0x7c;
+
+  final static int BASE_WIRE_HANDLE = 0x7e0000;
+
+  //Instance variables **********************************************
+
+  /**
+   * Whether the stream header sent by the client has been consumed.
+   */
+  private boolean headerRead;
+
+  /**
+   * Strings read since the last reset, indexed by wire handle.
+   */
+  private final List<String> handles = new ArrayList<String>();
+
+  //Instance methods ************************************************
+
+  public int id()
+  {
+    return SERIALIZATION;
+  }
+
+  /**
+   * Returns the stream header that must be written once, before any
+   * message, so that the peer's ObjectInputStream can be created.
+   */
+  public ByteBuffer header()
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(4);
+    buffer.putShort(STREAM_MAGIC).putShort(STREAM_VERSION).flip();
+    return buffer;
+  }
+
+  /**
+   * Encodes one message.  Every message starts with a reset so that the
+   * peer never accumulates handles.  Strings and frames are written
+   * directly; any other object goes through a real ObjectOutputStream.
+   *
+   * @param msg The message to encode.
+   * @return A buffer ready to be written.
+   */
+  public ByteBuffer encode(Object msg) throws IOException
+  {
+    if (msg instanceof Frame)
+    {
+      msg = msg.toString();
+    }
+    if (!(msg instanceof String))
+    {
+      return encodeObject(msg);
+    }
+    String string = (String)msg;
+    long length = utfLength(string);
+    ByteBuffer buffer;
+    if (length <= 0xffff)
+    {
+      buffer = ByteBuffer.allocate(4 + (int)length);
+      buffer.put(TC_RESET).put(TC_STRING).putShort((short)length);
+    }
+    else
+    {
+      buffer = ByteBuffer.allocate(10 + (int)length);
+      buffer.put(TC_RESET).put(TC_LONGSTRING).putLong(length);
+    }
+    putUTF(buffer, string);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Decodes the next complete message from the buffer.  If the buffer
+   * does not hold a complete message yet, its position is left where the
+   * message starts and null is returned.  Null objects sent by the peer
+   * are skipped.
+   *
+   * @param in The bytes received so far, in read mode.
+   * @return The message, or null if more bytes are needed.
+   */
+  public Object decode(ByteBuffer in) throws IOException
+  {
+    while (true)
+    {
+      int start = in.position();
+      if (!headerRead)
+      {
+        if (in.remaining() < 4)
+        {
+          return null;
+        }
+        if (in.getShort() != STREAM_MAGIC || in.getShort() != STREAM_VERSION)
+        {
+          throw new StreamCorruptedException("invalid stream header");
+        }
+        headerRead = true;
+        continue;
+      }
+      if (!in.hasRemaining())
+      {
+        return null;
+      }
+      byte code = in.get();
+      switch (code)
+      {
+        case TC_RESET:
+          handles.clear();
+          break;
+
+        case TC_NULL:
+          break;
+
+        case TC_REFERENCE:
+          if (in.remaining() < 4)
+          {
+            in.position(start);
+            return null;
+          }
+          int handle = in.getInt() - BASE_WIRE_HANDLE;
+          if (handle < 0 || handle >= handles.size())
+          {
+            throw new StreamCorruptedException("invalid handle value");
+          }
+          return handles.get(handle);
+
+        case TC_STRING:
+        case TC_LONGSTRING:
+          int size = code == TC_STRING ? 2 : 8;
+          if (in.remaining() < size)
+          {
+            in.position(start);
+            return null;
+          }
+          long length = code == TC_STRING ? in.getShort() & 0xffff : in.getLong();
+          if (length < 0 || length > MAX_MESSAGE_SIZE)
+          {
+            throw new StreamCorruptedException("message too large: " + length);
+          }
+          if (in.remaining() < length)
+          {
+            in.position(start);
+            return null;
+          }
+          String string = getUTF(in, (int)length);
+          handles.add(string);
+          return string;
+
+        default:
+          throw new StreamCorruptedException
+            (String.format("unsupported type code: %02X", code));
+      }
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Serializes an arbitrary object without its stream header, preceded by
+   * a reset so that it can follow any earlier message on the stream.
+   */
+  private static ByteBuffer encodeObject(Object msg) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(TC_RESET);
+    ObjectOutputStream output = new ObjectOutputStream(bytes)
+    {
+      protected void writeStreamHeader() {}
+    };
+    output.writeObject(msg);
+    output.flush();
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  /**
+   * Returns the number of bytes needed to write the string in the
+   * modified UTF-8 encoding used by DataOutput.
+   */
+  static long utfLength(String string)
+  {
+    long length = 0;
+    for (int i = 0; i < string.length(); i++)
+    {
+      char c = string.charAt(i);
+      if (c >= 0x0001 && c <= 0x007f)
+        length += 1;
+      else if (c <= 0x07ff)
+        length += 2;
+      else
+        length += 3;
+    }
+    return length;
+  }
+
+  /**
+   * Writes the string in modified UTF-8, without a length prefix.
+   */
+  static void putUTF(ByteBuffer buffer, String string)
+  {
+    for (int i = 0; i < string.length(); i++)
+    {
+      char c = string.charAt(i);
+      if (c >= 0x0001 && c <= 0x007f)
+      {
+        buffer.put((byte)c);
+      }
+      else if (c <= 0x07ff)
+      {
+        buffer.put((byte)(0xc0 | ((c >> 6) & 0x1f)));
+        buffer.put((byte)(0x80 | (c & 0x3f)));
+      }
+      else
+      {
+        buffer.put((byte)(0xe0 | ((c >> 12) & 0x0f)));
+        buffer.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+        buffer.put((byte)(0x80 | (c & 0x3f)));
+      }
+    }
+  }
+
+  /**
+   * Reads length bytes of modified UTF-8 from the buffer.
+   */
+  static String getUTF(ByteBuffer buffer, int length) throws IOException
+  {
+    char[] chars = new char[length];
+    int count = 0;
+    int end = buffer.position() + length;
+    while (buffer.position() < end)
+    {
+      int b = buffer.get() & 0xff;
+      if (b < 0x80)
+      {
+        chars[count++] = (char)b;
+      }
+      else if ((b & 0xe0) == 0xc0 && buffer.position() < end)
+      {
+        chars[count++] = (char)(((b & 0x1f) << 6) | (buffer.get() & 0x3f));
+      }
+      else if ((b & 0xf0) == 0xe0 && buffer.position() + 1 < end)
+      {
+        chars[count++] = (char)(((b & 0x0f) << 12)
+          | ((buffer.get() & 0x3f) << 6) | (buffer.get() & 0x3f));
+      }
+      else
+      {
+        throw new UTFDataFormatException("malformed input around byte " + buffer.position());
+      }
+    }
+    return new String(chars, 0, count);
+  }
+}
+//End of SerializationCodec class
@@ -0,0 +1,509 @@
+package common;
+
+import java.io.*;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * A socket carrying TLS, read and written like the plain socket.  The
+ * handshake is done once, up front, by handshake(); after that read and
+ * write encrypt and decrypt through an SSLEngine, blocking or not as the
+ * socket does.  Reading and writing may happen on two threads at once.<p>
+ *
+ * Keys and certificates come from the standard
+ * <code>javax.net.ssl.keyStore</code> and <code>trustStore</code> system
+ * properties through the default SSLContext, so for a local test a
+ * self-signed certificate made by
+ * <pre>
+ * keytool -genkeypair -alias simplechat -keyalg EC -validity 365 \
+ *   -dname CN=localhost -ext san=dns:localhost,ip:127.0.0.1 \
+ *   -keystore chat.p12 -storepass changeit
+ * </pre>
+ * serves as both, on the server and on the client.  Clients check that
+ * the certificate names the host they connect to.<p>
+ *
+ * Sessions are resumed: the JDK keeps the sessions, or session tickets,
+ * of a context per server host and port, so a client reconnecting with
+ * the same context skips the full handshake.
+ */
+public final class TlsChannel implements ByteChannel
+{
+  //Class variables *************************************************
+
+  /**
+   * Whether servers and clients use TLS by default.
+   */
+  final public static boolean DEFAULT_TLS =
+    Boolean.parseBoolean(System.getProperty("simplechat.tls", "false"));
+
+  private final static ByteBuffer NO_BYTES = ByteBuffer.allocate(0);
+
+  //Instance variables **********************************************
+
+  private final SocketChannel socket;
+
+  private final SSLEngine engine;
+
+  /**
+   * Bytes received and not decrypted yet, in write mode.
+   */
+  private ByteBuffer netIn;
+
+  /**
+   * Bytes decrypted and not read yet, in read mode.
+   */
+  private ByteBuffer appIn;
+
+  /**
+   * Bytes encrypted and not sent yet, in read mode.
+   */
+  private ByteBuffer netOut;
+
+  /**
+   * Held while decrypting, and while encrypting and sending; a reader
+   * that has to send, e.g. to answer a key update, takes both.
+   */
+  private final ReentrantLock readLock = new ReentrantLock();
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  //Constructors ****************************************************
+
+  /**
+   * Wraps a connected socket.  Nothing is sent until handshake.
+   *
+   * @param socket The socket.
+   * @param engine The engine, in client or server mode.
+   */
+  public TlsChannel(SocketChannel socket, SSLEngine engine)
+  {
+    this.socket = socket;
+    this.engine = engine;
+    SSLSession session = engine.getSession();
+    netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+    appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+    netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Runs the handshake.  The socket must be blocking while it does.
+   *
+   * @exception SSLException If the peer cannot be trusted or does not
+   *            speak TLS.
+   */
+  public void handshake() throws IOException
+  {
+    engine.beginHandshake();
+    HandshakeStatus status = engine.getHandshakeStatus();
+    while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING)
+    {
+      switch (status)
+      {
+        case NEED_TASK:
+          runTasks();
+          status = engine.getHandshakeStatus();
+          break;
+
+        case NEED_WRAP:
+          status = wrap(NO_BYTES).getHandshakeStatus();
+          flushFully();
+          break;
+
+        default:
+          SSLEngineResult result = unwrap();
+          if (result.getStatus() == Status.CLOSED)
+          {
+            throw new EOFException("connection closed during TLS handshake");
+          }
+          if (result.getStatus() == Status.BUFFER_UNDERFLOW && socket.read(netIn) < 0)
+          {
+            throw new EOFException("connection closed during TLS handshake");
+          }
+          status = result.getHandshakeStatus();
+      }
+    }
+  }
+
+  /**
+   * Reads decrypted bytes.  On a non-blocking socket, reads what has
+   * arrived and returns 0 if no whole record has.
+   *
+   * @return The number of bytes read, or -1 at the end of the stream.
+   */
+  public int read(ByteBuffer dst) throws IOException
+  {
+    readLock.lock();
+    try
+    {
+      int read = 0;
+      while (dst.hasRemaining())
+      {
+        if (appIn.hasRemaining())
+        {
+          read += transfer(appIn, dst);
+          continue;
+        }
+        if (netIn.position() > 0)
+        {
+          SSLEngineResult result = unwrap();
+          if (result.getStatus() == Status.CLOSED)
+          {
+            return read > 0 ? read : -1;
+          }
+          if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+          {
+            runTasks();
+          }
+          if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+          {
+            answer();
+          }
+          if (result.getStatus() == Status.OK)
+          {
+            continue;
+          }
+        }
+        if (read > 0)
+        {
+          return read; // do not wait for more than the caller needs
+        }
+        int received = socket.read(netIn);
+        if (received < 0)
+        {
+          return -1;
+        }
+        if (received == 0)
+        {
+          return 0;
+        }
+      }
+      return read;
+    }
+    finally
+    {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * Encrypts and sends bytes.  On a non-blocking socket, takes only
+   * what the socket accepts once encrypted; call flush until it returns
+   * true to send the rest of the last record.
+   *
+   * @return The number of bytes taken from src.
+   */
+  public int write(ByteBuffer src) throws IOException
+  {
+    writeLock.lock();
+    try
+    {
+      int start = src.position();
+      while (src.hasRemaining() && flush())
+      {
+        if (wrap(src).getStatus() == Status.CLOSED)
+        {
+          throw new SocketException("TLS connection closed");
+        }
+      }
+      flush();
+      return src.position() - start;
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Sends encrypted bytes left over by write.
+   *
+   * @return Whether they have all been sent.
+   */
+  public boolean flush() throws IOException
+  {
+    writeLock.lock();
+    try
+    {
+      while (netOut.hasRemaining())
+      {
+        if (socket.write(netOut) == 0)
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Returns whether bytes have been received that read has not returned
+   * yet, so that a selector will not report them.
+   */
+  public boolean hasBufferedInput()
+  {
+    return appIn.hasRemaining() || netIn.position() > 0;
+  }
+
+  /**
+   * Returns whether encrypted bytes are waiting for flush.
+   */
+  public boolean hasBufferedOutput()
+  {
+    return netOut.hasRemaining();
+  }
+
+  public boolean isOpen()
+  {
+    return socket.isOpen();
+  }
+
+  /**
+   * Sends a close_notify, as far as the socket takes it at once, and
+   * closes the socket.
+   */
+  public void close() throws IOException
+  {
+    try
+    {
+      if (writeLock.tryLock())
+      {
+        try
+        {
+          engine.closeOutbound();
+          wrap(NO_BYTES);
+          flush();
+        }
+        finally
+        {
+          writeLock.unlock();
+        }
+      }
+    }
+    catch (IOException e) {}
+    finally
+    {
+      socket.close();
+    }
+  }
+
+  /**
+   * Returns the session agreed on by the handshake.
+   */
+  public SSLSession getSession()
+  {
+    return engine.getSession();
+  }
+
+  /**
+   * Returns the underlying socket.
+   */
+  public SocketChannel socket()
+  {
+    return socket;
+  }
+
+  /**
+   * Sends what the engine has to send while reading, e.g. the answer to
+   * a key update.
+   */
+  private void answer() throws IOException
+  {
+    writeLock.lock();
+    try
+    {
+      while (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+      {
+        if (wrap(NO_BYTES).getStatus() == Status.CLOSED)
+        {
+          break;
+        }
+      }
+      flush();
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Decrypts from netIn into appIn, growing either if it is too small.
+   */
+  private SSLEngineResult unwrap() throws IOException
+  {
+    while (true)
+    {
+      netIn.flip();
+      appIn.compact();
+      SSLEngineResult result;
+      try
+      {
+        result = engine.unwrap(netIn, appIn);
+      }
+      finally
+      {
+        appIn.flip();
+        netIn.compact();
+      }
+      switch (result.getStatus())
+      {
+        case BUFFER_OVERFLOW:
+          appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), true);
+          break;
+
+        case BUFFER_UNDERFLOW:
+          if (!netIn.hasRemaining())
+          {
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);
+          }
+          return result;
+
+        default:
+          return result;
+      }
+    }
+  }
+
+  /**
+   * Encrypts src into netOut, growing it if it is too small.
+   */
+  private SSLEngineResult wrap(ByteBuffer src) throws IOException
+  {
+    while (true)
+    {
+      netOut.compact();
+      SSLEngineResult result;
+      try
+      {
+        result = engine.wrap(src, netOut);
+      }
+      finally
+      {
+        netOut.flip();
+      }
+      if (result.getStatus() != Status.BUFFER_OVERFLOW)
+      {
+        return result;
+      }
+      netOut = grow(netOut, engine.getSession().getPacketBufferSize(), true);
+    }
+  }
+
+  /**
+   * Sends netOut entirely, on a blocking socket.
+   */
+  private void flushFully() throws IOException
+  {
+    while (netOut.hasRemaining())
+    {
+      socket.write(netOut);
+    }
+  }
+
+  /**
+   * Runs the engine's delegated tasks on the calling thread.
+   */
+  private void runTasks()
+  {
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null)
+    {
+      task.run();
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the context configured by the javax.net.ssl system
+   * properties.
+   */
+  public static SSLContext defaultContext() throws IOException
+  {
+    try
+    {
+      return SSLContext.getDefault();
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new IOException("TLS is not configured", e);
+    }
+  }
+
+  /**
+   * Wraps the client end of a connection.  Sessions with the same host
+   * and port are resumed.
+   *
+   * @param socket The connected socket.
+   * @param context The context.
+   * @param host The host name the server's certificate must match.
+   * @param port The server's port.
+   */
+  public static TlsChannel client(SocketChannel socket, SSLContext context, String host, int port)
+  {
+    SSLEngine engine = context.createSSLEngine(host, port);
+    engine.setUseClientMode(true);
+    SSLParameters parameters = engine.getSSLParameters();
+    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+    engine.setSSLParameters(parameters);
+    return new TlsChannel(socket, engine);
+  }
+
+  /**
+   * Wraps the server end of a connection.
+   *
+   * @param socket The accepted socket.
+   * @param context The context.
+   */
+  public static TlsChannel server(SocketChannel socket, SSLContext context)
+  {
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(false);
+    return new TlsChannel(socket, engine);
+  }
+
+  /**
+   * Moves as many bytes as fit from src to dst.
+   */
+  private static int transfer(ByteBuffer src, ByteBuffer dst)
+  {
+    int count = Math.min(src.remaining(), dst.remaining());
+    int limit = src.limit();
+    src.limit(src.position() + count);
+    dst.put(src);
+    src.limit(limit);
+    return count;
+  }
+
+  /**
+   * Returns a copy of a buffer with room for at least size more bytes.
+   *
+   * @param readMode Whether the buffer is in read mode.
+   */
+  private static ByteBuffer grow(ByteBuffer buffer, int size, boolean readMode)
+  {
+    ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() + size);
+    if (readMode)
+    {
+      grown.put(buffer).flip();
+    }
+    else
+    {
+      grown.put(buffer.flip());
+    }
+    return grown;
+  }
+}
+//End of TlsChannel class
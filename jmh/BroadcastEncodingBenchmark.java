@@ -0,0 +1,75 @@
+package jmh;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import common.*;
+
+/**
+ * Encoding one broadcast message, the part of sendToAllClients that does
+ * not depend on the number of clients: each codec's encode, and the
+ * ObjectOutputStream with a reset and a flush per message that OCSF
+ * used, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastEncodingBenchmark
+{
+  @Param({"alice: hello everyone, is anybody around this afternoon?",
+    "carol: déjà vu — ça marche ✓"})
+  public String msg;
+
+  private final MessageCodec serialization = new SerializationCodec();
+
+  private final MessageCodec binary = new BinaryCodec();
+
+  private ByteArrayOutputStream bytes;
+
+  private ObjectOutputStream output;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    bytes = new ByteArrayOutputStream(1 << 16);
+    output = new ObjectOutputStream(bytes);
+  }
+
+  @Benchmark
+  public ByteBuffer serializationCodec() throws IOException
+  {
+    return serialization.encode(msg);
+  }
+
+  @Benchmark
+  public ByteBuffer binaryCodec() throws IOException
+  {
+    return binary.encode(msg);
+  }
+
+  @Benchmark
+  public int objectStream() throws IOException
+  {
+    bytes.reset();
+    output.writeObject(msg);
+    output.reset();
+    output.flush();
+    return bytes.size();
+  }
+
+  /**
+   * A notice, which goes out as a frame rather than a string.
+   */
+  @Benchmark
+  public ByteBuffer binaryNotice() throws IOException
+  {
+    return binary.encode(Frame.notice(msg));
+  }
+}
+//End of BroadcastEncodingBenchmark class
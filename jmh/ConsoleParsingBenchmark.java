@@ -0,0 +1,105 @@
+package jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import common.CommandTable;
+
+/**
+ * How ClientConsole.accept and ServerConsole.accept take a line apart:
+ * the check for '#', contains(" "), split(" ") twice for two-word
+ * commands, substring(1) for one-word ones, and the string switch,
+ * against the same commands dispatched through a CommandTable.  The
+ * plain chat line is the common case and should cost next to nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsoleParsingBenchmark
+{
+  @Param({"hello everyone, is anybody around this afternoon?", "#setport 5556", "#logoff"})
+  public String line;
+
+  private final CommandTable<Blackhole> commands = new CommandTable<Blackhole>()
+    .add("quit", ConsoleParsingBenchmark::command)
+    .add("logoff", ConsoleParsingBenchmark::command)
+    .add("gethost", ConsoleParsingBenchmark::command)
+    .add("getport", ConsoleParsingBenchmark::command)
+    .add("sethost", ConsoleParsingBenchmark::parameter)
+    .add("setport", ConsoleParsingBenchmark::parameter)
+    .add("login", ConsoleParsingBenchmark::parameter)
+    .otherwise((hole, line, argument) -> hole.consume(null));
+
+  @Benchmark
+  public void accept(Blackhole hole)
+  {
+    String message = line;
+    if (message.charAt(0) == '#')
+    {
+      if (!message.contains(" "))
+      {
+        String command = message.substring(1);
+        switch (command)
+        {
+          case "quit":
+          case "logoff":
+          case "gethost":
+          case "getport":
+            hole.consume(command);
+            break;
+
+          default:
+            hole.consume(null);
+            break;
+        }
+      }
+      else
+      {
+        String command = message.split(" ")[0];
+        String para = message.split(" ")[1];
+        switch (command)
+        {
+          case "#sethost":
+          case "#setport":
+          case "#login":
+            hole.consume(para);
+            break;
+
+          default:
+            hole.consume(null);
+            break;
+        }
+      }
+    }
+    else
+    {
+      hole.consume(message);
+    }
+  }
+
+  @Benchmark
+  public void commandTable(Blackhole hole) throws IOException
+  {
+    if (!commands.dispatch(hole, line))
+    {
+      hole.consume(line);
+    }
+  }
+
+  private static void command(Blackhole hole, String line, int argument)
+  {
+    hole.consume(line);
+  }
+
+  private static void parameter(Blackhole hole, String line, int argument)
+  {
+    hole.consume(CommandTable.word(line, argument));
+  }
+}
+//End of ConsoleParsingBenchmark class
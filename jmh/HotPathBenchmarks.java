@@ -0,0 +1,42 @@
+package jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the JMH benchmarks of the per-message hot path with the GC
+ * profiler, so that every result comes with gc.alloc.rate.norm, the
+ * bytes allocated per operation.  The chat path is meant to allocate
+ * nothing beyond the line it sends; a rise in that figure is a
+ * regression.<p>
+ *
+ * The benchmarks are kept out of the main source tree because they need
+ * JMH (jmh-core and, to generate the harness, jmh-generator-annprocess)
+ * on the class path.  To build and run them from the project directory:
+ * <pre>
+ * javac -d jmh-classes -cp .:jmh-core.jar:jmh-generator-annprocess.jar \
+ *   common/*.java jmh/*.java
+ * java -cp jmh-classes:jmh-core.jar:jopt-simple.jar:commons-math3.jar \
+ *   jmh.HotPathBenchmarks [regexp] [result.json]
+ * </pre>
+ * The optional regular expression picks the benchmarks to run, all of
+ * them by default, and results are also written as JSON to compare runs.
+ */
+public class HotPathBenchmarks
+{
+  public static void main(String[] args) throws RunnerException
+  {
+    ChainedOptionsBuilder options = new OptionsBuilder()
+      .include(args.length > 0 ? args[0] : "jmh\\..*Benchmark")
+      .addProfiler(GCProfiler.class);
+    if (args.length > 1)
+    {
+      options.resultFormat(ResultFormatType.JSON).result(args[1]);
+    }
+    new Runner(options.build()).run();
+  }
+}
+//End of HotPathBenchmarks class
@@ -0,0 +1,102 @@
+package jmh;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The work EchoServer.handleMessageFromClient does for every message
+ * before it is broadcast: toString, the prefix checks for commands, the
+ * split of "#login", looking up the sender's login ID and building the
+ * "loginID: msg" line.  EchoServer is in the default package, which a
+ * benchmark cannot import, so each step is repeated here as the server
+ * writes it.  The login ID lookup is measured both through a map, as
+ * with ConnectionToClient.getInfo, and through a field, as with
+ * ConnectionToClient.getLoginID.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagePathBenchmark
+{
+  @Param({"alice: hello everyone, is anybody around this afternoon?", "#login alice"})
+  public String text;
+
+  /**
+   * The message as handleMessageFromClient receives it.
+   */
+  private Object msg;
+
+  private final Map<String, Object> savedInfo = new ConcurrentHashMap<String, Object>();
+
+  private String loginID;
+
+  @Setup
+  public void setUp()
+  {
+    msg = new String(text);
+    savedInfo.put("loginID", "alice");
+    loginID = "alice";
+  }
+
+  @Benchmark
+  public boolean toStringAndPrefix()
+  {
+    String message = msg.toString();
+    return message.startsWith("#login");
+  }
+
+  @Benchmark
+  public String loginSplit()
+  {
+    return msg.toString().split(" ")[1];
+  }
+
+  @Benchmark
+  public Object infoLookup()
+  {
+    return savedInfo.get("loginID");
+  }
+
+  @Benchmark
+  public String fieldLookup()
+  {
+    return loginID;
+  }
+
+  @Benchmark
+  public String chatLine()
+  {
+    return loginID + ": " + msg;
+  }
+
+  /**
+   * Everything a chat line goes through, in the order EchoServer does it.
+   */
+  @Benchmark
+  public void chatPath(Blackhole hole)
+  {
+    String message = msg.toString();
+    if (message.startsWith("#login"))
+    {
+      hole.consume(message.split(" ")[1]);
+    }
+    else if (message.startsWith("#join ") || message.equals("#leave")
+      || message.equals("#channels") || message.startsWith("#msg ")
+      || message.startsWith("#history") || message.equals("#who"))
+    {
+      hole.consume(message);
+    }
+    else
+    {
+      hole.consume(loginID + ": " + msg);
+    }
+  }
+}
+//End of MessagePathBenchmark class
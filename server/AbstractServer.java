@@ -0,0 +1,1455 @@
+package server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLContext;
+
+import common.Frame;
+import common.HashedWheelTimer;
+import common.MessageCodec;
+import common.TlsChannel;
+
+/**
+ * A selector-based replacement for <code>ocsf.server.AbstractServer</code>.
+ * Instead of starting one thread per client, accepted sockets are spread
+ * over a small, fixed pool of event loops, each multiplexing its sockets
+ * over one <code>java.nio</code> selector.  A server with thousands of
+ * clients therefore runs on a handful of threads.<p>
+ *
+ * The public methods and hook methods keep their OCSF names and meaning,
+ * so a subclass of the OCSF server only needs to change its imports.
+ * Each client picks a MessageCodec when it connects; OCSF clients get the
+ * serialization codec and keep working unchanged.  Clients asking for
+ * the deflate codec get it unless the system property
+ * <code>simplechat.compression</code> is false, in which case they are
+ * given the binary codec.<p>
+ *
+ * Hooks are called on event-loop threads and must not block for long.
+ * Messages from one client are always handled in order, but
+ * handleMessageFromClient may run concurrently for clients served by
+ * different loops.<p>
+ *
+ * As an alternative to event loops, the server can give each connection
+ * its own blocking read loop on a platform thread, as OCSF does, or on a
+ * virtual thread; see ExecutionMode.<p>
+ *
+ * Every connection has a bounded outbound queue, so a slow client never
+ * holds up a broadcast; see OverflowPolicy.<p>
+ *
+ * Connections are accepted by one thread, or by several; see
+ * DEFAULT_ACCEPTORS.  How long each took to set up, from being accepted
+ * to picking its codec, is kept in the metrics.<p>
+ *
+ * The execution mode, the number of loops, the number of acceptors, the
+ * accept backlog, the outbound queue limit and the overflow policy
+ * default to the system properties
+ * <code>simplechat.executionMode</code>,
+ * <code>simplechat.eventLoops</code>, <code>simplechat.acceptors</code>,
+ * <code>simplechat.backlog</code>,
+ * <code>simplechat.outboundQueueLimit</code> and
+ * <code>simplechat.overflowPolicy</code>.
+ */
+public abstract class AbstractServer
+{
+  //Class variables *************************************************
+
+  /**
+   * How client connections are served.
+   */
+  public enum ExecutionMode
+  {
+    /**
+     * Non-blocking sockets multiplexed over a few event loops.
+     */
+    EVENT_LOOP,
+
+    /**
+     * One platform thread per connection, blocking on reads.
+     */
+    PLATFORM_THREADS,
+
+    /**
+     * One virtual thread per connection, blocking on reads.
+     */
+    VIRTUAL_THREADS
+  }
+
+  /**
+   * What happens when a message is sent to a client whose outbound queue
+   * is full.
+   */
+  public enum OverflowPolicy
+  {
+    /**
+     * Drop the oldest queued message to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Replace everything queued with one notice saying how many messages
+     * the client missed.
+     */
+    COALESCE,
+
+    /**
+     * Close the connection; clientException is called.
+     */
+    DISCONNECT
+  }
+
+  /**
+   * The default execution mode.
+   */
+  final public static ExecutionMode DEFAULT_EXECUTION_MODE = ExecutionMode.valueOf
+    (System.getProperty("simplechat.executionMode", "event_loop").toUpperCase().replace('-', '_'));
+
+  /**
+   * The default number of event loops: one per processor.
+   */
+  final public static int DEFAULT_EVENT_LOOPS =
+    Integer.getInteger("simplechat.eventLoops", Runtime.getRuntime().availableProcessors());
+
+  /**
+   * The default maximum queue length for incoming connections.
+   */
+  final public static int DEFAULT_BACKLOG = Integer.getInteger("simplechat.backlog", 10);
+
+  /**
+   * The default number of threads accepting connections.  With more
+   * than one, each has a listening socket of its own bound with
+   * SO_REUSEPORT where the platform supports it, so that the kernel
+   * spreads new connections over them; elsewhere they share one socket.
+   */
+  final public static int DEFAULT_ACCEPTORS = Integer.getInteger("simplechat.acceptors", 1);
+
+  /**
+   * The default number of messages that may wait to be written to one
+   * client.
+   */
+  final public static int DEFAULT_OUTBOUND_QUEUE_LIMIT =
+    Integer.getInteger("simplechat.outboundQueueLimit", 1024);
+
+  /**
+   * The default overflow policy.
+   */
+  final public static OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.valueOf
+    (System.getProperty("simplechat.overflowPolicy", "disconnect").toUpperCase().replace('-', '_'));
+
+  /**
+   * Whether clients may use the deflate codec.
+   */
+  final public static boolean DEFAULT_COMPRESSION =
+    Boolean.parseBoolean(System.getProperty("simplechat.compression", "true"));
+
+  /**
+   * The most TLS handshakes in progress at once; a client connecting
+   * beyond that is disconnected.
+   */
+  final public static int DEFAULT_MAX_HANDSHAKES =
+    Integer.getInteger("simplechat.tls.maxHandshakes", 10000);
+
+  /**
+   * The default time in milliseconds a client has to complete its TLS
+   * handshake before it is disconnected.
+   */
+  final public static int DEFAULT_HANDSHAKE_TIMEOUT =
+    Integer.getInteger("simplechat.tls.handshakeTimeout", 5000);
+
+  /**
+   * The default time in milliseconds a client may be quiet before it is
+   * pinged, or 0 for no heartbeats.
+   */
+  final public static int DEFAULT_HEARTBEAT_INTERVAL = Integer.getInteger("simplechat.heartbeat", 30000);
+
+  /**
+   * The default time in milliseconds a client may be quiet, pings
+   * unanswered, before its connection is closed, or 0 for no limit.
+   */
+  final public static int DEFAULT_IDLE_TIMEOUT = Integer.getInteger("simplechat.idleTimeout", 90000);
+
+  /**
+   * The default time in milliseconds drain waits for outbound queues to
+   * be written out.
+   */
+  final public static int DEFAULT_DRAIN_TIMEOUT = Integer.getInteger("simplechat.drainTimeout", 10000);
+
+  /**
+   * The default number of connections drain closes per second, so that
+   * clients reconnecting elsewhere do not all arrive at once, or 0 for no
+   * limit.
+   */
+  final public static int DEFAULT_DRAIN_RATE = Integer.getInteger("simplechat.drainRate", 1000);
+
+  /**
+   * How often drain checks whether the outbound queues are empty, in
+   * milliseconds.
+   */
+  final static int DRAIN_POLL_INTERVAL = 10;
+
+  /**
+   * Measures the bytes allocated by the broadcasting thread, or null if
+   * the JVM cannot.
+   */
+  final static com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounter();
+
+  //Instance variables **********************************************
+
+  /**
+   * The port number to listen on.
+   */
+  private int port;
+
+  /**
+   * The maximum queue length of connections waiting to be accepted, per
+   * listening socket.
+   */
+  private int backlog = DEFAULT_BACKLOG;
+
+  /**
+   * The number of threads accepting connections.
+   */
+  private int acceptorCount = DEFAULT_ACCEPTORS;
+
+  /**
+   * How connections are served once the server is started.
+   */
+  private ExecutionMode executionMode = DEFAULT_EXECUTION_MODE;
+
+  /**
+   * The number of event loops started by listen.
+   */
+  private int eventLoopCount = DEFAULT_EVENT_LOOPS;
+
+  /**
+   * The number of messages that may wait to be written to one client.
+   */
+  private volatile int outboundQueueLimit = DEFAULT_OUTBOUND_QUEUE_LIMIT;
+
+  /**
+   * What happens when a client's outbound queue is full.
+   */
+  private volatile OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+
+  /**
+   * The time in milliseconds a client may be quiet before it is pinged,
+   * or 0 for no heartbeats.
+   */
+  private volatile int heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+
+  /**
+   * The time in milliseconds a client may be quiet before it is
+   * disconnected, or 0 for no limit.
+   */
+  private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+  /**
+   * Limits how fast clients may send, or null for no limit.
+   */
+  private volatile RateLimiter rateLimiter = RateLimiter.fromProperties();
+
+  /**
+   * The listening sockets, or null when not listening.
+   */
+  private ServerSocketChannel[] serverChannels;
+
+  /**
+   * The event loops, or null before the first listen and after close.
+   */
+  private EventLoop[] loops;
+
+  /**
+   * Creates the read thread of each connection when the server runs in
+   * one of the thread-per-connection modes, null otherwise.
+   */
+  private ThreadFactory connectionThreads;
+
+  /**
+   * Counts accepted connections to pick their loop round-robin.
+   */
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  /**
+   * Makes the TLS engines of connections, or null if clients talk in
+   * plain text.
+   */
+  private SSLContext sslContext;
+
+  /**
+   * Runs TLS handshakes, so that they hold up neither accepting nor
+   * handling messages, or null without TLS.  Each handshake has a
+   * virtual thread of its own, so clients that connect and send nothing
+   * hold a thread each only while they wait, not a thread other
+   * clients need.
+   */
+  private ExecutorService handshakes;
+
+  /**
+   * The number of TLS handshakes in progress.
+   */
+  private final AtomicInteger handshaking = new AtomicInteger();
+
+  /**
+   * Disconnects clients that take too long over their handshake.
+   */
+  private ScheduledExecutorService handshakeTimer;
+
+  /**
+   * Every open connection.
+   */
+  private final Set<ConnectionToClient> clients = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The chat channel of every open connection.
+   */
+  private final ChannelRegistry channels = new ChannelRegistry();
+
+  /**
+   * What the server has been doing.
+   */
+  final ServerMetrics metrics = new ServerMetrics(clients);
+
+  /**
+   * The login ID of every logged-on connection.
+   */
+  private final SessionRegistry sessions = new SessionRegistry(metrics);
+
+  private volatile boolean listening;
+
+  /**
+   * Set from the start of a drain or handoff until the server listens
+   * again.  While it is set, published messages are no longer numbered
+   * or kept.
+   */
+  private volatile boolean draining;
+
+  /**
+   * Serializes the clientDisconnected and clientException hooks.  This is
+   * a ReentrantLock rather than synchronized hooks so that a virtual
+   * thread blocking inside a hook does not pin its carrier thread.
+   */
+  private final ReentrantLock hookLock = new ReentrantLock();
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a new server.
+   *
+   * @param port The port number on which to listen.
+   */
+  public AbstractServer(int port)
+  {
+    this.port = port;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts listening for connections.  Starts the event loops first if
+   * the server has not been started yet or has been closed.
+   *
+   * @exception IOException If the port cannot be bound.
+   */
+  final public synchronized void listen() throws IOException
+  {
+    if (listening)
+    {
+      return;
+    }
+    draining = false;
+    if (loops == null && connectionThreads == null)
+    {
+      start();
+    }
+    if (sslContext == null && TlsChannel.DEFAULT_TLS)
+    {
+      sslContext = TlsChannel.defaultContext();
+    }
+    if (sslContext != null && handshakes == null)
+    {
+      handshakes = Executors.newThreadPerTaskExecutor
+        (Thread.ofVirtual().name("tls-handshake-" + port + "-", 0).factory());
+      handshakeTimer = Executors.newSingleThreadScheduledExecutor
+        (Thread.ofPlatform().name("tls-handshake-timer-" + port).daemon().factory());
+    }
+    serverChannels = bind(acceptorCount);
+    listening = true;
+    metrics.publish(port);
+
+    Acceptor[] acceptors = new Acceptor[acceptorCount];
+    AtomicInteger running = new AtomicInteger(acceptors.length);
+    for (int i = 0; i < acceptors.length; i++)
+    {
+      acceptors[i] = new Acceptor(serverChannels[i % serverChannels.length], running);
+    }
+    Thread first = new Thread(() ->
+    {
+      serverStarted();
+      for (int i = 1; i < acceptors.length; i++)
+      {
+        new Thread(acceptors[i], "acceptor-" + port + "-" + i).start();
+      }
+      acceptors[0].run();
+    }, "acceptor-" + port + "-0");
+    first.start();
+  }
+
+  /**
+   * Opens the listening sockets: one per acceptor if there are several
+   * and SO_REUSEPORT is supported, a single one otherwise.
+   *
+   * @param acceptors The number of acceptors.
+   */
+  private ServerSocketChannel[] bind(int acceptors) throws IOException
+  {
+    ServerSocketChannel first = ServerSocketChannel.open();
+    boolean reusePort = acceptors > 1
+      && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    ServerSocketChannel[] channels = new ServerSocketChannel[reusePort ? acceptors : 1];
+    channels[0] = first;
+    try
+    {
+      for (int i = 0; i < channels.length; i++)
+      {
+        if (channels[i] == null)
+        {
+          channels[i] = ServerSocketChannel.open();
+        }
+        channels[i].setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort)
+        {
+          channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channels[i].bind(new InetSocketAddress(port), backlog);
+      }
+    }
+    catch (IOException e)
+    {
+      for (ServerSocketChannel channel : channels)
+      {
+        if (channel != null)
+        {
+          channel.close();
+        }
+      }
+      throw e;
+    }
+    return channels;
+  }
+
+  /**
+   * Stops accepting new connections.  Connected clients are not affected.
+   */
+  final public synchronized void stopListening()
+  {
+    listening = false;
+    if (serverChannels != null)
+    {
+      for (ServerSocketChannel channel : serverChannels)
+      {
+        try
+        {
+          channel.close();
+        }
+        catch (IOException e) {}
+      }
+      serverChannels = null;
+    }
+  }
+
+  /**
+   * Stops listening, closes every client connection and stops the event
+   * loops.  The server can be started again with listen.
+   *
+   * @exception IOException If an error occurs while closing.
+   */
+  final public synchronized void close() throws IOException
+  {
+    stopListening();
+    try
+    {
+      for (ConnectionToClient client : getClientConnections())
+      {
+        try
+        {
+          client.close();
+        }
+        catch (Exception ex) {}
+      }
+    }
+    finally
+    {
+      if (loops != null)
+      {
+        for (EventLoop loop : loops)
+        {
+          loop.shutdown();
+        }
+        loops = null;
+      }
+      connectionThreads = null;
+      if (handshakes != null)
+      {
+        handshakes.shutdownNow();
+        handshakeTimer.shutdownNow();
+        handshakes = null;
+        handshakeTimer = null;
+      }
+      metrics.unpublish();
+      serverClosed();
+    }
+  }
+
+  /**
+   * Lets every client go gracefully, e.g. before a restart: stops
+   * accepting connections, sends every client one last message, waits
+   * until every outbound queue has been written out or the timeout has
+   * passed, and closes the connections, at most DEFAULT_DRAIN_RATE per
+   * second.  The event loops keep running, so the server can listen
+   * again.<p>
+   *
+   * isDraining returns true from the start, so hooks can tell clients
+   * that leave because of the drain from others.  Messages published in
+   * the meantime still reach the clients that are left, but are no
+   * longer numbered or kept.  The calling thread waits for the drain, so
+   * it must not be one serving clients.
+   *
+   * @param msg The last message, or null for none.
+   * @param timeoutMillis How long to wait for the queues, in milliseconds.
+   * @return Whether every queue was written out before its connection
+   *         was closed.
+   */
+  public boolean drain(Object msg, long timeoutMillis)
+  {
+    startDraining();
+    if (msg != null)
+    {
+      sendToAllClients(msg);
+    }
+    long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+    List<ConnectionToClient> pending = new ArrayList<ConnectionToClient>(clients);
+    boolean flushed = true;
+    while (!pending.isEmpty())
+    {
+      pending.removeIf(ConnectionToClient::isFlushed);
+      if (pending.isEmpty())
+      {
+        break;
+      }
+      if (deadline - System.nanoTime() <= 0)
+      {
+        flushed = false;
+        break;
+      }
+      try
+      {
+        Thread.sleep(DRAIN_POLL_INTERVAL);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        flushed = false;
+        break;
+      }
+    }
+
+    TokenBucket pace = DEFAULT_DRAIN_RATE > 0
+      ? new TokenBucket(DEFAULT_DRAIN_RATE, Math.max(1, DEFAULT_DRAIN_RATE / 10)) : null;
+    for (ConnectionToClient client : getClientConnections())
+    {
+      long wait = pace == null ? 0 : pace.take(1);
+      if (wait > 0)
+      {
+        LockSupport.parkNanos(wait);
+      }
+      try
+      {
+        client.close();
+      }
+      catch (IOException e) {}
+    }
+    return flushed;
+  }
+
+  /**
+   * Stops listening and marks the server as draining, calling
+   * serverDraining the first time.
+   */
+  void startDraining()
+  {
+    stopListening();
+    boolean started;
+    synchronized (this)
+    {
+      started = !draining;
+      draining = true;
+    }
+    if (started)
+    {
+      serverDraining();
+    }
+  }
+
+  /**
+   * Sends a message to every connected client.  A client that cannot
+   * take the message is skipped.<p>
+   *
+   * The message is encoded once per kind of codec in use into a
+   * read-only heap buffer, and every client is handed a view of that
+   * same buffer, so the cost per client is a write rather than an
+   * encoding.
+   *
+   * @param msg Object The message to be sent.
+   */
+  public void sendToAllClients(Object msg)
+  {
+    broadcast(clients, msg);
+  }
+
+  /**
+   * Sends a message to every client in a chat channel, sharing the
+   * encoded message like sendToAllClients.
+   *
+   * @param channel The name of the channel.
+   * @param msg The message to be sent.
+   */
+  public void sendToChannel(String channel, Object msg)
+  {
+    broadcast(channels.members(channel), msg);
+  }
+
+  /**
+   * Sends a chat message to every client in a chat channel, like
+   * sendToChannel, and keeps it among the channel's recent messages for
+   * sendRecentMessages.  The message is numbered in its channel and sent
+   * as a Frame.SEQUENCED frame, so a client that reconnects can be sent
+   * what it missed with sendMessagesAfter.  Messages to one channel are
+   * numbered and sent one at a time, so every member receives them in
+   * order.
+   *
+   * @param channel The name of the channel.
+   * @param msg The message to be sent; it is sent as its text.
+   */
+  public void publishToChannel(String channel, Object msg)
+  {
+    RecentMessages recent = channels.recent(channel);
+    if (recent == null)
+    {
+      broadcast(channels.members(channel), msg);
+      return;
+    }
+    recent.order.lock();
+    try
+    {
+      if (draining) // checked under the lock, so a handoff sees every numbered message
+      {
+        broadcast(channels.members(channel), msg);
+        return;
+      }
+      Frame frame = Frame.sequenced(recent.nextSequence(), msg.toString());
+      recent.add(frame, broadcast(channels.members(channel), frame));
+    }
+    finally
+    {
+      recent.order.unlock();
+    }
+  }
+
+  /**
+   * Sends a client the last messages published to its channel, already
+   * encoded and joined into a single write.
+   *
+   * @param client The client.
+   * @param count The most messages to send.
+   * @return Whether any messages were sent.
+   */
+  public boolean sendRecentMessages(ConnectionToClient client, int count)
+  {
+    RecentMessages recent = channels.recent(client.getChannel());
+    if (recent == null)
+    {
+      return false;
+    }
+    try
+    {
+      return client.sendRecent(recent, count);
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Sends a client the messages published to its channel after a
+   * sequence number, already encoded and joined into a single write.
+   *
+   * @param client The client.
+   * @param sequence The number of the last message the client has.
+   * @return Whether the client now has every message after sequence;
+   *         false if some were no longer kept.
+   */
+  public boolean sendMessagesAfter(ConnectionToClient client, long sequence)
+  {
+    RecentMessages recent = channels.recent(client.getChannel());
+    if (recent == null)
+    {
+      return false;
+    }
+    try
+    {
+      boolean complete = recent.holdsAfter(sequence);
+      client.sendRecentAfter(recent, sequence);
+      return complete;
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Sends a message to the one client logged on with a login ID.  The
+   * client is found with a single lookup in the session registry, so the
+   * cost does not grow with the number of clients connected.
+   *
+   * @param loginID The login ID of the client.
+   * @param msg The message to be sent.
+   * @return Whether the message was queued for the client; false if
+   *         nobody is logged on with that ID or the connection is closed.
+   */
+  public boolean sendToUser(String loginID, Object msg)
+  {
+    ConnectionToClient client = sessions.find(loginID);
+    if (client == null)
+    {
+      return false;
+    }
+    try
+    {
+      client.sendToClient(msg);
+      return true;
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the chat channels of the connected clients.
+   */
+  final public ChannelRegistry getChannels()
+  {
+    return channels;
+  }
+
+  /**
+   * Returns the server's counters and histograms.
+   */
+  final public ServerMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Returns the logged-on clients, indexed by login ID.
+   */
+  final public SessionRegistry getSessions()
+  {
+    return sessions;
+  }
+
+  /**
+   * Sends a message to a group of clients, encoding it once per kind of
+   * codec.
+   *
+   * @return The encodings made, indexed by codec ID.
+   */
+  private ByteBuffer[] broadcast(Collection<ConnectionToClient> recipients, Object msg)
+  {
+    long allocated = ALLOCATIONS == null ? 0 : ALLOCATIONS.getCurrentThreadAllocatedBytes();
+    long start = System.nanoTime();
+    ByteBuffer[] encoded = new ByteBuffer[MessageCodec.CODEC_COUNT];
+    for (ConnectionToClient client : recipients)
+    {
+      try
+      {
+        client.sendShared(msg, encoded);
+      }
+      catch (Exception ex) {}
+    }
+
+    metrics.broadcastTime.record(System.nanoTime() - start);
+    metrics.broadcasts.increment();
+    for (ByteBuffer buffer : encoded)
+    {
+      if (buffer != null)
+      {
+        metrics.broadcastEncodings.increment();
+      }
+    }
+    if (ALLOCATIONS != null)
+    {
+      metrics.broadcastAllocatedBytes.add(ALLOCATIONS.getCurrentThreadAllocatedBytes() - allocated);
+    }
+    return encoded;
+  }
+
+  /**
+   * Returns the number of broadcasts, to all clients or to a channel, so
+   * far.
+   */
+  final public long getBroadcastCount()
+  {
+    return metrics.broadcasts.sum();
+  }
+
+  /**
+   * Returns how many times broadcast messages were encoded so far.  With
+   * every client on the same codec this equals the broadcast count,
+   * however many clients there are.
+   */
+  final public long getBroadcastEncodingCount()
+  {
+    return metrics.broadcastEncodings.sum();
+  }
+
+  /**
+   * Returns the heap bytes allocated by broadcasts so far, or 0 if the
+   * JVM cannot measure per-thread allocation.
+   */
+  final public long getBroadcastAllocatedBytes()
+  {
+    return metrics.broadcastAllocatedBytes.sum();
+  }
+
+  /**
+   * Returns whether the server is accepting connections.
+   */
+  final public boolean isListening()
+  {
+    return listening;
+  }
+
+  /**
+   * Returns whether the server is draining, from drain or a handoff
+   * until it listens again.
+   */
+  final public boolean isDraining()
+  {
+    return draining;
+  }
+
+  /**
+   * Returns a snapshot of the open connections.
+   *
+   * @return The connections open at the time of the call.
+   */
+  final public ConnectionToClient[] getClientConnections()
+  {
+    return clients.toArray(new ConnectionToClient[0]);
+  }
+
+  /**
+   * Returns the number of open connections.
+   */
+  final public int getNumberOfClients()
+  {
+    return clients.size();
+  }
+
+  /**
+   * Returns the port number.
+   */
+  final public int getPort()
+  {
+    return port;
+  }
+
+  /**
+   * Sets the port number for the next listen.
+   *
+   * @param port The port number.
+   */
+  final public void setPort(int port)
+  {
+    this.port = port;
+  }
+
+  /**
+   * Sets the maximum queue length of connections waiting to be accepted.
+   * Takes effect at the next listen.
+   *
+   * @param backlog The maximum queue length.
+   */
+  final public void setBacklog(int backlog)
+  {
+    this.backlog = backlog;
+  }
+
+  /**
+   * Returns the number of messages that may wait to be written to one
+   * client.
+   */
+  final public int getOutboundQueueLimit()
+  {
+    return outboundQueueLimit;
+  }
+
+  /**
+   * Sets the number of messages that may wait to be written to one
+   * client.  Takes effect immediately.
+   *
+   * @param limit The limit, at least one.
+   */
+  final public void setOutboundQueueLimit(int limit)
+  {
+    if (limit < 1)
+    {
+      throw new IllegalArgumentException("limit must be at least 1");
+    }
+    this.outboundQueueLimit = limit;
+  }
+
+  /**
+   * Returns what happens when a client's outbound queue is full.
+   */
+  final public OverflowPolicy getOverflowPolicy()
+  {
+    return overflowPolicy;
+  }
+
+  /**
+   * Sets what happens when a client's outbound queue is full.  Takes
+   * effect immediately.
+   *
+   * @param policy The overflow policy.
+   */
+  final public void setOverflowPolicy(OverflowPolicy policy)
+  {
+    this.overflowPolicy = policy;
+  }
+
+  /**
+   * Returns what limits how fast clients may send, or null if nothing
+   * does.
+   */
+  final public RateLimiter getRateLimiter()
+  {
+    return rateLimiter;
+  }
+
+  /**
+   * Sets what limits how fast clients may send.  Takes effect
+   * immediately, with fresh budgets.
+   *
+   * @param rateLimiter The rate limiter, or null for no limit.
+   */
+  final public void setRateLimiter(RateLimiter rateLimiter)
+  {
+    this.rateLimiter = rateLimiter;
+  }
+
+  final public int getHeartbeatInterval()
+  {
+    return heartbeatInterval;
+  }
+
+  final public int getIdleTimeout()
+  {
+    return idleTimeout;
+  }
+
+  /**
+   * Sets when quiet clients are pinged and when they are disconnected.
+   * Connections are watched with the process's HashedWheelTimer, so the
+   * times are only accurate to a tick.  Takes effect at each
+   * connection's next check; connections accepted while both were 0
+   * are never watched.
+   *
+   * @param heartbeatInterval The time in milliseconds a client may be
+   *        quiet before it is pinged, or 0 for no heartbeats.
+   * @param idleTimeout The time in milliseconds a client may be quiet
+   *        before it is disconnected, or 0 for no limit.
+   */
+  final public void setIdleTimeouts(int heartbeatInterval, int idleTimeout)
+  {
+    if (heartbeatInterval < 0 || idleTimeout < 0)
+    {
+      throw new IllegalArgumentException("negative timeout");
+    }
+    this.heartbeatInterval = heartbeatInterval;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Returns the timer watching connections for silence.
+   */
+  HashedWheelTimer timer()
+  {
+    return HashedWheelTimer.shared();
+  }
+
+  /**
+   * Returns what makes the TLS engines of connections, or null if
+   * clients talk in plain text.
+   */
+  final public synchronized SSLContext getSSLContext()
+  {
+    return sslContext;
+  }
+
+  /**
+   * Makes clients connect with TLS, or in plain text.  Takes effect at
+   * the next listen.  Without a call, the system property
+   * <code>simplechat.tls</code> decides, using the default context.
+   *
+   * @param sslContext The context, or null for plain text.
+   */
+  final public synchronized void setSSLContext(SSLContext sslContext)
+  {
+    this.sslContext = sslContext;
+  }
+
+  /**
+   * Returns how connections are served.
+   */
+  final public ExecutionMode getExecutionMode()
+  {
+    return executionMode;
+  }
+
+  /**
+   * Sets how connections are served.  Takes effect at the first listen
+   * or the first one after close.
+   *
+   * @param executionMode The execution mode.
+   */
+  final public void setExecutionMode(ExecutionMode executionMode)
+  {
+    this.executionMode = executionMode;
+  }
+
+  /**
+   * Sets the number of event loops.  Takes effect when the loops are
+   * next started, i.e. at the first listen or the first one after close.
+   *
+   * @param count The number of event loops, at least one.
+   */
+  final public void setEventLoopCount(int count)
+  {
+    if (count < 1)
+    {
+      throw new IllegalArgumentException("count must be at least 1");
+    }
+    this.eventLoopCount = count;
+  }
+
+  /**
+   * Sets the number of threads accepting connections.  Takes effect at
+   * the next listen.
+   *
+   * @param count The number of acceptors, at least one.
+   */
+  final public void setAcceptorCount(int count)
+  {
+    if (count < 1)
+    {
+      throw new IllegalArgumentException("count must be at least 1");
+    }
+    this.acceptorCount = count;
+  }
+
+  /**
+   * Starts the event loops, or prepares the thread factory of the
+   * thread-per-connection modes.
+   */
+  private void start() throws IOException
+  {
+    switch (executionMode)
+    {
+      case PLATFORM_THREADS:
+        connectionThreads = Thread.ofPlatform().name("client-" + port + "-", 0).factory();
+        break;
+
+      case VIRTUAL_THREADS:
+        connectionThreads = Thread.ofVirtual().name("client-" + port + "-", 0).factory();
+        break;
+
+      default:
+        EventLoop[] started = new EventLoop[eventLoopCount];
+        for (int i = 0; i < started.length; i++)
+        {
+          started[i] = new EventLoop(this, "event-loop-" + port + "-" + i);
+          started[i].start();
+        }
+        loops = started;
+        break;
+    }
+  }
+
+  /**
+   * Called once a connection has picked its codec, before its first
+   * message.
+   */
+  void clientOpened(ConnectionToClient client)
+  {
+    channels.join(client, ChannelRegistry.DEFAULT_CHANNEL);
+    clients.add(client);
+    metrics.connectionsOpened.increment();
+    clientConnected(client);
+  }
+
+  /**
+   * Takes a connection out of its channel and out of sendToAllClients,
+   * for a connection with a protocol of its own, such as a link from
+   * another node of a cluster.  It stays among getClientConnections until
+   * it closes.
+   */
+  void exclude(ConnectionToClient client)
+  {
+    client.excluded = true;
+    channels.remove(client);
+  }
+
+  /**
+   * Called exactly once per connection when it closes.  A null
+   * exception means the server closed the connection itself.
+   */
+  void clientClosed(ConnectionToClient client, Throwable exception)
+  {
+    clients.remove(client);
+    channels.remove(client);
+    sessions.release(client);
+    metrics.connectionsClosed.increment();
+    hookLock.lock();
+    try
+    {
+      if (exception == null)
+      {
+        clientDisconnected(client);
+      }
+      else
+      {
+        clientException(client, exception);
+      }
+    }
+    finally
+    {
+      hookLock.unlock();
+    }
+  }
+
+  /**
+   * Charges a message just received to the rate limits, if any.  A
+   * message is counted as reaching every member of its sender's channel.
+   *
+   * @param client The sender.
+   * @param bytes The size of the message on the wire.
+   * @return 0 if it may be handled now, the nanoseconds to hold it back
+   *         otherwise, or RateLimiter.REJECTED if it must be dropped.
+   */
+  long admit(ConnectionToClient client, int bytes)
+  {
+    RateLimiter limiter = rateLimiter;
+    if (limiter == null)
+    {
+      return 0;
+    }
+    int recipients = 1;
+    if (limiter.limitsDeliveries())
+    {
+      recipients = Math.max(1, channels.size(client.getChannel()));
+    }
+    return limiter.admit(client, bytes, recipients);
+  }
+
+  /**
+   * Called for every message a client sends.
+   */
+  void receiveMessageFromClient(Object msg, ConnectionToClient client)
+  {
+    long start = System.nanoTime();
+    try
+    {
+      handleMessageFromClient(msg, client);
+    }
+    finally
+    {
+      metrics.handlerTime.record(System.nanoTime() - start);
+    }
+  }
+
+  //Class methods ***************************************************
+
+  private static com.sun.management.ThreadMXBean allocationCounter()
+  {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean
+      && ((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported())
+    {
+      return (com.sun.management.ThreadMXBean)threads;
+    }
+    return null;
+  }
+
+  //Hook methods ****************************************************
+
+  /**
+   * Hook method called each time a new client connection is accepted,
+   * once the client has picked its codec.  The default implementation
+   * does nothing.
+   *
+   * @param client the connection connected to the client.
+   */
+  protected void clientConnected(ConnectionToClient client) {}
+
+  /**
+   * Hook method called when the server closes a client connection.
+   * Called with the hook lock held, so it never runs concurrently with
+   * itself or with clientException.  The default implementation does
+   * nothing.
+   *
+   * @param client the connection with the client.
+   */
+  protected void clientDisconnected(ConnectionToClient client) {}
+
+  /**
+   * Hook method called when a client connection ends because of an
+   * exception, including the client closing its end of the socket.
+   * Called with the hook lock held, like clientDisconnected.  The default
+   * implementation does nothing.
+   *
+   * @param client the client that raised the exception.
+   * @param exception the exception thrown.
+   */
+  protected void clientException(ConnectionToClient client, Throwable exception) {}
+
+  /**
+   * Hook method called when the server stops accepting connections
+   * because of an exception.  The default implementation does nothing.
+   *
+   * @param exception the exception raised.
+   */
+  protected void listeningException(Throwable exception) {}
+
+  /**
+   * Hook method called when the server starts listening for connections.
+   * The default implementation does nothing.
+   */
+  protected void serverStarted() {}
+
+  /**
+   * Hook method called when the server stops accepting connections.
+   * The default implementation does nothing.
+   */
+  protected void serverStopped() {}
+
+  /**
+   * Hook method called when the server starts to drain, after it has
+   * stopped listening and before the clients are told.  The default
+   * implementation does nothing.
+   */
+  protected void serverDraining() {}
+
+  /**
+   * Hook method called when the server is closed.  The default
+   * implementation does nothing.
+   */
+  protected void serverClosed() {}
+
+  /**
+   * Handles a command sent from one client to the server.  Called on
+   * the event loop or thread serving the client.
+   *
+   * @param msg the message sent.
+   * @param client the connection connected to the client that sent the
+   *        message.
+   */
+  protected abstract void handleMessageFromClient(Object msg, ConnectionToClient client);
+
+  //Inner classes ***************************************************
+
+  /**
+   * Accepts connections on one listening socket until the server stops
+   * listening, and serves them as the server was set up when it started
+   * listening.  The last acceptor to stop calls serverStopped.
+   */
+  private final class Acceptor implements Runnable
+  {
+    private final ServerSocketChannel channel;
+
+    private final AtomicInteger running;
+
+    private final EventLoop[] loops;
+
+    private final ThreadFactory threads;
+
+    private final SSLContext context;
+
+    private final ExecutorService handshakes;
+
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Called by listen, with the server locked.
+     *
+     * @param channel The listening socket.
+     * @param running The number of acceptors still accepting.
+     */
+    Acceptor(ServerSocketChannel channel, AtomicInteger running)
+    {
+      this.channel = channel;
+      this.running = running;
+      this.loops = AbstractServer.this.loops;
+      this.threads = connectionThreads;
+      this.context = sslContext;
+      this.handshakes = AbstractServer.this.handshakes;
+      this.timer = handshakeTimer;
+    }
+
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          SocketChannel socket = channel.accept();
+          long accepted = System.nanoTime();
+          try
+          {
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            socket.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            if (context == null)
+            {
+              serve(socket, null, accepted);
+            }
+            else if (handshaking.incrementAndGet() > DEFAULT_MAX_HANDSHAKES)
+            {
+              handshaking.decrementAndGet();
+              metrics.tlsHandshakeFailures.increment();
+              socket.close();
+            }
+            else
+            {
+              try
+              {
+                handshakes.execute(() -> handshake(socket, accepted));
+              }
+              catch (RejectedExecutionException e)
+              {
+                handshaking.decrementAndGet();
+                throw e;
+              }
+            }
+          }
+          catch (IOException | RejectedExecutionException e)
+          {
+            socket.close();
+          }
+        }
+      }
+      catch (ClosedChannelException e) {} // stopListening was called
+      catch (Exception e)
+      {
+        stopListening();
+        listeningException(e);
+      }
+      finally
+      {
+        if (running.decrementAndGet() == 0)
+        {
+          serverStopped();
+        }
+      }
+    }
+
+    /**
+     * Runs the TLS handshake of an accepted socket, still blocking, then
+     * serves it.  Runs on a handshake thread of its own.  The socket is
+     * closed if the handshake fails or does not finish within
+     * DEFAULT_HANDSHAKE_TIMEOUT.
+     */
+    private void handshake(SocketChannel socket, long accepted)
+    {
+      long start = System.nanoTime();
+      Future<?> timeout = timer.schedule(() ->
+      {
+        try
+        {
+          socket.close();
+        }
+        catch (IOException e) {}
+      }, DEFAULT_HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+      try
+      {
+        TlsChannel tls = TlsChannel.server(socket, context);
+        tls.handshake();
+        timeout.cancel(false);
+        metrics.tlsHandshakes.increment();
+        metrics.tlsHandshakeTime.record(System.nanoTime() - start);
+        serve(socket, tls, accepted);
+      }
+      catch (Exception e)
+      {
+        timeout.cancel(false);
+        metrics.tlsHandshakeFailures.increment();
+        try
+        {
+          socket.close();
+        }
+        catch (IOException ex) {}
+      }
+      finally
+      {
+        handshaking.decrementAndGet();
+      }
+    }
+
+    /**
+     * Hands an accepted socket to an event loop, round-robin, skipping
+     * loops stopped by a failed selector, or to threads of its own.
+     *
+     * @param tls The TLS layer over the socket, handshake done, or null.
+     * @param accepted When the socket was accepted, in System.nanoTime
+     *        terms.
+     */
+    private void serve(SocketChannel socket, TlsChannel tls, long accepted) throws IOException
+    {
+      ConnectionToClient client;
+      if (loops != null)
+      {
+        socket.configureBlocking(false);
+        EventLoop loop = null;
+        for (int i = 0; i < loops.length && (loop == null || !loop.isRunning()); i++)
+        {
+          loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        }
+        if (!loop.isRunning())
+        {
+          throw new IOException("no event loop running");
+        }
+        client = new ConnectionToClient(AbstractServer.this, socket, tls, loop, accepted);
+        loop.register(client);
+      }
+      else
+      {
+        client = new ConnectionToClient(AbstractServer.this, socket, tls, null, accepted);
+        client.start(threads);
+      }
+      client.watch();
+    }
+  }
+}
+//End of AbstractServer class
@@ -0,0 +1,199 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which channel each client is in.  Every client is in
+ * exactly one channel at a time, starting in DEFAULT_CHANNEL.<p>
+ *
+ * Members are kept in one concurrent set per channel, and a channel is
+ * only ever updated under the lock of its own ConcurrentHashMap bin, so
+ * joins, leaves and sends on different channels do not contend.  Empty
+ * channels other than the default one disappear, and with them the
+ * recent messages kept for them.<p>
+ *
+ * The number of recent messages kept per channel defaults to the system
+ * property <code>simplechat.recentMessages</code>; zero keeps none.
+ */
+public class ChannelRegistry
+{
+  //Class variables *************************************************
+
+  /**
+   * The channel clients are in when they connect, and go back to when
+   * they leave a channel.
+   */
+  final public static String DEFAULT_CHANNEL = "lobby";
+
+  /**
+   * The default number of recent messages kept per channel.
+   */
+  final public static int DEFAULT_RECENT_MESSAGES =
+    Integer.getInteger("simplechat.recentMessages", 50);
+
+  //Instance variables **********************************************
+
+  /**
+   * Every channel, by name.
+   */
+  private final ConcurrentHashMap<String, Channel> channels =
+    new ConcurrentHashMap<String, Channel>();
+
+  //Instance methods ************************************************
+
+  /**
+   * Moves a client to a channel, creating the channel if needed.
+   *
+   * @param client The client.
+   * @param name The name of the channel.
+   * @return The channel the client was in before, or null if none.
+   */
+  public String join(ConnectionToClient client, String name)
+  {
+    String previous = client.channelName;
+    if (name.equals(previous))
+    {
+      return previous;
+    }
+    channels.compute(name, (key, channel) ->
+    {
+      if (channel == null)
+      {
+        channel = new Channel();
+      }
+      channel.members.add(client);
+      return channel;
+    });
+    client.channelName = name;
+    if (previous != null)
+    {
+      removeMember(previous, client);
+    }
+    return previous;
+  }
+
+  /**
+   * Moves a client back to the default channel.
+   *
+   * @param client The client.
+   * @return The channel the client left.
+   */
+  public String leave(ConnectionToClient client)
+  {
+    return join(client, DEFAULT_CHANNEL);
+  }
+
+  /**
+   * Returns the members of a channel.  The set is live and may be
+   * iterated while other threads join and leave.
+   *
+   * @param name The name of the channel.
+   * @return The members, empty if there is no such channel.
+   */
+  public Set<ConnectionToClient> members(String name)
+  {
+    Channel channel = channels.get(name);
+    return channel == null ? Collections.<ConnectionToClient>emptySet()
+      : Collections.unmodifiableSet(channel.members);
+  }
+
+  /**
+   * Returns the number of members of a channel.
+   *
+   * @param name The name of the channel.
+   * @return The number of members, 0 if there is no such channel.
+   */
+  public int size(String name)
+  {
+    Channel channel = channels.get(name);
+    return channel == null ? 0 : channel.members.size();
+  }
+
+  /**
+   * Returns the number of members of every channel, sorted by name.
+   */
+  public SortedMap<String, Integer> sizes()
+  {
+    SortedMap<String, Integer> sizes = new TreeMap<String, Integer>();
+    for (Map.Entry<String, Channel> channel : channels.entrySet())
+    {
+      sizes.put(channel.getKey(), channel.getValue().members.size());
+    }
+    return sizes;
+  }
+
+  /**
+   * Returns the recent messages of a channel.
+   *
+   * @return The messages, or null if there is no such channel or no
+   *         messages are kept.
+   */
+  RecentMessages recent(String name)
+  {
+    Channel channel = channels.get(name);
+    return channel == null ? null : channel.recent;
+  }
+
+  /**
+   * Returns the recent messages of every channel that keeps them, by
+   * channel name.
+   */
+  Map<String, RecentMessages> recent()
+  {
+    Map<String, RecentMessages> recent = new TreeMap<String, RecentMessages>();
+    for (Map.Entry<String, Channel> channel : channels.entrySet())
+    {
+      if (channel.getValue().recent != null)
+      {
+        recent.put(channel.getKey(), channel.getValue().recent);
+      }
+    }
+    return recent;
+  }
+
+  /**
+   * Returns the recent messages of a channel, creating the channel if
+   * needed, so that messages handed over by another server can be put
+   * back.  A channel created this way stays until its last member leaves.
+   *
+   * @return The messages, or null if no messages are kept.
+   */
+  RecentMessages restore(String name)
+  {
+    return channels.computeIfAbsent(name, key -> new Channel()).recent;
+  }
+
+  /**
+   * Forgets a client that disconnected.
+   */
+  void remove(ConnectionToClient client)
+  {
+    String name = client.channelName;
+    if (name != null)
+    {
+      removeMember(name, client);
+    }
+  }
+
+  private void removeMember(String name, ConnectionToClient client)
+  {
+    channels.computeIfPresent(name, (key, channel) ->
+    {
+      channel.members.remove(client);
+      return channel.members.isEmpty() && !key.equals(DEFAULT_CHANNEL) ? null : channel;
+    });
+  }
+
+  /**
+   * A channel's members and recent messages.
+   */
+  private static final class Channel
+  {
+    final Set<ConnectionToClient> members = ConcurrentHashMap.newKeySet();
+
+    final RecentMessages recent = DEFAULT_RECENT_MESSAGES > 0
+      ? new RecentMessages(DEFAULT_RECENT_MESSAGES) : null;
+  }
+}
+//End of ChannelRegistry class
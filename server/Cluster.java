@@ -0,0 +1,628 @@
+package server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import client.AbstractClient;
+import common.CommandTable;
+
+/**
+ * Joins several servers into one chat: what happens on one node is
+ * relayed to the others, so users on any node see the same
+ * conversation.<p>
+ *
+ * Every node opens a link to every other node, a client connection to
+ * its port that starts with <code>#peer</code>, so the nodes form a full
+ * mesh and a relay goes straight from the node it happened on to the
+ * others.  Each node is given the same list of nodes in the system
+ * property <code>simplechat.cluster.peers</code>, as
+ * <code>host:port</code> pairs separated by commas, and leaves itself
+ * out; it is known to the others as <code>simplechat.cluster.node</code>,
+ * by default <code>localhost:<i>port</i></code>.  If
+ * <code>simplechat.cluster.secret</code> is set, links must present it;
+ * otherwise only links from the addresses of the listed nodes are
+ * accepted.  A link is no member of any channel and is not sent what is
+ * broadcast to every client, since it only carries relays.  Links that
+ * fail are opened again every second.<p>
+ *
+ * Relays are lines on the link,
+ * <code>#relay <i>seq event channel text</i></code>, numbered in the
+ * order they happened on the node.  Links batch them (see
+ * AbstractClient.setBatching; the delay is
+ * <code>simplechat.cluster.batchDelay</code>, 2 ms by default), so a busy
+ * node writes many relays per packet, compressed together when the
+ * codec compresses.  Each node keeps its last relays; when a link opens,
+ * the receiving node says which was the last it had from the sender and
+ * the sender sends whatever followed, so relays cut off by a broken link
+ * are not lost.  The receiving node drops any relay it has already had,
+ * so a relay sent again, or sent both live and as part of that catch
+ * up, is only delivered once.<p>
+ *
+ * Private messages and login IDs stay local to each node: the same login
+ * ID may be in use on two nodes.
+ */
+public final class Cluster implements Closeable
+{
+  //Class variables *************************************************
+
+  /**
+   * What a relay reports.
+   */
+  public enum Event
+  {
+    /**
+     * A chat line; the text is the line as broadcast.
+     */
+    CHAT('c'),
+
+    /**
+     * A user logged on; the text is the login ID.
+     */
+    LOGIN('+'),
+
+    /**
+     * A user logged off; the text is the login ID.
+     */
+    LOGOUT('-');
+
+    final char code;
+
+    Event(char code)
+    {
+      this.code = code;
+    }
+
+    static Event of(char code)
+    {
+      for (Event event : values())
+      {
+        if (event.code == code)
+        {
+          return event;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Delivers relays from other nodes.
+   */
+  public interface Listener
+  {
+    /**
+     * Called for each relay, in the order it happened on its node, on the
+     * thread reading the link it came by.
+     *
+     * @param event What happened.
+     * @param channel The channel a chat line was said in, or null.
+     * @param text The chat line or the login ID.
+     */
+    void relayed(Event event, String channel, String text);
+  }
+
+  /**
+   * The nodes of the cluster, including this one.
+   */
+  final public static String DEFAULT_PEERS = System.getProperty("simplechat.cluster.peers", "");
+
+  /**
+   * The name of this node, or null for localhost and the port.
+   */
+  final public static String DEFAULT_NODE = System.getProperty("simplechat.cluster.node");
+
+  /**
+   * The secret links present, or the empty string for none.
+   */
+  final public static String DEFAULT_SECRET = System.getProperty("simplechat.cluster.secret", "");
+
+  /**
+   * How long a relay may wait to be batched with others, in milliseconds.
+   */
+  final public static int DEFAULT_BATCH_DELAY = Integer.getInteger("simplechat.cluster.batchDelay", 2);
+
+  /**
+   * How many of its last relays a node keeps to send again.
+   */
+  final static int RESEND_WINDOW = 4096;
+
+  /**
+   * How long to wait before opening failed links again, in milliseconds.
+   */
+  final static int RECONNECT_DELAY = 1000;
+
+  /**
+   * The key under which an incoming link saves the name and incarnation
+   * of the node it comes from; see ConnectionToClient.setInfo.
+   */
+  final static String PEER_INFO = "peer";
+
+  //Instance variables **********************************************
+
+  private final AbstractServer server;
+
+  private final String node;
+
+  /**
+   * Tells apart runs of the same node, whose relays are numbered from
+   * one again.
+   */
+  private final long incarnation = System.currentTimeMillis();
+
+  private final Listener listener;
+
+  private final List<Link> links = new ArrayList<Link>();
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * The last relays of this node, by sequence number modulo the window.
+   */
+  private final AtomicReferenceArray<Relay> sent = new AtomicReferenceArray<Relay>(RESEND_WINDOW);
+
+  /**
+   * The relays had from each run of each other node.
+   */
+  private final Map<String, Window> received = new ConcurrentHashMap<String, Window>();
+
+  /**
+   * The users logged on to other nodes, with their node.
+   */
+  private final Map<String, String> remoteUsers = new ConcurrentHashMap<String, String>();
+
+  private Thread connector;
+
+  private volatile boolean closed;
+
+  //Constructors ****************************************************
+
+  /**
+   * Prepares a node of the cluster.  Links are opened by start.
+   *
+   * @param server The server of this node.
+   * @param node The name of this node, as listed in peers.
+   * @param peers The nodes of the cluster as <code>host:port</code>
+   *        pairs; this node is left out.
+   * @param listener Delivers relays from other nodes.
+   */
+  public Cluster(AbstractServer server, String node, Collection<String> peers, Listener listener)
+  {
+    this.server = server;
+    this.node = node;
+    this.listener = listener;
+    for (String peer : peers)
+    {
+      peer = peer.trim();
+      int colon = peer.lastIndexOf(':');
+      if (!peer.isEmpty() && !peer.equals(node) && colon > 0)
+      {
+        links.add(new Link(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+      }
+    }
+  }
+
+  /**
+   * Prepares a node of the cluster from the system properties.
+   *
+   * @param server The server of this node, which must have its port set.
+   * @param listener Delivers relays from other nodes.
+   * @return The node, or null if no cluster is configured.
+   */
+  public static Cluster fromProperties(AbstractServer server, Listener listener)
+  {
+    if (DEFAULT_PEERS.isEmpty())
+    {
+      return null;
+    }
+    String node = DEFAULT_NODE == null ? "localhost:" + server.getPort() : DEFAULT_NODE;
+    return new Cluster(server, node, Arrays.asList(DEFAULT_PEERS.split(",")), listener);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Starts opening the links to the other nodes.
+   */
+  public synchronized void start()
+  {
+    if (connector == null && !links.isEmpty())
+    {
+      connector = new Thread(this::connect, "cluster-connector");
+      connector.setDaemon(true);
+      connector.start();
+    }
+  }
+
+  /**
+   * Closes the links.  Relays from other nodes may still arrive until
+   * the server closes their connections.
+   */
+  public synchronized void close()
+  {
+    closed = true;
+    if (connector != null)
+    {
+      connector.interrupt();
+    }
+    for (Link link : links)
+    {
+      try
+      {
+        link.closeConnection();
+      }
+      catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Returns the name of this node.
+   */
+  public String getNode()
+  {
+    return node;
+  }
+
+  /**
+   * Returns the number of links to other nodes that are open.
+   */
+  public int getOpenLinks()
+  {
+    int open = 0;
+    for (Link link : links)
+    {
+      open += link.ready ? 1 : 0;
+    }
+    return open;
+  }
+
+  /**
+   * Returns the users logged on to other nodes.
+   */
+  public Set<String> getRemoteUsers()
+  {
+    return remoteUsers.keySet();
+  }
+
+  /**
+   * Relays something that happened on this node to the other nodes.
+   *
+   * @param event What happened.
+   * @param channel The channel of a chat line, or null.
+   * @param text The chat line or the login ID.
+   */
+  public void publish(Event event, String channel, String text)
+  {
+    if (links.isEmpty())
+    {
+      return;
+    }
+    long seq = sequence.incrementAndGet();
+    String line = "#relay " + seq + " " + event.code + " " + (channel == null ? "-" : channel)
+      + " " + text;
+    sent.set((int)(seq % RESEND_WINDOW), new Relay(seq, line));
+    for (Link link : links)
+    {
+      link.relay(line);
+    }
+  }
+
+  /**
+   * Returns whether a connection is a link from another node.
+   */
+  public static boolean isPeer(ConnectionToClient client)
+  {
+    return client.getInfo(PEER_INFO) != null;
+  }
+
+  /**
+   * Handles <code>#peer <i>node incarnation</i> [<i>secret</i>]</code>,
+   * which opens a link from another node: answers with the last relay
+   * had from that run of the node, <code>#resume <i>seq</i></code>, or
+   * -1 if there was none.  Without a secret, only a node listed in peers
+   * may open a link.
+   */
+  public void accept(ConnectionToClient client, String line, int argument) throws IOException
+  {
+    String peer = CommandTable.word(line, argument);
+    int next = CommandTable.nextWord(line, argument);
+    String run = CommandTable.word(line, next);
+    String secret = CommandTable.word(line, CommandTable.nextWord(line, next));
+    if (peer == null || run == null || !DEFAULT_SECRET.equals(secret == null ? "" : secret)
+      || DEFAULT_SECRET.isEmpty() && !fromPeer(client))
+    {
+      client.close();
+      return;
+    }
+    server.exclude(client); // relays only, no chat lines or notices
+    String key = peer + "@" + run;
+    client.setInfo(PEER_INFO, key);
+    Window window = received.get(key);
+    client.sendToClient("#resume " + (window == null ? -1 : window.highest()));
+  }
+
+  /**
+   * Handles <code>#present <i>loginID...</i></code>, the users logged on
+   * to the node at the other end of a link, sent when the link opens.
+   */
+  public void present(ConnectionToClient client, String line, int argument)
+  {
+    String peer = peerNode(client);
+    if (peer == null)
+    {
+      return;
+    }
+    remoteUsers.values().removeIf(peer::equals);
+    for (int word = argument; CommandTable.hasArgument(line, word);
+      word = CommandTable.nextWord(line, word))
+    {
+      remoteUsers.put(CommandTable.word(line, word), peer);
+    }
+  }
+
+  /**
+   * Handles <code>#relay</code> from another node, delivering it unless
+   * it was delivered already.
+   */
+  public void receive(ConnectionToClient client, String line, int argument)
+  {
+    Object key = client.getInfo(PEER_INFO);
+    if (key == null)
+    {
+      return;
+    }
+    int eventAt = CommandTable.nextWord(line, argument);
+    int channelAt = CommandTable.nextWord(line, eventAt);
+    String channel = CommandTable.word(line, channelAt);
+    String text = CommandTable.rest(line, CommandTable.nextWord(line, channelAt));
+    Event event = eventAt < line.length() ? Event.of(line.charAt(eventAt)) : null;
+    long seq;
+    try
+    {
+      seq = Long.parseLong(CommandTable.word(line, argument));
+    }
+    catch (NumberFormatException e)
+    {
+      return;
+    }
+    if (event == null || channel == null || text == null
+      || !received.computeIfAbsent((String)key, k -> new Window()).accept(seq))
+    {
+      return;
+    }
+    if (event == Event.LOGIN)
+    {
+      remoteUsers.put(text, peerNode(client));
+    }
+    else if (event == Event.LOGOUT)
+    {
+      remoteUsers.remove(text);
+    }
+    listener.relayed(event, channel.equals("-") ? null : channel, text);
+  }
+
+  /**
+   * Forgets the users of the node at the other end of a link that
+   * closed.
+   */
+  public void peerClosed(ConnectionToClient client)
+  {
+    String peer = peerNode(client);
+    if (peer != null)
+    {
+      remoteUsers.values().removeIf(peer::equals);
+    }
+  }
+
+  /**
+   * Returns whether a connection comes from the address of one of the
+   * nodes in peers.
+   */
+  private boolean fromPeer(ConnectionToClient client)
+  {
+    InetAddress address = client.getInetAddress();
+    if (address == null)
+    {
+      return false;
+    }
+    for (Link link : links)
+    {
+      try
+      {
+        for (InetAddress peer : InetAddress.getAllByName(link.getHost()))
+        {
+          if (peer.equals(address) || peer.isLoopbackAddress() && address.isLoopbackAddress())
+          {
+            return true;
+          }
+        }
+      }
+      catch (UnknownHostException e) {} // cannot be that node, then
+    }
+    return false;
+  }
+
+  /**
+   * Returns the name of the node at the other end of a link, or null.
+   */
+  private static String peerNode(ConnectionToClient client)
+  {
+    Object key = client.getInfo(PEER_INFO);
+    return key == null ? null : key.toString().substring(0, key.toString().lastIndexOf('@'));
+  }
+
+  /**
+   * Opens links that are not open, until the cluster is closed.  Runs on
+   * the connector thread.
+   */
+  private void connect()
+  {
+    while (!closed)
+    {
+      for (Link link : links)
+      {
+        if (!link.isConnected())
+        {
+          try
+          {
+            link.setBatching(DEFAULT_BATCH_DELAY, AbstractClient.DEFAULT_BATCH_BYTES);
+            link.openConnection();
+            link.sendToServer("#peer " + node + " " + incarnation
+              + (DEFAULT_SECRET.isEmpty() ? "" : " " + DEFAULT_SECRET));
+            link.flush();
+          }
+          catch (IOException e) {}
+        }
+      }
+      try
+      {
+        Thread.sleep(RECONNECT_DELAY);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * A relay this node sent.
+   */
+  private static final class Relay
+  {
+    final long seq;
+
+    final String line;
+
+    Relay(long seq, String line)
+    {
+      this.seq = seq;
+      this.line = line;
+    }
+  }
+
+  /**
+   * The relays had from one run of a node: the highest sequence number
+   * and which of the 64 before it arrived, so relays arriving twice or
+   * out of order are told apart.
+   */
+  private static final class Window
+  {
+    private long highest = 0;
+
+    private long mask = 0;
+
+    synchronized long highest()
+    {
+      return highest;
+    }
+
+    /**
+     * Records a relay.
+     *
+     * @return Whether it is new.
+     */
+    synchronized boolean accept(long seq)
+    {
+      if (seq > highest)
+      {
+        long shift = seq - highest;
+        mask = shift >= 64 ? 0 : mask << shift;
+        mask |= 1;
+        highest = seq;
+        return true;
+      }
+      long bit = highest - seq;
+      if (bit >= 64 || (mask & (1L << bit)) != 0)
+      {
+        return false;
+      }
+      mask |= 1L << bit;
+      return true;
+    }
+  }
+
+  /**
+   * The link from this node to another.  Relays are only written once
+   * the other node has said where to resume.
+   */
+  private final class Link extends AbstractClient
+  {
+    volatile boolean ready;
+
+    Link(String host, int port)
+    {
+      super(host, port);
+    }
+
+    /**
+     * Writes a relay if the link is ready.
+     */
+    synchronized void relay(String line)
+    {
+      if (ready)
+      {
+        try
+        {
+          sendToServer(line);
+        }
+        catch (IOException e)
+        {
+          ready = false;
+        }
+      }
+    }
+
+    /**
+     * Handles the answer to #peer: sends again the relays the other node
+     * missed, then the users of this node, and starts relaying.
+     */
+    protected void handleMessageFromServer(Object msg)
+    {
+      String line = msg.toString();
+      if (!line.startsWith("#resume "))
+      {
+        return; // a notice broadcast to every connection
+      }
+      long last = Long.parseLong(line.substring("#resume ".length()).trim());
+      synchronized (this)
+      {
+        try
+        {
+          long end = sequence.get();
+          for (long seq = Math.max(last + 1, end - RESEND_WINDOW + 1); last >= 0 && seq <= end; seq++)
+          {
+            Relay relay = sent.get((int)(seq % RESEND_WINDOW));
+            if (relay != null && relay.seq == seq)
+            {
+              sendToServer(relay.line);
+            }
+          }
+          StringBuilder present = new StringBuilder("#present");
+          for (String loginID : server.getSessions().loginIDs())
+          {
+            present.append(' ').append(loginID);
+          }
+          sendToServer(present.toString());
+          ready = true;
+        }
+        catch (IOException e) {}
+      }
+    }
+
+    protected void connectionClosed()
+    {
+      ready = false;
+    }
+
+    protected void connectionException(Exception exception)
+    {
+      ready = false;
+    }
+  }
+}
+//End of Cluster class
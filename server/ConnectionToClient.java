@@ -0,0 +1,1123 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.*;
+
+/**
+ * One client connection of an AbstractServer.  Unlike its OCSF namesake
+ * this is not a thread.  Messages sent to the client are encoded by the
+ * calling thread and put on a bounded outbound queue, so sendToClient
+ * never blocks on a slow peer.  What happens when the queue is full is
+ * decided by the server's OverflowPolicy.<p>
+ *
+ * In event-loop mode the socket is non-blocking, and the event loop it
+ * was registered with both reads it and drains its queue whenever the
+ * socket can take more bytes.  In the thread-per-connection modes the
+ * socket stays blocking and the connection has two threads: one reading
+ * and one draining the queue.<p>
+ *
+ * The connection is only handed to the server once the client's first
+ * bytes have chosen a MessageCodec.  With TLS they are the first bytes
+ * after the handshake, which the server completes before creating the
+ * connection.
+ */
+public class ConnectionToClient
+{
+  //Class variables *************************************************
+
+  /**
+   * The size of the read buffer of a connection with its own thread.
+   */
+  final static int BLOCKING_READ_BUFFER_SIZE = 4096;
+
+  /**
+   * The shortest time between two notices to a client that it is over
+   * its rate limit, in nanoseconds.
+   */
+  final static long LIMIT_NOTICE_INTERVAL = 1000000000L;
+
+  /**
+   * What resume decodes when no bytes are pending.
+   */
+  private final static ByteBuffer NO_BYTES = ByteBuffer.allocate(0);
+
+  //Instance variables **********************************************
+
+  /**
+   * The server that accepted this connection.
+   */
+  private final AbstractServer server;
+
+  /**
+   * The socket to the client, in non-blocking mode.
+   */
+  private final SocketChannel channel;
+
+  /**
+   * The TLS layer over the socket, or null if the client talks in plain
+   * text.
+   */
+  private final TlsChannel tls;
+
+  /**
+   * What messages are read from and written to: the TLS layer if there
+   * is one, the socket otherwise.
+   */
+  private final ByteChannel io;
+
+  /**
+   * The event loop that reads and writes this connection, or null if
+   * the connection has its own thread.
+   */
+  private final EventLoop loop;
+
+  /**
+   * When the socket was accepted, in System.nanoTime terms.
+   */
+  private final long accepted;
+
+  /**
+   * Frames messages on the socket, or null until the client's first
+   * bytes have been read.
+   */
+  private volatile MessageCodec codec;
+
+  /**
+   * Encoded messages waiting to be written, oldest first.  A message
+   * being written has already been taken off the queue, so dropping
+   * queued messages never cuts one in half.
+   */
+  private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+
+  /**
+   * The number of messages in the outbound queue, counting those about
+   * to be added.  A slot is reserved here before a message is added, so
+   * that senders racing each other cannot all get past the limit.
+   */
+  private final AtomicInteger queued = new AtomicInteger();
+
+  /**
+   * Held while a full queue is coalesced, so that of the senders finding
+   * it full only one empties it and adds the notice.  A ReentrantLock
+   * rather than synchronized so that virtual threads are not pinned.
+   */
+  private final ReentrantLock coalescing = new ReentrantLock();
+
+  /**
+   * The number of messages dropped because the outbound queue was full.
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * The message being written, or null.
+   */
+  private volatile ByteBuffer writing;
+
+  /**
+   * Whether this connection is already waiting in its loop's flush queue.
+   */
+  final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  /**
+   * The thread draining the outbound queue when the connection has its
+   * own threads, null otherwise.
+   */
+  private volatile Thread writer;
+
+  /**
+   * Information saved by the server about this client, e.g. its login ID.
+   */
+  private final Map<String, Object> savedInfo = new ConcurrentHashMap<String, Object>();
+
+  /**
+   * Set once the connection has been closed, from either side.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * The chat channel the client is in, maintained by the server's
+   * ChannelRegistry.
+   */
+  volatile String channelName;
+
+  /**
+   * The login ID of the client, set by the server's SessionRegistry.
+   */
+  volatile String loginID;
+
+  /**
+   * Whether the connection is sent nothing that is broadcast; see
+   * AbstractServer.exclude.
+   */
+  volatile boolean excluded;
+
+  /**
+   * The selection key of the channel, set by the event loop on registration.
+   */
+  SelectionKey key;
+
+  /**
+   * Bytes of a partially received message, or null.  Only used by the
+   * thread reading the connection.
+   */
+  private ByteBuffer pending;
+
+  /**
+   * The rate limit budget of the client, kept by the server's
+   * RateLimiter.  Only used by the thread reading the connection.
+   */
+  RateLimiter.Limits limits;
+
+  /**
+   * A message held back by throttling until resumeAt, or null.  Only
+   * used by the event loop, which does not read the socket meanwhile.
+   */
+  private Object deferred;
+
+  /**
+   * When the event loop should handle the deferred message, in
+   * System.nanoTime() terms.
+   */
+  long resumeAt;
+
+  /**
+   * When the client was last told it is over its rate limit.
+   */
+  private long lastLimitNotice = System.nanoTime() - LIMIT_NOTICE_INTERVAL;
+
+  /**
+   * When bytes last came from the client.
+   */
+  private volatile long lastRead = System.nanoTime();
+
+  /**
+   * When the client was last pinged.  Only used by the timer.
+   */
+  private long lastPing = lastRead;
+
+  /**
+   * Pings the client when it goes quiet and reclaims the connection when
+   * it stays quiet.
+   */
+  private final HashedWheelTimer.Timeout idleCheck = new IdleCheck();
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a connection for a freshly accepted socket.
+   *
+   * @param server The server that accepted the socket.
+   * @param channel The accepted socket, non-blocking if loop is set.
+   * @param tls The TLS layer over the socket, handshake done, or null.
+   * @param loop The event loop that will serve the socket, or null if
+   *        the socket gets its own threads.
+   * @param accepted When the socket was accepted, in System.nanoTime
+   *        terms.
+   */
+  ConnectionToClient(AbstractServer server, SocketChannel channel, TlsChannel tls, EventLoop loop,
+    long accepted)
+  {
+    this.server = server;
+    this.channel = channel;
+    this.tls = tls;
+    this.io = tls == null ? channel : tls;
+    this.loop = loop;
+    this.accepted = accepted;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Sends an object to the client.  The object is encoded immediately and
+   * written asynchronously.
+   *
+   * @param msg The message to be sent.
+   * @exception IOException If the connection is closed, the message
+   *            cannot be encoded or the full queue made the server
+   *            disconnect the client.
+   */
+  public void sendToClient(Object msg) throws IOException
+  {
+    MessageCodec codec = this.codec;
+    if (closed.get() || codec == null)
+    {
+      throw new SocketException("socket does not exist");
+    }
+    enqueue(codec.encode(msg));
+  }
+
+  /**
+   * Sends several messages to the client in one write.  With a codec
+   * that compresses they are compressed together.
+   *
+   * @param msgs The messages to be sent, in order.
+   * @exception IOException If the connection is closed, a message
+   *            cannot be encoded or the full queue made the server
+   *            disconnect the client.
+   */
+  public void sendAllToClient(List<?> msgs) throws IOException
+  {
+    MessageCodec codec = this.codec;
+    if (closed.get() || codec == null)
+    {
+      throw new SocketException("socket does not exist");
+    }
+    if (msgs.isEmpty())
+    {
+      return;
+    }
+    ByteBuffer[] encoded = new ByteBuffer[msgs.size()];
+    int size = 0;
+    for (int i = 0; i < encoded.length; i++)
+    {
+      encoded[i] = codec.encode(msgs.get(i));
+      size += encoded[i].remaining();
+    }
+    ByteBuffer batch = ByteBuffer.allocate(size);
+    for (ByteBuffer message : encoded)
+    {
+      batch.put(message);
+    }
+    enqueue(codec.pack(batch.flip()));
+  }
+
+  /**
+   * Sends a message that is sent to other clients too.  The message is
+   * only encoded if no other client using the same kind of codec has
+   * encoded it yet; the encoded bytes are kept read-only, on the heap
+   * where the codec put them, and this client is handed a view of them.  A Frame.TYPING is
+   * not sent to an OCSF client, which could only show it as one more
+   * line, and nothing is sent to an excluded connection.
+   *
+   * @param msg The message to be sent.
+   * @param encoded The message encoded so far, indexed by codec ID.
+   */
+  void sendShared(Object msg, ByteBuffer[] encoded) throws IOException
+  {
+    MessageCodec codec = this.codec;
+    if (closed.get() || codec == null)
+    {
+      throw new SocketException("socket does not exist");
+    }
+    if (excluded || codec.id() == MessageCodec.SERIALIZATION && msg instanceof Frame
+      && ((Frame)msg).getOpcode() == Frame.TYPING)
+    {
+      return;
+    }
+    ByteBuffer shared = encoded[codec.id()];
+    if (shared == null)
+    {
+      shared = codec.encode(msg).asReadOnlyBuffer(); // a fresh buffer, never copied
+      encoded[codec.id()] = shared;
+    }
+    enqueue(shared.duplicate());
+  }
+
+  /**
+   * Sends a channel's recent messages in one write.
+   *
+   * @param recent The recent messages.
+   * @param count The most messages to send.
+   * @return Whether there were any messages to send.
+   */
+  boolean sendRecent(RecentMessages recent, int count) throws IOException
+  {
+    MessageCodec codec = this.codec;
+    if (closed.get() || codec == null)
+    {
+      throw new SocketException("socket does not exist");
+    }
+    return sendBatch(recent.replay(codec, count));
+  }
+
+  /**
+   * Sends the messages of a channel after a sequence number in one
+   * write.
+   *
+   * @param recent The recent messages.
+   * @param sequence The number of the last message the client has.
+   * @return Whether there were any messages to send.
+   */
+  boolean sendRecentAfter(RecentMessages recent, long sequence) throws IOException
+  {
+    MessageCodec codec = this.codec;
+    if (closed.get() || codec == null)
+    {
+      throw new SocketException("socket does not exist");
+    }
+    return sendBatch(recent.replayAfter(codec, sequence));
+  }
+
+  private boolean sendBatch(ByteBuffer batch) throws IOException
+  {
+    if (batch == null)
+    {
+      return false;
+    }
+    enqueue(batch);
+    return true;
+  }
+
+  /**
+   * Closes the connection to the client.  The server's
+   * clientDisconnected hook is called from the calling thread.
+   *
+   * @exception IOException If an error occurs while closing the socket.
+   */
+  final public void close() throws IOException
+  {
+    if (!closed.compareAndSet(false, true))
+    {
+      return;
+    }
+    try
+    {
+      io.close();
+    }
+    finally
+    {
+      LockSupport.unpark(writer);
+      closeCodec();
+      server.clientClosed(this, null);
+    }
+  }
+
+  /**
+   * Returns the address of the client, or null if the connection is closed.
+   *
+   * @return The client's address.
+   */
+  final public InetAddress getInetAddress()
+  {
+    Socket socket = channel.socket();
+    return socket == null ? null : socket.getInetAddress();
+  }
+
+  /**
+   * Returns whether the connection is still open.
+   */
+  final public boolean isConnected()
+  {
+    return !closed.get();
+  }
+
+  /**
+   * Returns the name of the chat channel the client is in.
+   */
+  public String getChannel()
+  {
+    return channelName;
+  }
+
+  /**
+   * Returns the login ID of the client, or null if it has not logged on.
+   */
+  public String getLoginID()
+  {
+    return loginID;
+  }
+
+  /**
+   * Returns the ID of the codec the client picked (see MessageCodec), or
+   * -1 if it has not picked one yet.
+   */
+  public int getCodecId()
+  {
+    MessageCodec codec = this.codec;
+    return codec == null ? -1 : codec.id();
+  }
+
+  /**
+   * Returns the number of messages waiting to be written to the client.
+   */
+  public int getOutboundQueueDepth()
+  {
+    return queued.get();
+  }
+
+  /**
+   * Returns the number of messages to this client dropped so far because
+   * its outbound queue was full.
+   */
+  public long getDroppedMessageCount()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Saves information about this client, e.g. its login ID.  Saving
+   * null removes the entry.
+   *
+   * @param infoType Identifies the type of information.
+   * @param info The information itself.
+   */
+  public void setInfo(String infoType, Object info)
+  {
+    if (info == null)
+    {
+      savedInfo.remove(infoType);
+    }
+    else
+    {
+      savedInfo.put(infoType, info);
+    }
+  }
+
+  /**
+   * Returns information about the client saved using setInfo.
+   *
+   * @param infoType Identifies the type of information.
+   * @return The information, or null if none was saved.
+   */
+  public Object getInfo(String infoType)
+  {
+    return savedInfo.get(infoType);
+  }
+
+  /**
+   * Returns a string representation of the client.
+   *
+   * @return The client's host name and address.
+   */
+  public String toString()
+  {
+    InetAddress address = getInetAddress();
+    return address == null ? "closed connection"
+      : address.getHostName() + " (" + address.getHostAddress() + ")";
+  }
+
+  /**
+   * Returns the socket of this connection.
+   */
+  SocketChannel channel()
+  {
+    return channel;
+  }
+
+  /**
+   * Queues an encoded message, applying the overflow policy if the queue
+   * is full, and wakes up whoever drains the queue.
+   */
+  void enqueue(ByteBuffer buffer) throws IOException
+  {
+    if (queued.incrementAndGet() > server.getOutboundQueueLimit())
+    {
+      overflow();
+    }
+    outbound.add(buffer);
+    server.metrics.messagesOut.increment();
+    if (loop == null)
+    {
+      LockSupport.unpark(writer);
+    }
+    else if (flushScheduled.compareAndSet(false, true))
+    {
+      loop.scheduleFlush(this);
+    }
+  }
+
+  /**
+   * Makes room in a full outbound queue according to the server's
+   * overflow policy.  Called with a slot already reserved beyond the
+   * limit; on return a slot is reserved for the message.
+   *
+   * @exception SocketException If the policy is to disconnect.
+   */
+  private void overflow() throws IOException
+  {
+    switch (server.getOverflowPolicy())
+    {
+      case DROP_OLDEST:
+        if (poll() != null)
+        {
+          dropped.incrementAndGet();
+          server.metrics.droppedMessages.increment();
+        }
+        break;
+
+      case COALESCE:
+        queued.decrementAndGet(); // not held while waiting, reserved again below
+        coalescing.lock();
+        try
+        {
+          if (queued.get() >= server.getOutboundQueueLimit()) // unless coalesced by another sender meanwhile
+          {
+            int skipped = 0;
+            while (poll() != null)
+            {
+              skipped++;
+            }
+            dropped.addAndGet(skipped);
+            server.metrics.droppedMessages.add(skipped);
+            queued.incrementAndGet();
+            outbound.add(codec.encode(Frame.notice
+              ("Connection too slow: " + skipped + " messages skipped.")));
+          }
+          queued.incrementAndGet();
+        }
+        finally
+        {
+          coalescing.unlock();
+        }
+        break;
+
+      default:
+        queued.decrementAndGet();
+        dropped.incrementAndGet();
+        server.metrics.droppedMessages.increment();
+        closeOnError(new IOException("outbound queue full"));
+        throw new SocketException("outbound queue full");
+    }
+  }
+
+  /**
+   * Takes the oldest message off the outbound queue.
+   */
+  private ByteBuffer poll()
+  {
+    ByteBuffer buffer = outbound.poll();
+    if (buffer != null)
+    {
+      queued.decrementAndGet();
+    }
+    return buffer;
+  }
+
+  /**
+   * Takes the oldest message off the outbound queue into writing.  It is
+   * only counted off the queue once it is in writing, so isFlushed cannot
+   * miss it in between.
+   *
+   * @return Whether there was a message.
+   */
+  private boolean take()
+  {
+    ByteBuffer buffer = outbound.poll();
+    if (buffer == null)
+    {
+      return false;
+    }
+    writing = buffer;
+    queued.decrementAndGet();
+    return true;
+  }
+
+  /**
+   * Returns whether everything sent to the client has been handed to the
+   * socket, or the connection is closed.
+   */
+  boolean isFlushed()
+  {
+    return closed.get() || queued.get() == 0 && writing == null && outbound.isEmpty()
+      && (tls == null || !tls.hasBufferedOutput());
+  }
+
+  /**
+   * Starts the reading and writing threads of a connection that is not
+   * served by an event loop.
+   *
+   * @param threads Creates the threads.
+   */
+  void start(ThreadFactory threads)
+  {
+    writer = threads.newThread(this::drain);
+    writer.start();
+    threads.newThread(this::run).start();
+  }
+
+  /**
+   * The body of the connection's reading thread: reads messages until the
+   * connection ends.
+   */
+  private void run()
+  {
+    try
+    {
+      ByteBuffer scratch = ByteBuffer.allocate(BLOCKING_READ_BUFFER_SIZE);
+      while (!closed.get())
+      {
+        read(scratch);
+      }
+    }
+    catch (Exception e)
+    {
+      closeOnError(e);
+    }
+  }
+
+  /**
+   * The body of the connection's writing thread: writes queued messages
+   * to the blocking socket, parking while the queue is empty.
+   */
+  private void drain()
+  {
+    try
+    {
+      while (!closed.get())
+      {
+        if (!take())
+        {
+          LockSupport.park(this);
+          continue;
+        }
+        while (writing.hasRemaining())
+        {
+          server.metrics.bytesOut.add(io.write(writing));
+        }
+        writing = null;
+      }
+    }
+    catch (Exception e)
+    {
+      closeOnError(e);
+    }
+  }
+
+  /**
+   * Writes as many queued messages as the socket accepts.  Called only
+   * by the event loop.
+   */
+  void flush() throws IOException
+  {
+    if (closed.get())
+    {
+      return;
+    }
+    while (writing != null || take())
+    {
+      server.metrics.bytesOut.add(io.write(writing));
+      if (writing.hasRemaining())
+      {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        return;
+      }
+      writing = null;
+    }
+    if (tls != null && !tls.flush())
+    {
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      return;
+    }
+    if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
+    {
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Reads whatever the socket has and hands every complete message to
+   * the server.  Called only by the event loop or thread serving the
+   * connection.
+   *
+   * @param scratch The buffer to read into.
+   */
+  void read(ByteBuffer scratch) throws IOException
+  {
+    int read;
+    do
+    {
+      read = readOnce(scratch);
+    }
+    while (read > 0 && deferred == null && hasBufferedInput()); // a selector would not see it
+  }
+
+  /**
+   * Returns whether the TLS layer holds bytes already taken off the
+   * socket.
+   */
+  boolean hasBufferedInput()
+  {
+    return tls != null && tls.hasBufferedInput();
+  }
+
+  /**
+   * Reads from the socket once and hands every complete message to the
+   * server.
+   *
+   * @return The number of bytes read.
+   */
+  private int readOnce(ByteBuffer scratch) throws IOException
+  {
+    scratch.clear();
+    int read = io.read(scratch);
+    if (read < 0)
+    {
+      throw new EOFException();
+    }
+    if (read > 0)
+    {
+      lastRead = System.nanoTime();
+    }
+    server.metrics.bytesIn.add(read);
+    scratch.flip();
+
+    ByteBuffer in = scratch;
+    if (pending != null)
+    {
+      pending = append(pending, scratch);
+      pending.flip();
+      in = pending;
+    }
+
+    if (codec != null || negotiate(in))
+    {
+      decode(in);
+    }
+
+    if (in == pending)
+    {
+      if (pending.hasRemaining())
+        pending.compact();
+      else
+        pending = null;
+    }
+    else if (in.hasRemaining())
+    {
+      pending = ByteBuffer.allocate(Math.max(2 * in.remaining(), 256));
+      pending.put(in);
+    }
+    return read;
+  }
+
+  /**
+   * Hands every complete message in a buffer to the server, as far as
+   * the rate limits allow.  On an event loop a message that must be held
+   * back stops decoding; the rest stays in the buffer until resume.
+   *
+   * @param in The bytes received so far, in read mode.
+   */
+  private void decode(ByteBuffer in) throws IOException
+  {
+    int start = in.position();
+    Object msg;
+    while (deferred == null && !closed.get() && (msg = codec.decode(in)) != null)
+    {
+      server.metrics.messagesIn.increment();
+      int size = in.position() - start;
+      start = in.position();
+      if (msg instanceof Frame && heartbeat((Frame)msg))
+      {
+        continue;
+      }
+      long delay = server.admit(this, size);
+      if (delay == 0)
+      {
+        server.receiveMessageFromClient(msg, this);
+      }
+      else if (delay == RateLimiter.REJECTED)
+      {
+        server.metrics.rejectedMessages.increment();
+        overLimit("Slow down: messages are being dropped.");
+      }
+      else
+      {
+        server.metrics.throttledMessages.increment();
+        overLimit("Slow down: messages are being delayed.");
+        if (loop == null)
+        {
+          long deadline = System.nanoTime() + delay;
+          while (!closed.get() && (delay = deadline - System.nanoTime()) > 0)
+          {
+            LockSupport.parkNanos(this, delay);
+          }
+          server.receiveMessageFromClient(msg, this);
+        }
+        else
+        {
+          deferred = msg;
+          resumeAt = System.nanoTime() + delay;
+          key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+          loop.pause(this);
+        }
+      }
+    }
+  }
+
+  /**
+   * Handles the message held back by throttling, then the messages
+   * received after it, and reads from the socket again.  Called only by
+   * the event loop once the delay is over.
+   *
+   * @param scratch The buffer to read into.
+   */
+  void resume(ByteBuffer scratch) throws IOException
+  {
+    Object msg = deferred;
+    deferred = null;
+    if (closed.get())
+    {
+      return;
+    }
+    server.receiveMessageFromClient(msg, this);
+    if (pending == null)
+    {
+      decode(NO_BYTES); // the codec may still hold some
+    }
+    else
+    {
+      pending.flip();
+      decode(pending);
+      if (pending.hasRemaining())
+        pending.compact();
+      else
+        pending = null;
+    }
+    if (deferred == null && key.isValid())
+    {
+      key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      if (hasBufferedInput())
+      {
+        read(scratch);
+      }
+    }
+  }
+
+  /**
+   * Answers a PING and swallows a PONG.
+   *
+   * @return Whether the frame was one of them.
+   */
+  private boolean heartbeat(Frame frame) throws IOException
+  {
+    if (frame.getOpcode() == Frame.PING)
+    {
+      enqueue(codec.encode(new Frame(Frame.PONG, frame.getPayload())));
+      return true;
+    }
+    return frame.getOpcode() == Frame.PONG;
+  }
+
+  /**
+   * Starts watching the connection for silence, if the server has
+   * heartbeats or an idle timeout.
+   */
+  void watch()
+  {
+    if (server.getHeartbeatInterval() > 0 || server.getIdleTimeout() > 0)
+    {
+      server.timer().schedule(idleCheck, Math.min
+        (nanos(server.getHeartbeatInterval()), nanos(server.getIdleTimeout())));
+    }
+  }
+
+  /**
+   * Closes a connection whose client went silent, without waiting to
+   * say goodbye to a peer that is probably gone.  Runs on the server's
+   * timer, which every connection shares, so only the connection is
+   * marked closed here; the rest, including the server's
+   * clientDisconnected hook, runs on a virtual thread of its own.
+   */
+  private void reclaim()
+  {
+    if (!closed.compareAndSet(false, true))
+    {
+      return;
+    }
+    server.metrics.idleTimeouts.increment();
+    Thread.ofVirtual().name("reclaim").start(() ->
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException e) {}
+      LockSupport.unpark(writer);
+      closeCodec();
+      server.clientClosed(this, null);
+    });
+  }
+
+  /**
+   * Tells the client it is over its rate limit, at most once per
+   * LIMIT_NOTICE_INTERVAL.
+   */
+  private void overLimit(String notice) throws IOException
+  {
+    long now = System.nanoTime();
+    if (now - lastLimitNotice >= LIMIT_NOTICE_INTERVAL)
+    {
+      lastLimitNotice = now;
+      enqueue(codec.encode(Frame.notice(notice)));
+    }
+  }
+
+  /**
+   * Picks the codec from the first bytes sent by the client, answers its
+   * hello if it sent one, and hands the connection to the server.  An
+   * object stream header selects the serialization codec and is left in
+   * the buffer for the codec to read.
+   *
+   * @param in The bytes received so far, in read mode.
+   * @return Whether a codec was picked; false if more bytes are needed.
+   */
+  private boolean negotiate(ByteBuffer in) throws IOException
+  {
+    int start = in.position();
+    if (in.remaining() < 2)
+    {
+      return false;
+    }
+    MessageCodec chosen;
+    if (in.get(start) == (byte)0xac && in.get(start + 1) == (byte)0xed)
+    {
+      chosen = new SerializationCodec();
+    }
+    else
+    {
+      if (in.remaining() < MessageCodec.HELLO_LENGTH)
+      {
+        return false;
+      }
+      if (in.get() != MessageCodec.HELLO_MAGIC_0 || in.get() != MessageCodec.HELLO_MAGIC_1)
+      {
+        throw new StreamCorruptedException("unknown protocol");
+      }
+      in.get(); // protocol version, answered with ours
+      chosen = MessageCodec.forId(in.get());
+      if (chosen == null
+        || chosen.id() == MessageCodec.DEFLATE && !AbstractServer.DEFAULT_COMPRESSION)
+      {
+        chosen = new BinaryCodec();
+      }
+      enqueue(MessageCodec.hello(chosen.id()));
+    }
+    ByteBuffer header = chosen.header();
+    if (header.hasRemaining())
+    {
+      enqueue(header);
+    }
+    codec = chosen;
+    server.metrics.connectionSetupTime.record(System.nanoTime() - accepted);
+    server.clientOpened(this);
+    return true;
+  }
+
+  /**
+   * Closes the connection because of an error or because the client
+   * went away.  The server's clientException hook is called.
+   *
+   * @param exception The reason the connection ended.
+   */
+  void closeOnError(Throwable exception)
+  {
+    if (!closed.compareAndSet(false, true))
+    {
+      return;
+    }
+    try
+    {
+      channel.close();
+    }
+    catch (IOException e) {}
+    LockSupport.unpark(writer);
+    closeCodec();
+    server.clientClosed(this, exception);
+  }
+
+  /**
+   * Frees what the codec holds outside the heap, once the connection is
+   * closed.
+   */
+  private void closeCodec()
+  {
+    MessageCodec codec = this.codec;
+    if (codec != null)
+    {
+      codec.close();
+    }
+  }
+
+  /**
+   * Converts milliseconds to nanoseconds, 0 meaning never.
+   */
+  private static long nanos(int millis)
+  {
+    return millis > 0 ? millis * 1000000L : Long.MAX_VALUE;
+  }
+
+  /**
+   * Appends src to dst, growing dst if needed.  dst is in write mode.
+   */
+  private static ByteBuffer append(ByteBuffer dst, ByteBuffer src)
+  {
+    if (dst.remaining() < src.remaining())
+    {
+      ByteBuffer grown = ByteBuffer.allocate
+        (Math.max(2 * dst.capacity(), dst.position() + src.remaining()));
+      dst.flip();
+      grown.put(dst);
+      dst = grown;
+    }
+    dst.put(src);
+    return dst;
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * The check run by the server's timer each time the connection may
+   * have been quiet for long enough.  A client that has been quiet for
+   * the heartbeat interval is pinged once; one that is still quiet at
+   * the idle timeout is reclaimed.  Clients of the serialization codec
+   * cannot be pinged, so they are left alone once they have picked it,
+   * with TCP keepalive to find dead ones.
+   */
+  private final class IdleCheck extends HashedWheelTimer.Timeout
+  {
+    protected void expire()
+    {
+      MessageCodec codec = ConnectionToClient.this.codec;
+      if (closed.get() || codec != null && codec.id() == MessageCodec.SERIALIZATION)
+      {
+        return;
+      }
+      long heartbeat = nanos(server.getHeartbeatInterval());
+      long idle = nanos(server.getIdleTimeout());
+      if (heartbeat == Long.MAX_VALUE && idle == Long.MAX_VALUE)
+      {
+        return; // turned off since
+      }
+      long now = System.nanoTime();
+      long quiet = now - lastRead;
+      if (quiet >= idle)
+      {
+        reclaim();
+        return;
+      }
+      if (quiet < heartbeat)
+      {
+        server.timer().schedule(this, Math.min(idle, heartbeat) - quiet);
+        return;
+      }
+      if (codec != null && lastPing - lastRead <= 0)
+      {
+        lastPing = now;
+        try
+        {
+          enqueue(codec.encode(new Frame(Frame.PING, "")));
+        }
+        catch (IOException e)
+        {
+          return; // the queue overflowed and the connection is closed
+        }
+      }
+      server.timer().schedule(this, Math.min(idle - quiet, heartbeat));
+    }
+  }
+}
+//End of ConnectionToClient class
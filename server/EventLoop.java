@@ -0,0 +1,371 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single thread multiplexing many client sockets over one selector.
+ * Other threads never touch the selector directly: they hand new
+ * connections and pending writes to the loop through queues and wake it
+ * up.<p>
+ *
+ * If the selector fails, the loop moves its connections to a new one.
+ * If that one fails too before a select succeeds, the loop closes its
+ * connections and stops, and the server no longer hands it any.
+ */
+final class EventLoop implements Runnable
+{
+  //Class variables *************************************************
+
+  /**
+   * Size of the buffer every read on this loop goes through.
+   */
+  final static int READ_BUFFER_SIZE = 64 * 1024;
+
+  //Instance variables **********************************************
+
+  /**
+   * The server whose connections this loop serves.
+   */
+  private final AbstractServer server;
+
+  /**
+   * Replaced only by the loop thread, when the selector fails.
+   */
+  private volatile Selector selector;
+
+  private final Thread thread;
+
+  /**
+   * Accepted connections waiting to be registered with the selector.
+   */
+  private final Queue<ConnectionToClient> registrations =
+    new ConcurrentLinkedQueue<ConnectionToClient>();
+
+  /**
+   * Connections with queued output that another thread asked to flush.
+   */
+  private final Queue<ConnectionToClient> flushes =
+    new ConcurrentLinkedQueue<ConnectionToClient>();
+
+  /**
+   * Throttled connections not reading until their resumeAt, soonest
+   * first.  Only used by the loop thread.
+   */
+  private final PriorityQueue<ConnectionToClient> paused = new PriorityQueue<ConnectionToClient>
+    (Comparator.comparingLong((ConnectionToClient client) -> client.resumeAt));
+
+  /**
+   * Avoids calling selector.wakeup() more than once per select.
+   */
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  private volatile boolean running = true;
+
+  //Constructors ****************************************************
+
+  /**
+   * Opens the selector of a new loop.  The loop does not run until
+   * start is called.
+   *
+   * @param server The owning server.
+   * @param name The name of the loop thread.
+   */
+  EventLoop(AbstractServer server, String name) throws IOException
+  {
+    this.server = server;
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+  }
+
+  //Instance methods ************************************************
+
+  void start()
+  {
+    thread.start();
+  }
+
+  /**
+   * Asks the loop to stop.  Connections still registered are left to
+   * the server to close.
+   */
+  void shutdown()
+  {
+    running = false;
+    selector.wakeup();
+  }
+
+  /**
+   * Returns whether the loop is running, i.e. neither shut down nor
+   * stopped by a failed selector.
+   */
+  boolean isRunning()
+  {
+    return running;
+  }
+
+  /**
+   * Returns whether the calling thread is this loop's thread.
+   */
+  boolean inEventLoop()
+  {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Hands a newly accepted connection to this loop.
+   */
+  void register(ConnectionToClient client)
+  {
+    registrations.add(client);
+    wakeup();
+    if (!running) // stopped meanwhile, nobody will register it
+    {
+      closeRegistrations(new ClosedSelectorException());
+    }
+  }
+
+  /**
+   * Asks the loop to write the queued output of a connection.  When
+   * called from the loop itself the output is written right away.
+   */
+  void scheduleFlush(ConnectionToClient client)
+  {
+    if (inEventLoop())
+    {
+      flush(client);
+    }
+    else
+    {
+      flushes.add(client);
+      wakeup();
+    }
+  }
+
+  /**
+   * Stops handing a throttled connection's messages to the server until
+   * its resumeAt.  Called only by the loop thread.
+   */
+  void pause(ConnectionToClient client)
+  {
+    paused.add(client);
+  }
+
+  /**
+   * The loop body: select, register new connections, write pending
+   * output, resume throttled connections whose time has come, then read
+   * from every ready socket.
+   */
+  public void run()
+  {
+    boolean rebuilt = false;
+    while (running)
+    {
+      try
+      {
+        ConnectionToClient next = paused.peek();
+        if (next == null)
+        {
+          selector.select();
+        }
+        else
+        {
+          long wait = next.resumeAt - System.nanoTime();
+          if (wait > 0)
+            selector.select((wait + 999999) / 1000000);
+          else
+            selector.selectNow();
+        }
+      }
+      catch (IOException e)
+      {
+        if (rebuilt || !rebuild())
+        {
+          fail(e);
+          break;
+        }
+        rebuilt = true;
+        continue;
+      }
+      rebuilt = false;
+      wakeupPending.set(false);
+
+      ConnectionToClient client;
+      while ((client = registrations.poll()) != null)
+      {
+        register0(client);
+      }
+      while ((client = flushes.poll()) != null)
+      {
+        flush(client);
+      }
+      long now = System.nanoTime();
+      while ((client = paused.peek()) != null && client.resumeAt - now <= 0)
+      {
+        paused.poll();
+        try
+        {
+          client.resume(readBuffer);
+        }
+        catch (Exception e)
+        {
+          client.closeOnError(e);
+        }
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext())
+      {
+        SelectionKey key = keys.next();
+        keys.remove();
+        client = (ConnectionToClient)key.attachment();
+        try
+        {
+          if (key.isValid() && key.isWritable())
+          {
+            client.flush();
+          }
+          if (key.isValid() && key.isReadable())
+          {
+            client.read(readBuffer);
+          }
+        }
+        catch (Exception e)
+        {
+          client.closeOnError(e);
+        }
+      }
+    }
+
+    try
+    {
+      selector.close();
+    }
+    catch (IOException e) {}
+  }
+
+  /**
+   * Moves every connection over to a new selector and closes the old
+   * one.  Called only by the loop thread.
+   *
+   * @return Whether a new selector could be opened.
+   */
+  private boolean rebuild()
+  {
+    Selector fresh;
+    try
+    {
+      fresh = Selector.open();
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+    Selector old = selector;
+    for (SelectionKey key : old.keys())
+    {
+      ConnectionToClient client = (ConnectionToClient)key.attachment();
+      try
+      {
+        if (key.isValid())
+        {
+          client.key = key.channel().register(fresh, key.interestOps(), client);
+        }
+      }
+      catch (Exception e)
+      {
+        client.closeOnError(e);
+      }
+    }
+    selector = fresh;
+    try
+    {
+      old.close();
+    }
+    catch (IOException e) {}
+    return true;
+  }
+
+  /**
+   * Stops the loop after its selector failed for good: closes every
+   * connection on it, so that they go through the server's hooks rather
+   * than hang unread, and reports the error.  Called only by the loop
+   * thread.
+   */
+  private void fail(IOException e)
+  {
+    running = false;
+    for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys()))
+    {
+      ((ConnectionToClient)key.attachment()).closeOnError(e);
+    }
+    ConnectionToClient client;
+    while ((client = paused.poll()) != null)
+    {
+      client.closeOnError(e);
+    }
+    closeRegistrations(e);
+    server.listeningException(e);
+  }
+
+  /**
+   * Closes the connections waiting to be registered with a loop that
+   * has stopped.
+   */
+  private void closeRegistrations(Exception e)
+  {
+    ConnectionToClient client;
+    while ((client = registrations.poll()) != null)
+    {
+      client.closeOnError(e);
+    }
+  }
+
+  private void register0(ConnectionToClient client)
+  {
+    try
+    {
+      client.key = client.channel().register(selector, SelectionKey.OP_READ, client);
+      if (client.hasBufferedInput()) // sent along with the end of the TLS handshake
+      {
+        client.read(readBuffer);
+      }
+    }
+    catch (Exception e)
+    {
+      client.closeOnError(e);
+    }
+  }
+
+  private void flush(ConnectionToClient client)
+  {
+    client.flushScheduled.set(false);
+    try
+    {
+      client.flush();
+    }
+    catch (Exception e)
+    {
+      client.closeOnError(e);
+    }
+  }
+
+  private void wakeup()
+  {
+    if (wakeupPending.compareAndSet(false, true))
+    {
+      selector.wakeup();
+    }
+  }
+}
+//End of EventLoop class
@@ -0,0 +1,419 @@
+package server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import client.AbstractClient;
+import common.CommandTable;
+import common.Frame;
+import common.HashedWheelTimer;
+
+/**
+ * Hands a port over from a running server to a new process of the same
+ * server, so that it can be restarted, e.g. to upgrade it, without its
+ * clients losing their place or all reconnecting at once.<p>
+ *
+ * A Java process cannot pass its sockets to another, so the clients do
+ * reconnect, but the new process is ready for them.  Started with the
+ * system property <code>simplechat.handoff</code> set to true, it
+ * connects to the old process on the port they share, before listening
+ * itself, and sends <code>#handoff begin [<i>secret</i>]</code>.  The old
+ * process stops listening and stops numbering messages (see
+ * AbstractServer.drain), and answers with the recent messages of every
+ * channel: <code>#handoff channel <i>next name</i></code>, where next is
+ * the sequence number of the channel's next message, followed by
+ * <code>#handoff message <i>sequence text</i></code> for each message
+ * kept, then the users logged on, as
+ * <code>#handoff users <i>loginID...</i></code>, and finally
+ * <code>#handoff end</code>.  The new process keeps
+ * them, listens on the port and sends <code>#handoff listening</code>,
+ * on which the old process drains: it tells its clients, writes out what
+ * is queued for them and closes their connections at a steady rate.  The
+ * clients reconnect with <code>#resume</code>, and the new process sends
+ * each of them what it missed by the same sequence numbers, and need not
+ * tell the others that users who never left are back.<p>
+ *
+ * If <code>#handoff listening</code> has not arrived within twice
+ * DEFAULT_TIMEOUT of the begin, the new process is taken to have failed,
+ * and the old one listens again and goes on serving its clients.<p>
+ *
+ * A handoff stops the old process listening and hands over who is
+ * logged on, so it is refused unless both processes are given the same
+ * <code>simplechat.handoff.secret</code>, and only connections from the
+ * same host that present it may ask for one.
+ */
+public final class Handoff
+{
+  //Class variables *************************************************
+
+  /**
+   * Whether a server starting takes over from the process serving its
+   * port.
+   */
+  final public static boolean DEFAULT_TAKE_OVER = Boolean.getBoolean("simplechat.handoff");
+
+  /**
+   * The secret a handoff must present.  Handoffs are refused while it is
+   * empty, the default.
+   */
+  final public static String DEFAULT_SECRET = System.getProperty("simplechat.handoff.secret", "");
+
+  /**
+   * How long the new process waits for the old one's messages, in
+   * milliseconds.
+   */
+  final public static int DEFAULT_TIMEOUT = Integer.getInteger("simplechat.handoff.timeout", 10000);
+
+  /**
+   * The key under which the connection from the new process is marked;
+   * see ConnectionToClient.setInfo.
+   */
+  final static String HANDOFF_INFO = "handoff";
+
+  final static String CHANNEL = "#handoff channel ";
+
+  final static String MESSAGE = "#handoff message ";
+
+  final static String USERS = "#handoff users ";
+
+  final static String END = "#handoff end";
+
+  /**
+   * The most login IDs per users line.
+   */
+  final static int USERS_PER_LINE = 256;
+
+  //Instance variables **********************************************
+
+  private final AbstractServer server;
+
+  private final Link link;
+
+  private final CountDownLatch ended = new CountDownLatch(1);
+
+  /**
+   * The channel whose messages are arriving, its next sequence number
+   * and its messages so far.  Only used by the link's thread.
+   */
+  private String channel;
+  private long next;
+  private final List<Frame> kept = new ArrayList<Frame>();
+
+  /**
+   * The users logged on to the old process.
+   */
+  private final Set<String> users = new HashSet<String>();
+
+  private int channels;
+
+  private int messages;
+
+  //Constructors ****************************************************
+
+  private Handoff(AbstractServer server, int port)
+  {
+    this.server = server;
+    this.link = new Link(port);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Tells the old process that this one is listening, so that it moves
+   * its clients over, and closes the link.
+   */
+  public void listening() throws IOException
+  {
+    try
+    {
+      link.sendToServer("#handoff listening");
+    }
+    finally
+    {
+      link.closeConnection();
+    }
+  }
+
+  /**
+   * Returns the users that were logged on to the old process.
+   */
+  public Set<String> getUsers()
+  {
+    return users;
+  }
+
+  /**
+   * Returns how many channels, messages and users were taken over.
+   */
+  public String toString()
+  {
+    return channels + " channels, " + messages + " messages, " + users.size() + " users";
+  }
+
+  /**
+   * Handles a line from the old process.  Runs on the link's thread.
+   */
+  private void received(String line)
+  {
+    if (line.startsWith(CHANNEL))
+    {
+      restore();
+      int at = CommandTable.nextWord(line, CHANNEL.length());
+      next = Long.parseLong(CommandTable.word(line, CHANNEL.length()));
+      channel = line.substring(at);
+    }
+    else if (line.startsWith(MESSAGE) && channel != null)
+    {
+      kept.add(new Frame(Frame.SEQUENCED, line.substring(MESSAGE.length())));
+    }
+    else if (line.startsWith(USERS))
+    {
+      users.addAll(Arrays.asList(line.substring(USERS.length()).split(" ")));
+    }
+    else if (line.equals(END))
+    {
+      restore();
+      ended.countDown();
+    }
+    // anything else is a notice broadcast to every connection
+  }
+
+  /**
+   * Puts back the messages of the channel that has fully arrived.
+   */
+  private void restore()
+  {
+    if (channel == null)
+    {
+      return;
+    }
+    RecentMessages recent = server.getChannels().restore(channel);
+    if (recent != null)
+    {
+      recent.restore(kept, next);
+      channels++;
+      messages += kept.size();
+    }
+    channel = null;
+    kept.clear();
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Takes over from the process serving a port on this host: fetches
+   * the recent messages of its channels into a server that is not
+   * listening yet.  The old process stops listening, so the server can
+   * listen on the port right after; then call listening.
+   *
+   * @param server The server taking over.
+   * @param port The port.
+   * @return The handoff.
+   * @exception IOException If no secret is set, if no process serves the
+   *            port, or if it does not hand over within DEFAULT_TIMEOUT.
+   */
+  public static Handoff take(AbstractServer server, int port) throws IOException
+  {
+    if (DEFAULT_SECRET.isEmpty())
+    {
+      throw new IOException("simplechat.handoff.secret is not set");
+    }
+    Handoff handoff = new Handoff(server, port);
+    handoff.link.openConnection();
+    boolean ended = false;
+    try
+    {
+      handoff.link.sendToServer("#handoff begin " + DEFAULT_SECRET);
+      ended = handoff.ended.await(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    finally
+    {
+      if (!ended)
+      {
+        handoff.link.closeConnection();
+      }
+    }
+    if (!ended)
+    {
+      throw new IOException("no handoff from port " + port);
+    }
+    return handoff;
+  }
+
+  /**
+   * Handles <code>#handoff</code> on the old process.  On
+   * <code>begin</code>, starts the server draining and sends the recent
+   * messages of every channel; a connection that may not ask for a
+   * handoff, or any connection while no secret is set, is closed.
+   *
+   * @return Whether the new process is listening in time, so the
+   *         clients should now be drained over to it.
+   */
+  public static boolean give(AbstractServer server, ConnectionToClient client, String line,
+    int argument) throws IOException
+  {
+    String step = CommandTable.word(line, argument);
+    if ("listening".equals(step))
+    {
+      Object deadline = client.getInfo(HANDOFF_INFO);
+      return deadline instanceof Deadline && ((Deadline)deadline).settle();
+    }
+    if (isHandoff(client))
+    {
+      return false; // begun already
+    }
+    String secret = CommandTable.word(line, CommandTable.nextWord(line, argument));
+    InetAddress address = client.getInetAddress();
+    if (!"begin".equals(step) || address == null || !address.isLoopbackAddress()
+      || DEFAULT_SECRET.isEmpty() || secret == null || !MessageDigest.isEqual
+        (DEFAULT_SECRET.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8)))
+    {
+      client.close();
+      return false;
+    }
+    Deadline deadline = new Deadline(server, client);
+    client.setInfo(HANDOFF_INFO, deadline);
+    server.startDraining();
+    server.timer().schedule(deadline, 2 * DEFAULT_TIMEOUT * 1000000L);
+
+    List<String> lines = new ArrayList<String>();
+    for (Map.Entry<String, RecentMessages> channel : server.getChannels().recent().entrySet())
+    {
+      RecentMessages recent = channel.getValue();
+      recent.order.lock(); // nothing is numbered from now on, but one may be under way
+      try
+      {
+        lines.add(CHANNEL + recent.nextSequence() + " " + channel.getKey());
+        for (Frame frame : recent.kept())
+        {
+          lines.add(MESSAGE + frame.getPayload());
+        }
+      }
+      finally
+      {
+        recent.order.unlock();
+      }
+    }
+    StringBuilder users = new StringBuilder(USERS);
+    int count = 0;
+    for (String loginID : server.getSessions().loginIDs())
+    {
+      users.append(count == 0 ? "" : " ").append(loginID);
+      if (++count == USERS_PER_LINE)
+      {
+        lines.add(users.toString());
+        users.setLength(USERS.length());
+        count = 0;
+      }
+    }
+    if (count > 0)
+    {
+      lines.add(users.toString());
+    }
+    lines.add(END);
+    client.sendAllToClient(lines);
+    return false;
+  }
+
+  /**
+   * Returns whether a connection is the one from a process taking over.
+   */
+  public static boolean isHandoff(ConnectionToClient client)
+  {
+    return client.getInfo(HANDOFF_INFO) != null;
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * The end of the time the new process has to start listening.  It
+   * waits DEFAULT_TIMEOUT for the messages and then binds the port, so
+   * twice that is ample.  If it has not said it is listening by then,
+   * the old process stops waiting for it, listens again, which also
+   * ends the drain, and closes the link.
+   */
+  private static final class Deadline extends HashedWheelTimer.Timeout
+  {
+    private final AbstractServer server;
+
+    private final ConnectionToClient client;
+
+    /**
+     * Set by whichever comes first, the new process listening or the
+     * deadline.
+     */
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    Deadline(AbstractServer server, ConnectionToClient client)
+    {
+      this.server = server;
+      this.client = client;
+    }
+
+    /**
+     * Returns whether this call settled the handoff, i.e. it was not
+     * settled before.
+     */
+    boolean settle()
+    {
+      if (!settled.compareAndSet(false, true))
+      {
+        return false;
+      }
+      cancel();
+      return true;
+    }
+
+    protected void expire()
+    {
+      if (settle())
+      {
+        Thread.ofVirtual().name("handoff").start(this::resume); // binding and the hooks are too slow for the timer
+      }
+    }
+
+    private void resume()
+    {
+      try
+      {
+        client.close();
+      }
+      catch (IOException e) {}
+      try
+      {
+        server.listen();
+      }
+      catch (IOException e)
+      {
+        server.listeningException(e);
+      }
+    }
+  }
+
+  /**
+   * The connection from the new process to the old one.
+   */
+  private final class Link extends AbstractClient
+  {
+    Link(int port)
+    {
+      super("localhost", port);
+    }
+
+    protected void handleMessageFromServer(Object msg)
+    {
+      received(msg.toString());
+    }
+  }
+}
+//End of Handoff class
@@ -0,0 +1,192 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations, cheap enough to record into on every
+ * message from many threads at once.  The server records nanoseconds;
+ * the load generator records microseconds with the same buckets, so the
+ * percentiles of the two can be compared.<p>
+ *
+ * Each bucket is a LongAdder, so threads recording at the same time
+ * rarely touch the same memory.  Buckets split every power of two into
+ * 2<sup>subBits</sup>, so a percentile is accurate to within about
+ * 2<sup>-subBits</sup>: about 3% with the default of 5.
+ */
+public final class Histogram
+{
+  //Class variables *************************************************
+
+  /**
+   * The default number of buckets per power of two, as a power of two.
+   */
+  final public static int DEFAULT_SUB_BITS = 5;
+
+  //Instance variables **********************************************
+
+  /**
+   * Buckets per power of two, as a power of two.
+   */
+  private final int subBits;
+
+  private final LongAdder[] buckets;
+
+  private final LongAdder sum = new LongAdder();
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a histogram accurate to about 3%.
+   */
+  public Histogram()
+  {
+    this(DEFAULT_SUB_BITS);
+  }
+
+  /**
+   * Constructs a histogram.
+   *
+   * @param subBits The buckets per power of two, as a power of two,
+   *        from 0 to 10; each one more halves the error and doubles the
+   *        buckets.
+   */
+  public Histogram(int subBits)
+  {
+    if (subBits < 0 || subBits > 10)
+    {
+      throw new IllegalArgumentException("invalid precision");
+    }
+    this.subBits = subBits;
+    this.buckets = new LongAdder[(1 << subBits) * (64 - subBits + 1)];
+    for (int i = 0; i < buckets.length; i++)
+    {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Records a duration.
+   *
+   * @param value The duration; negative counts as zero.
+   */
+  public void record(long value)
+  {
+    value = Math.max(0, value);
+    buckets[index(value)].increment();
+    sum.add(value);
+  }
+
+  /**
+   * Returns the number of durations recorded.
+   */
+  public long getCount()
+  {
+    long count = 0;
+    for (LongAdder bucket : buckets)
+    {
+      count += bucket.sum();
+    }
+    return count;
+  }
+
+  /**
+   * Returns the total of the durations recorded.
+   */
+  public long getSum()
+  {
+    return sum.sum();
+  }
+
+  /**
+   * Returns a percentile of the durations recorded.
+   *
+   * @param quantile The percentile as a fraction, e.g. 0.99.
+   * @return The duration, or 0 if nothing was recorded.
+   */
+  public long getPercentile(double quantile)
+  {
+    long[] counts = new long[buckets.length];
+    for (int i = 0; i < counts.length; i++)
+    {
+      counts[i] = buckets[i].sum();
+    }
+    return percentiles(counts, quantile)[0];
+  }
+
+  /**
+   * Returns percentiles of everything recorded since the last call, and
+   * starts over.  Durations recorded meanwhile count towards one call or
+   * the next.
+   *
+   * @param quantiles The percentiles as fractions.
+   * @return The durations, or 0s if nothing was recorded.
+   */
+  public long[] getPercentilesAndReset(double... quantiles)
+  {
+    long[] counts = new long[buckets.length];
+    for (int i = 0; i < counts.length; i++)
+    {
+      counts[i] = buckets[i].sumThenReset();
+    }
+    sum.reset();
+    return percentiles(counts, quantiles);
+  }
+
+  private long[] percentiles(long[] counts, double... quantiles)
+  {
+    long count = 0;
+    for (long bucket : counts)
+    {
+      count += bucket;
+    }
+    long[] values = new long[quantiles.length];
+    for (int q = 0; q < quantiles.length && count > 0; q++)
+    {
+      long target = Math.max(1, (long)Math.ceil(quantiles[q] * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++)
+      {
+        seen += counts[i];
+        if (seen >= target)
+        {
+          values[q] = value(i);
+          break;
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Returns the bucket of a duration.
+   */
+  int index(long value)
+  {
+    int subBuckets = 1 << subBits;
+    if (value < subBuckets)
+    {
+      return (int)value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exponent - subBits)) & (subBuckets - 1);
+    return subBuckets * (exponent - subBits + 1) + sub;
+  }
+
+  /**
+   * Returns the middle of the range of durations a bucket holds.
+   */
+  long value(int index)
+  {
+    int subBuckets = 1 << subBits;
+    if (index < subBuckets)
+    {
+      return index;
+    }
+    int exponent = index / subBuckets + subBits - 1;
+    long low = (long)(subBuckets + index % subBuckets) << (exponent - subBits);
+    return low + (1L << (exponent - subBits)) / 2;
+  }
+}
+//End of Histogram class
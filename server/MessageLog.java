@@ -0,0 +1,510 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only log of chat messages kept on disk, so that history
+ * survives a restart.<p>
+ *
+ * The log is a directory of segment files named after their sequence
+ * number.  Messages are appended to the newest segment; once it reaches
+ * the segment size a new one is started, and the oldest segments beyond
+ * the retention limit are deleted.  Appends only queue the message: one
+ * writer thread takes everything queued, writes it with a single
+ * gathering write and syncs it to disk once for the whole batch.<p>
+ *
+ * Reads go through memory-mapped views of the segments and scan them
+ * backwards from the end, so looking up the last few messages of a
+ * channel touches only the end of the log and copies only the messages
+ * returned onto the heap.<p>
+ *
+ * Each record is laid out as its length, the length and UTF-8 bytes of
+ * the channel name, the UTF-8 bytes of the message, and the length
+ * again so the log can be read in either direction.  A torn record at
+ * the end of a segment, left by a crash, is cut off when the log is
+ * opened.<p>
+ *
+ * The directory, segment size, number of segments kept and whether each
+ * batch is synced to disk default to the system properties
+ * <code>simplechat.log.dir</code>, <code>simplechat.log.segmentSize</code>,
+ * <code>simplechat.log.retainedSegments</code> and
+ * <code>simplechat.log.sync</code>.
+ */
+public class MessageLog implements Closeable
+{
+  //Class variables *************************************************
+
+  /**
+   * The default directory of the log.
+   */
+  final public static String DEFAULT_DIRECTORY = System.getProperty("simplechat.log.dir", "chatlog");
+
+  /**
+   * The default size in bytes at which a segment is closed and a new
+   * one started.
+   */
+  final public static int DEFAULT_SEGMENT_SIZE =
+    Integer.getInteger("simplechat.log.segmentSize", 16 * 1024 * 1024);
+
+  /**
+   * The default number of segments kept, including the one being
+   * written.
+   */
+  final public static int DEFAULT_RETAINED_SEGMENTS =
+    Integer.getInteger("simplechat.log.retainedSegments", 8);
+
+  /**
+   * Whether each batch is synced to disk by default.
+   */
+  final public static boolean DEFAULT_SYNC =
+    Boolean.parseBoolean(System.getProperty("simplechat.log.sync", "true"));
+
+  /**
+   * The file name suffix of segments.
+   */
+  final static String SUFFIX = ".log";
+
+  /**
+   * The bytes a record takes besides the channel name and message: two
+   * lengths and the length of the channel name.
+   */
+  final static int RECORD_OVERHEAD = 4 + 2 + 4;
+
+  /**
+   * The most records written in one batch.
+   */
+  final static int MAX_BATCH = 1024;
+
+  /**
+   * Queued by close to stop the writer once everything before it is
+   * written.
+   */
+  private final static ByteBuffer END = ByteBuffer.allocate(0);
+
+  //Instance variables **********************************************
+
+  private final Path directory;
+
+  private final int segmentSize;
+
+  private final int retainedSegments;
+
+  private final boolean sync;
+
+  /**
+   * The segments, oldest first.  The last one is being written.  The
+   * writer replaces the array whenever segments are added or deleted.
+   */
+  private volatile Segment[] segments;
+
+  /**
+   * The file of the segment being written, used by the writer only.
+   */
+  private FileChannel active;
+
+  /**
+   * Records waiting to be written.
+   */
+  private final LinkedBlockingQueue<ByteBuffer> pending = new LinkedBlockingQueue<ByteBuffer>();
+
+  private final Thread writer;
+
+  private volatile boolean closed;
+
+  /**
+   * The error that stopped the writer, if any.
+   */
+  private volatile IOException failure;
+
+  //Constructors ****************************************************
+
+  /**
+   * Opens the log in the default directory with the default settings.
+   *
+   * @exception IOException if the log cannot be opened.
+   */
+  public MessageLog() throws IOException
+  {
+    this(Paths.get(DEFAULT_DIRECTORY), DEFAULT_SEGMENT_SIZE, DEFAULT_RETAINED_SEGMENTS,
+      DEFAULT_SYNC);
+  }
+
+  /**
+   * Opens a log, creating it if needed, and starts its writer.
+   *
+   * @param directory The directory of the log.
+   * @param segmentSize The size in bytes at which a new segment is started.
+   * @param retainedSegments The number of segments kept.
+   * @param sync Whether each batch is synced to disk.
+   * @exception IOException if the log cannot be opened.
+   */
+  public MessageLog(Path directory, int segmentSize, int retainedSegments, boolean sync)
+    throws IOException
+  {
+    if (segmentSize < 1 || retainedSegments < 1)
+    {
+      throw new IllegalArgumentException("segment size and retained segments must be positive");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.retainedSegments = retainedSegments;
+    this.sync = sync;
+
+    Files.createDirectories(directory);
+    List<Segment> found = new ArrayList<Segment>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX))
+    {
+      for (Path file : files)
+      {
+        String name = file.getFileName().toString();
+        try
+        {
+          found.add(new Segment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())),
+            file));
+        }
+        catch (NumberFormatException e) {}
+      }
+    }
+    found.sort((a, b) -> Long.compare(a.id, b.id));
+    for (Segment segment : found)
+    {
+      segment.size = recover(segment.path);
+    }
+    if (found.isEmpty())
+    {
+      found.add(new Segment(0, segmentPath(0)));
+    }
+    segments = found.toArray(new Segment[found.size()]);
+
+    Segment last = segments[segments.length - 1];
+    active = FileChannel.open(last.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    active.position(last.size);
+    retain();
+
+    writer = new Thread(this::run, "message-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Queues a message to be appended to the log.  Returns without waiting
+   * for the message to be written.
+   *
+   * @param channel The chat channel the message was sent to.
+   * @param text The message.
+   * @exception IOException if the log is closed or could not be written.
+   */
+  public void append(String channel, String text) throws IOException
+  {
+    if (failure != null)
+    {
+      throw new IOException("message log failed", failure);
+    }
+    if (closed)
+    {
+      throw new IOException("message log closed");
+    }
+    byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+    if (name.length > 0xffff)
+    {
+      throw new IllegalArgumentException("channel name too long");
+    }
+    int length = 2 + name.length + body.length;
+    ByteBuffer record = ByteBuffer.allocate(length + 8);
+    record.putInt(length).putShort((short)name.length).put(name).put(body).putInt(length).flip();
+    pending.add(record);
+  }
+
+  /**
+   * Returns the last messages written to a channel, oldest first.
+   * Messages still waiting to be written are not included.
+   *
+   * @param channel The chat channel.
+   * @param count The most messages to return; none if less than 1.
+   * @return The messages, at most count of them.
+   */
+  public List<String> recent(String channel, int count)
+  {
+    count = Math.max(0, count);
+    byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+    ArrayList<String> found = new ArrayList<String>(Math.min(count, 64));
+    Segment[] segments = this.segments;
+    for (int s = segments.length - 1; s >= 0 && found.size() < count; s--)
+    {
+      ByteBuffer view;
+      try
+      {
+        view = segments[s].view();
+      }
+      catch (IOException e)
+      {
+        break; // deleted by retention since we took the array
+      }
+      int position = view.limit();
+      while (position > 0 && found.size() < count)
+      {
+        int length = view.getInt(position - 4);
+        int start = position - length - 8;
+        if (matches(view, start + 6, view.getShort(start + 4) & 0xffff, name))
+        {
+          byte[] body = new byte[length - 2 - name.length];
+          view.get(start + 6 + name.length, body);
+          found.add(new String(body, StandardCharsets.UTF_8));
+        }
+        position = start;
+      }
+    }
+    Collections.reverse(found);
+    return found;
+  }
+
+  /**
+   * Writes everything queued, stops the writer and closes the log.
+   */
+  public void close() throws IOException
+  {
+    if (closed)
+    {
+      return;
+    }
+    closed = true;
+    pending.add(END);
+    try
+    {
+      writer.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    active.close();
+    if (failure != null)
+    {
+      throw failure;
+    }
+  }
+
+  /**
+   * Returns whether the channel name stored at an offset is the one
+   * given, without decoding it.
+   */
+  private static boolean matches(ByteBuffer view, int offset, int length, byte[] name)
+  {
+    if (length != name.length)
+    {
+      return false;
+    }
+    for (int i = 0; i < length; i++)
+    {
+      if (view.get(offset + i) != name[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes batches of queued records until the log is closed.  Runs on
+   * the writer thread.
+   */
+  private void run()
+  {
+    ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>(MAX_BATCH);
+    boolean stop = false;
+    try
+    {
+      while (!stop)
+      {
+        batch.add(pending.take());
+        pending.drainTo(batch, MAX_BATCH - 1);
+        if (batch.get(batch.size() - 1) == END)
+        {
+          batch.remove(batch.size() - 1);
+          stop = true;
+        }
+        write(batch);
+        batch.clear();
+      }
+    }
+    catch (IOException e)
+    {
+      failure = e;
+    }
+    catch (InterruptedException e) {}
+  }
+
+  /**
+   * Writes a batch, starting new segments as they fill up, and syncs it.
+   */
+  private void write(List<ByteBuffer> batch) throws IOException
+  {
+    int from = 0;
+    while (from < batch.size())
+    {
+      Segment segment = segments[segments.length - 1];
+      long size = segment.size;
+      int to = from;
+      while (to < batch.size() && (size == 0 || size + batch.get(to).remaining() <= segmentSize))
+      {
+        size += batch.get(to).remaining();
+        to++;
+      }
+      if (to == from)
+      {
+        roll();
+        continue;
+      }
+      ByteBuffer[] records = batch.subList(from, to).toArray(new ByteBuffer[to - from]);
+      long written = 0;
+      while (written < size - segment.size)
+      {
+        written += active.write(records);
+      }
+      if (sync)
+      {
+        active.force(false);
+      }
+      segment.size = size;
+      from = to;
+    }
+  }
+
+  /**
+   * Closes the segment being written and starts the next one.
+   */
+  private void roll() throws IOException
+  {
+    Segment last = segments[segments.length - 1];
+    active.force(false);
+    active.close();
+    Segment next = new Segment(last.id + 1, segmentPath(last.id + 1));
+    active = FileChannel.open(next.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING);
+    Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+    grown[segments.length] = next;
+    segments = grown;
+    retain();
+  }
+
+  /**
+   * Deletes the oldest segments beyond the retention limit.
+   */
+  private void retain() throws IOException
+  {
+    int excess = segments.length - retainedSegments;
+    if (excess <= 0)
+    {
+      return;
+    }
+    Segment[] kept = Arrays.copyOfRange(segments, excess, segments.length);
+    Segment[] dropped = Arrays.copyOf(segments, excess);
+    segments = kept;
+    for (Segment segment : dropped)
+    {
+      Files.deleteIfExists(segment.path);
+    }
+  }
+
+  private Path segmentPath(long id)
+  {
+    return directory.resolve(String.format("%020d", id) + SUFFIX);
+  }
+
+  /**
+   * Finds the end of the last whole record in a segment and cuts off
+   * anything after it.
+   *
+   * @return The size of the segment.
+   */
+  private static long recover(Path path) throws IOException
+  {
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ,
+      StandardOpenOption.WRITE))
+    {
+      long size = file.size();
+      if (size == 0)
+      {
+        return 0;
+      }
+      MappedByteBuffer view = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      int position = 0;
+      while (position + 4 <= size)
+      {
+        int length = view.getInt(position);
+        if (length < 2 || position + (long)length + 8 > size
+          || view.getInt(position + 4 + length) != length)
+        {
+          break;
+        }
+        position += length + 8;
+      }
+      if (position < size)
+      {
+        file.truncate(position);
+      }
+      return position;
+    }
+  }
+
+  /**
+   * A segment file of the log.
+   */
+  private static final class Segment
+  {
+    final long id;
+
+    final Path path;
+
+    /**
+     * The bytes of whole records written to the segment.
+     */
+    volatile long size;
+
+    /**
+     * The latest mapping of the segment, made on first read and made
+     * again only once the segment has grown past it.
+     */
+    private volatile MappedByteBuffer mapped;
+
+    Segment(long id, Path path)
+    {
+      this.id = id;
+      this.path = path;
+    }
+
+    /**
+     * Returns a read-only view of the records written so far.
+     */
+    ByteBuffer view() throws IOException
+    {
+      long size = this.size;
+      if (size == 0)
+      {
+        return ByteBuffer.allocate(0);
+      }
+      MappedByteBuffer mapped = this.mapped;
+      if (mapped == null || mapped.capacity() < size)
+      {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ))
+        {
+          mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        this.mapped = mapped;
+      }
+      return mapped.duplicate().limit((int)size);
+    }
+  }
+}
+//End of MessageLog class
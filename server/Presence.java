@@ -0,0 +1,209 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.Frame;
+import common.HashedWheelTimer;
+
+/**
+ * Tells clients who came and went, and who is typing, in batches rather
+ * than one notice per event.  Changes are collected for a tick and then
+ * sent as one Frame.PRESENCE to every client and one Frame.TYPING to
+ * each channel where someone typed, so that 500 users logging on within
+ * a tick cost each client one message instead of 500.  A user who logs
+ * on and leaves again within the same tick is not mentioned at all.<p>
+ *
+ * Nothing is scheduled while nothing changes.  The tick comes from the
+ * system property <code>simplechat.presence.tick</code>; typing
+ * indicators can be turned off with <code>simplechat.typing</code>.
+ */
+public final class Presence
+{
+  //Class variables *************************************************
+
+  /**
+   * How long changes are collected before they are sent, in
+   * milliseconds.
+   */
+  final public static int DEFAULT_TICK = Integer.getInteger("simplechat.presence.tick", 1000);
+
+  /**
+   * Whether typing indicators are passed on.
+   */
+  final public static boolean DEFAULT_TYPING =
+    Boolean.parseBoolean(System.getProperty("simplechat.typing", "true"));
+
+  //Instance variables **********************************************
+
+  private final AbstractServer server;
+
+  private final long tick;
+
+  /**
+   * Whether each user who changed since the last batch is now logged on,
+   * in the order of the changes.  Guarded by this.
+   */
+  private Map<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+
+  /**
+   * Who typed in each channel since the last batch.  Guarded by this.
+   */
+  private Map<String, Set<String>> typing = new HashMap<String, Set<String>>();
+
+  /**
+   * Held while a batch is taken and sent, so that batches arrive in
+   * order.
+   */
+  private final ReentrantLock sending = new ReentrantLock();
+
+  private final Tick timeout = new Tick();
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs the presence of a server, with the default tick.
+   *
+   * @param server The server whose clients are told.
+   */
+  public Presence(AbstractServer server)
+  {
+    this(server, DEFAULT_TICK);
+  }
+
+  /**
+   * Constructs the presence of a server.
+   *
+   * @param server The server whose clients are told.
+   * @param tickMillis How long changes are collected, in milliseconds.
+   */
+  public Presence(AbstractServer server, int tickMillis)
+  {
+    if (tickMillis <= 0)
+    {
+      throw new IllegalArgumentException("invalid tick");
+    }
+    this.server = server;
+    this.tick = tickMillis * 1000000L;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Records that a user logged on.
+   *
+   * @param loginID The login ID.
+   */
+  public void online(String loginID)
+  {
+    change(loginID, true);
+  }
+
+  /**
+   * Records that a user left.
+   *
+   * @param loginID The login ID.
+   */
+  public void offline(String loginID)
+  {
+    change(loginID, false);
+  }
+
+  /**
+   * Records that a client is typing in its channel.  Ignored if typing
+   * indicators are off or the client has not logged on.
+   *
+   * @param client The client.
+   */
+  public void typing(ConnectionToClient client)
+  {
+    String loginID = client.getLoginID();
+    if (!DEFAULT_TYPING || loginID == null)
+    {
+      return;
+    }
+    synchronized (this)
+    {
+      typing.computeIfAbsent(client.getChannel(), channel -> new LinkedHashSet<String>()).add(loginID);
+      schedule();
+    }
+  }
+
+  /**
+   * Sends what changed since the last batch now, rather than at the end
+   * of the tick.
+   */
+  public void flush()
+  {
+    sending.lock();
+    try
+    {
+      Map<String, Boolean> changes;
+      Map<String, Set<String>> typing;
+      synchronized (this)
+      {
+        changes = this.changes;
+        typing = this.typing;
+        this.changes = new LinkedHashMap<String, Boolean>();
+        this.typing = new HashMap<String, Set<String>>();
+      }
+      if (!changes.isEmpty())
+      {
+        List<String> online = new ArrayList<String>();
+        List<String> offline = new ArrayList<String>();
+        for (Map.Entry<String, Boolean> change : changes.entrySet())
+        {
+          (change.getValue() ? online : offline).add(change.getKey());
+        }
+        server.sendToAllClients(Frame.presence(online, offline));
+      }
+      for (Map.Entry<String, Set<String>> channel : typing.entrySet())
+      {
+        server.sendToChannel(channel.getKey(), Frame.typing(channel.getValue()));
+      }
+    }
+    finally
+    {
+      sending.unlock();
+    }
+  }
+
+  private synchronized void change(String loginID, boolean online)
+  {
+    Boolean before = changes.put(loginID, online);
+    if (before != null && before != online) // back where the batch started
+    {
+      changes.remove(loginID);
+    }
+    schedule();
+  }
+
+  /**
+   * Schedules the next batch, unless it is scheduled already.  Called
+   * with this locked, so the timeout is scheduled by one thread at a
+   * time.
+   */
+  private void schedule()
+  {
+    if (!timeout.isScheduled())
+    {
+      server.timer().schedule(timeout, tick);
+    }
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * The end of a tick.  Sending to every client takes longer than the
+   * timer thread should be held up, so the batch is sent from a virtual
+   * thread.
+   */
+  private final class Tick extends HashedWheelTimer.Timeout
+  {
+    protected void expire()
+    {
+      Thread.ofVirtual().name("presence").start(Presence.this::flush);
+    }
+  }
+}
+//End of Presence class
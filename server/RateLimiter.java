@@ -0,0 +1,287 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits how fast clients may send, so that one client spamming lines
+ * cannot make the server broadcast thousands of messages a second to
+ * everybody.  Each login has a budget of messages and of bytes per
+ * second; on top of that the whole server has a budget of deliveries
+ * per second, a message costing one delivery per member of the sender's
+ * channel, which caps the work of the broadcasts clients can cause.<p>
+ *
+ * A message over budget is either rejected (dropped) or throttled: held
+ * back until the budget allows it, which also stops reading from the
+ * client, so TCP pushes back on it.  A message that would have to wait
+ * more than MAX_DELAY is rejected in either mode.<p>
+ *
+ * Budgets follow the login ID, not the connection, so reconnecting does
+ * not refill them; until a client logs on it has one of its own.  All
+ * buckets are TokenBuckets, so checking a message takes no lock and
+ * allocates nothing.
+ */
+public final class RateLimiter
+{
+  //Class variables *************************************************
+
+  /**
+   * What to do with a message over budget.
+   */
+  public enum Mode
+  {
+    /**
+     * Drop it.
+     */
+    REJECT,
+
+    /**
+     * Handle it late, when the budget allows.
+     */
+    THROTTLE
+  }
+
+  /**
+   * The default number of messages a login may send per second, or 0
+   * for no limit.
+   */
+  final public static int DEFAULT_MESSAGE_RATE = Integer.getInteger("simplechat.rateLimit.messages", 0);
+
+  /**
+   * The default number of bytes a login may send per second, or 0 for
+   * no limit.
+   */
+  final public static int DEFAULT_BYTE_RATE = Integer.getInteger("simplechat.rateLimit.bytes", 0);
+
+  /**
+   * The default number of deliveries to recipients that the messages of
+   * all clients together may cause per second, or 0 for no limit.
+   */
+  final public static int DEFAULT_DELIVERY_RATE = Integer.getInteger("simplechat.rateLimit.deliveries", 0);
+
+  /**
+   * The default burst, in seconds of budget that may be spent at once.
+   */
+  final public static int DEFAULT_BURST = Integer.getInteger("simplechat.rateLimit.burst", 2);
+
+  /**
+   * The default mode.
+   */
+  final public static Mode DEFAULT_MODE = Mode.valueOf
+    (System.getProperty("simplechat.rateLimit.mode", "reject").toUpperCase());
+
+  /**
+   * The longest a message is held back, in nanoseconds.
+   */
+  final public static long MAX_DELAY = 5000000000L;
+
+  /**
+   * Returned by admit for a message that must be dropped.
+   */
+  final static long REJECTED = -1;
+
+  //Instance variables **********************************************
+
+  private final int messageRate;
+
+  private final int byteRate;
+
+  private final int burst;
+
+  private final Mode mode;
+
+  /**
+   * The server-wide budget of deliveries, or null for none.
+   */
+  private final TokenBucket deliveries;
+
+  /**
+   * The budgets of logins that sent lately.
+   */
+  private final Map<String, Limits> logins = new ConcurrentHashMap<String, Limits>();
+
+  /**
+   * The number of budgets above which idle ones are forgotten.
+   */
+  private volatile int purgeAt = 1024;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a rate limiter.  Rates of 0 mean no limit.
+   *
+   * @param messageRate Messages per second per login.
+   * @param byteRate Bytes per second per login.
+   * @param deliveryRate Deliveries per second for the whole server.
+   * @param burst Seconds of budget that may be spent at once.
+   * @param mode What to do with messages over budget.
+   */
+  public RateLimiter(int messageRate, int byteRate, int deliveryRate, int burst, Mode mode)
+  {
+    if (messageRate < 0 || byteRate < 0 || deliveryRate < 0 || burst <= 0)
+    {
+      throw new IllegalArgumentException("invalid rate limit");
+    }
+    this.messageRate = messageRate;
+    this.byteRate = byteRate;
+    this.burst = burst;
+    this.mode = mode;
+    this.deliveries = deliveryRate == 0 ? null
+      : new TokenBucket(deliveryRate, (long)deliveryRate * burst);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Returns whether deliveries are limited, so that admit needs to be
+   * told how many recipients a message has.
+   */
+  boolean limitsDeliveries()
+  {
+    return deliveries != null;
+  }
+
+  public Mode getMode()
+  {
+    return mode;
+  }
+
+  /**
+   * Charges a message just received to its sender's budget and to the
+   * server's.  Called only by the thread reading the connection.  Every
+   * budget is checked before any is charged, so a message one budget
+   * rejects costs the others nothing: a client flooding the server does
+   * not spend everybody's deliveries on messages that are dropped.
+   *
+   * @param client The sender.
+   * @param bytes The size of the message on the wire.
+   * @param recipients The number of clients it is likely to reach.
+   * @return 0 if it may be handled now, the nanoseconds to hold it back
+   *         otherwise, or REJECTED if it must be dropped.
+   */
+  long admit(ConnectionToClient client, int bytes, int recipients)
+  {
+    Limits limits = limitsOf(client);
+    if (rejects(limits.messages, 1) || rejects(limits.bytes, bytes) || rejects(deliveries, recipients))
+    {
+      return REJECTED;
+    }
+    long delay = charge(limits.messages, 1);
+    delay = Math.max(delay, charge(limits.bytes, bytes));
+    return Math.max(delay, charge(deliveries, recipients));
+  }
+
+  /**
+   * Returns whether a bucket rejects a message: it does not hold the
+   * tokens, and the mode or MAX_DELAY do not allow waiting for them.
+   */
+  private boolean rejects(TokenBucket bucket, long tokens)
+  {
+    if (bucket == null)
+    {
+      return false;
+    }
+    long wait = bucket.waitFor(tokens);
+    return wait > 0 && (mode == Mode.REJECT || wait > MAX_DELAY);
+  }
+
+  /**
+   * Takes tokens from a bucket, borrowing against the refill if another
+   * thread took them since rejects looked.
+   *
+   * @return How long to hold the message back, 0 if not at all.
+   */
+  private static long charge(TokenBucket bucket, long tokens)
+  {
+    return bucket == null ? 0 : bucket.take(tokens);
+  }
+
+  /**
+   * Returns the budget of a client, following it from its connection to
+   * its login ID once it has logged on.
+   */
+  private Limits limitsOf(ConnectionToClient client)
+  {
+    Limits limits = client.limits;
+    String loginID = client.loginID;
+    if (limits != null && (loginID == null || loginID.equals(limits.loginID)))
+    {
+      return limits;
+    }
+    if (loginID == null)
+    {
+      limits = new Limits(null);
+    }
+    else
+    {
+      limits = logins.get(loginID);
+      if (limits == null)
+      {
+        purge();
+        limits = logins.computeIfAbsent(loginID, Limits::new);
+      }
+    }
+    client.limits = limits;
+    return limits;
+  }
+
+  /**
+   * Forgets the budgets of logins that have not sent for a while, once
+   * there are many of them.  A forgotten budget was full anyway.
+   */
+  private void purge()
+  {
+    if (logins.size() < purgeAt)
+    {
+      return;
+    }
+    logins.values().removeIf(Limits::isFull);
+    purgeAt = Math.max(1024, 2 * logins.size());
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the rate limiter configured by the simplechat.rateLimit
+   * system properties, or null if they set no limit.
+   */
+  public static RateLimiter fromProperties()
+  {
+    if (DEFAULT_MESSAGE_RATE == 0 && DEFAULT_BYTE_RATE == 0 && DEFAULT_DELIVERY_RATE == 0)
+    {
+      return null;
+    }
+    return new RateLimiter(DEFAULT_MESSAGE_RATE, DEFAULT_BYTE_RATE, DEFAULT_DELIVERY_RATE,
+      DEFAULT_BURST, DEFAULT_MODE);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * The budget of one login, or of one connection before it logs on.
+   */
+  final class Limits
+  {
+    final String loginID;
+
+    /**
+     * The message and byte budgets, null where there is no limit.
+     */
+    final TokenBucket messages;
+    final TokenBucket bytes;
+
+    Limits(String loginID)
+    {
+      this.loginID = loginID;
+      this.messages = messageRate == 0 ? null
+        : new TokenBucket(messageRate, (long)messageRate * burst);
+      this.bytes = byteRate == 0 ? null : new TokenBucket(byteRate, (long)byteRate * burst);
+    }
+
+    boolean isFull()
+    {
+      return (messages == null || messages.isFull()) && (bytes == null || bytes.isFull());
+    }
+  }
+}
+//End of RateLimiter class
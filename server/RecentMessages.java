@@ -0,0 +1,233 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.Frame;
+import common.MessageCodec;
+
+/**
+ * The last messages sent to a chat channel, kept encoded so they can be
+ * replayed to a client that just logged on without encoding them again.<p>
+ *
+ * The messages sit in a ring of slots allocated up front.  Adding a
+ * message claims the next slot with one atomic increment and overwrites
+ * the oldest message; reading never locks and skips a slot that has been
+ * overwritten while it was read.<p>
+ *
+ * Messages are numbered in the order they are added, and a client that
+ * reconnects can be sent the ones after the last number it saw.
+ */
+final class RecentMessages
+{
+  //Instance variables **********************************************
+
+  private final AtomicReferenceArray<Entry> slots;
+
+  /**
+   * The sequence number of the next message; message n goes into slot
+   * n modulo the capacity.
+   */
+  private final AtomicLong next = new AtomicLong();
+
+  /**
+   * Held while a message is numbered, sent and kept, so that every
+   * member of the channel receives the messages in the order of their
+   * numbers.
+   */
+  final ReentrantLock order = new ReentrantLock();
+
+  //Constructors ****************************************************
+
+  /**
+   * @param capacity The number of messages kept.
+   */
+  RecentMessages(int capacity)
+  {
+    slots = new AtomicReferenceArray<Entry>(capacity);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Keeps a message, replacing the oldest one if the ring is full.
+   *
+   * @param msg The message.
+   * @param encoded The message as encoded by each codec so far, indexed
+   *        by codec ID; missing encodings are made when first replayed.
+   */
+  void add(Object msg, ByteBuffer[] encoded)
+  {
+    long sequence = next.getAndIncrement();
+    slots.set((int)(sequence % slots.length()), new Entry(sequence, msg, encoded));
+  }
+
+  /**
+   * Returns the sequence number the next message added will get.  The
+   * caller holds order.
+   */
+  long nextSequence()
+  {
+    return next.get();
+  }
+
+  /**
+   * Returns whether every message after a sequence number is still kept.
+   */
+  boolean holdsAfter(long sequence)
+  {
+    return sequence + 1 >= next.get() - slots.length();
+  }
+
+  /**
+   * Returns the messages kept, oldest first, as the frames they were
+   * published as.  The caller holds order.
+   */
+  List<Frame> kept()
+  {
+    long end = next.get();
+    List<Frame> kept = new ArrayList<Frame>();
+    for (long sequence = Math.max(0, end - slots.length()); sequence < end; sequence++)
+    {
+      Entry entry = slots.get((int)(sequence % slots.length()));
+      if (entry != null && entry.sequence == sequence && entry.msg instanceof Frame)
+      {
+        kept.add((Frame)entry.msg);
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Keeps messages numbered by another server, such as the process this
+   * one took over from, and goes on numbering after them.  Called before
+   * anything is added.
+   *
+   * @param kept The messages, SEQUENCED frames, oldest first.
+   * @param sequence The sequence number of the next message.
+   */
+  void restore(List<Frame> kept, long sequence)
+  {
+    for (Frame frame : kept)
+    {
+      long number = frame.getSequence();
+      if (number >= 0 && number < sequence)
+      {
+        slots.set((int)(number % slots.length()),
+          new Entry(number, frame, new ByteBuffer[MessageCodec.CODEC_COUNT]));
+      }
+    }
+    next.set(sequence);
+  }
+
+  /**
+   * Returns the last messages, oldest first, encoded back to back by a
+   * codec so that they can be written at once, compressed together if
+   * the codec compresses.
+   *
+   * @param codec The codec of the client they are for.
+   * @param count The most messages to include.
+   * @return The encoded messages, or null if there are none.
+   */
+  ByteBuffer replay(MessageCodec codec, int count)
+  {
+    long end = next.get();
+    return replay(codec, Math.max(0, end - Math.min(count, slots.length())), end);
+  }
+
+  /**
+   * Returns the messages kept after a sequence number, like replay.
+   *
+   * @param codec The codec of the client they are for.
+   * @param sequence The number of the last message the client has.
+   * @return The encoded messages, or null if there are none.
+   */
+  ByteBuffer replayAfter(MessageCodec codec, long sequence)
+  {
+    long end = next.get();
+    return replay(codec, Math.max(sequence + 1, end - slots.length()), end);
+  }
+
+  /**
+   * Returns the messages numbered from start to end, exclusive.
+   */
+  private ByteBuffer replay(MessageCodec codec, long start, long end)
+  {
+    if (start >= end)
+    {
+      return null;
+    }
+    Entry[] entries = new Entry[(int)(end - start)];
+    int size = 0;
+    for (long sequence = start; sequence < end; sequence++)
+    {
+      Entry entry = slots.get((int)(sequence % slots.length()));
+      if (entry != null && entry.sequence == sequence)
+      {
+        entries[(int)(sequence - start)] = entry;
+        size += entry.encoded(codec).remaining();
+      }
+    }
+    if (size == 0)
+    {
+      return null;
+    }
+    ByteBuffer batch = ByteBuffer.allocate(size);
+    for (Entry entry : entries)
+    {
+      if (entry != null)
+      {
+        batch.put(entry.encoded(codec).duplicate());
+      }
+    }
+    return codec.pack(batch.flip());
+  }
+
+  /**
+   * A message in a slot.
+   */
+  private static final class Entry
+  {
+    final long sequence;
+
+    final Object msg;
+
+    /**
+     * Shared with the broadcast that sent the message.  Filling in a
+     * missing codec here may race with another replay; both store an
+     * identical buffer.
+     */
+    final ByteBuffer[] encoded;
+
+    Entry(long sequence, Object msg, ByteBuffer[] encoded)
+    {
+      this.sequence = sequence;
+      this.msg = msg;
+      this.encoded = encoded;
+    }
+
+    ByteBuffer encoded(MessageCodec codec)
+    {
+      ByteBuffer buffer = encoded[codec.id()];
+      if (buffer == null)
+      {
+        try
+        {
+          buffer = codec.encode(msg).asReadOnlyBuffer();
+        }
+        catch (IOException e)
+        {
+          buffer = ByteBuffer.allocate(0);
+        }
+        encoded[codec.id()] = buffer;
+      }
+      return buffer;
+    }
+  }
+}
+//End of RecentMessages class
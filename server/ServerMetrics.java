@@ -0,0 +1,451 @@
+package server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.*;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and histograms describing what a server has been doing.<p>
+ *
+ * Everything recorded on the message path is a LongAdder or a Histogram,
+ * both striped across threads, so recording costs a few uncontended
+ * increments.  Gauges such as the number of connections and the
+ * outbound queue depths are computed when read.<p>
+ *
+ * The metrics can be read through the getters, printed with toString
+ * (the server console's #stats), read over JMX while the server is
+ * listening (see ServerMetricsMBean), or scraped in the Prometheus text
+ * format.  The system property <code>simplechat.metricsPort</code> makes
+ * a listening server also serve that format over HTTP at
+ * <code>http://localhost:<i>port</i>/metrics</code>.
+ */
+public final class ServerMetrics implements ServerMetricsMBean
+{
+  //Class variables *************************************************
+
+  /**
+   * The port of the HTTP metrics endpoint, or 0 for none.
+   */
+  final public static int DEFAULT_METRICS_PORT = Integer.getInteger("simplechat.metricsPort", 0);
+
+  //Instance variables **********************************************
+
+  private final Collection<ConnectionToClient> clients;
+
+  final LongAdder connectionsOpened = new LongAdder();
+  final LongAdder connectionsClosed = new LongAdder();
+  final LongAdder logins = new LongAdder();
+  final LongAdder messagesIn = new LongAdder();
+  final LongAdder bytesIn = new LongAdder();
+  final LongAdder messagesOut = new LongAdder();
+  final LongAdder bytesOut = new LongAdder();
+  final LongAdder droppedMessages = new LongAdder();
+
+  /**
+   * The messages from clients dropped, or held back, by the rate limits.
+   */
+  final LongAdder rejectedMessages = new LongAdder();
+  final LongAdder throttledMessages = new LongAdder();
+
+  /**
+   * Connections closed because the client went quiet.
+   */
+  final LongAdder idleTimeouts = new LongAdder();
+
+  /**
+   * The number of broadcasts, to all clients or to a channel.
+   */
+  final LongAdder broadcasts = new LongAdder();
+
+  /**
+   * The number of times a broadcast message was encoded: once per kind
+   * of codec in use, not once per client.
+   */
+  final LongAdder broadcastEncodings = new LongAdder();
+
+  /**
+   * The bytes allocated on the heap by the threads running broadcasts,
+   * while running them.
+   */
+  final LongAdder broadcastAllocatedBytes = new LongAdder();
+
+  /**
+   * How long each broadcast took to queue the message for every
+   * recipient.
+   */
+  final Histogram broadcastTime = new Histogram();
+
+  /**
+   * How long handleMessageFromClient took for each message.
+   */
+  final Histogram handlerTime = new Histogram();
+
+  /**
+   * TLS handshakes completed and failed, and how long each completed
+   * one took.
+   */
+  final LongAdder tlsHandshakes = new LongAdder();
+  final LongAdder tlsHandshakeFailures = new LongAdder();
+  final Histogram tlsHandshakeTime = new Histogram();
+
+  /**
+   * How long each connection took from being accepted to having picked
+   * its codec, including any TLS handshake and waiting for a thread.
+   */
+  final Histogram connectionSetupTime = new Histogram();
+
+  /**
+   * The name the metrics are registered under over JMX, or null.
+   */
+  private ObjectName registered;
+
+  /**
+   * The HTTP endpoint, or null.
+   */
+  private HttpServer endpoint;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs the metrics of a server.
+   *
+   * @param clients The server's open connections, read as they change.
+   */
+  ServerMetrics(Collection<ConnectionToClient> clients)
+  {
+    this.clients = clients;
+  }
+
+  //Instance methods ************************************************
+
+  public int getConnections()
+  {
+    return clients.size();
+  }
+
+  public long getConnectionsOpened()
+  {
+    return connectionsOpened.sum();
+  }
+
+  public long getConnectionsClosed()
+  {
+    return connectionsClosed.sum();
+  }
+
+  public long getLogins()
+  {
+    return logins.sum();
+  }
+
+  public long getMessagesIn()
+  {
+    return messagesIn.sum();
+  }
+
+  public long getBytesIn()
+  {
+    return bytesIn.sum();
+  }
+
+  /**
+   * Returns the number of messages queued to clients.  A replay of
+   * recent messages counts as one.
+   */
+  public long getMessagesOut()
+  {
+    return messagesOut.sum();
+  }
+
+  public long getBytesOut()
+  {
+    return bytesOut.sum();
+  }
+
+  public long getDroppedMessages()
+  {
+    return droppedMessages.sum();
+  }
+
+  public long getRejectedMessages()
+  {
+    return rejectedMessages.sum();
+  }
+
+  public long getThrottledMessages()
+  {
+    return throttledMessages.sum();
+  }
+
+  public long getIdleTimeouts()
+  {
+    return idleTimeouts.sum();
+  }
+
+  /**
+   * Returns the number of messages waiting in all outbound queues.
+   */
+  public long getOutboundQueued()
+  {
+    long queued = 0;
+    for (ConnectionToClient client : clients)
+    {
+      queued += client.getOutboundQueueDepth();
+    }
+    return queued;
+  }
+
+  /**
+   * Returns the depth of the longest outbound queue.
+   */
+  public int getLargestOutboundQueue()
+  {
+    int largest = 0;
+    for (ConnectionToClient client : clients)
+    {
+      largest = Math.max(largest, client.getOutboundQueueDepth());
+    }
+    return largest;
+  }
+
+  public long getBroadcasts()
+  {
+    return broadcasts.sum();
+  }
+
+  public long getBroadcastP50Micros()
+  {
+    return broadcastTime.getPercentile(0.50) / 1000;
+  }
+
+  public long getBroadcastP99Micros()
+  {
+    return broadcastTime.getPercentile(0.99) / 1000;
+  }
+
+  public long getHandlerP50Micros()
+  {
+    return handlerTime.getPercentile(0.50) / 1000;
+  }
+
+  public long getHandlerP99Micros()
+  {
+    return handlerTime.getPercentile(0.99) / 1000;
+  }
+
+  public long getTlsHandshakes()
+  {
+    return tlsHandshakes.sum();
+  }
+
+  public long getTlsHandshakeFailures()
+  {
+    return tlsHandshakeFailures.sum();
+  }
+
+  public long getTlsHandshakeP50Micros()
+  {
+    return tlsHandshakeTime.getPercentile(0.50) / 1000;
+  }
+
+  public long getTlsHandshakeP99Micros()
+  {
+    return tlsHandshakeTime.getPercentile(0.99) / 1000;
+  }
+
+  public long getConnectionSetupP50Micros()
+  {
+    return connectionSetupTime.getPercentile(0.50) / 1000;
+  }
+
+  public long getConnectionSetupP99Micros()
+  {
+    return connectionSetupTime.getPercentile(0.99) / 1000;
+  }
+
+  /**
+   * Returns the histogram of connection setup times.
+   */
+  public Histogram getConnectionSetupTime()
+  {
+    return connectionSetupTime;
+  }
+
+  /**
+   * Returns the histogram of broadcast times.
+   */
+  public Histogram getBroadcastTime()
+  {
+    return broadcastTime;
+  }
+
+  /**
+   * Returns the histogram of handleMessageFromClient times.
+   */
+  public Histogram getHandlerTime()
+  {
+    return handlerTime;
+  }
+
+  /**
+   * Returns the metrics in the Prometheus text exposition format.
+   */
+  public String toPrometheus()
+  {
+    StringBuilder out = new StringBuilder(2048);
+    gauge(out, "simplechat_connections", "Open client connections.", getConnections());
+    counter(out, "simplechat_connections_opened_total", "Connections opened.", getConnectionsOpened());
+    counter(out, "simplechat_connections_closed_total", "Connections closed.", getConnectionsClosed());
+    summary(out, "simplechat_connection_setup_seconds",
+      "Time from accepting a connection to the client picking its codec.", connectionSetupTime);
+    counter(out, "simplechat_idle_timeouts_total", "Connections closed because the client went quiet.",
+      getIdleTimeouts());
+    counter(out, "simplechat_logins_total", "Successful logins.", getLogins());
+    counter(out, "simplechat_messages_in_total", "Messages received from clients.", getMessagesIn());
+    counter(out, "simplechat_bytes_in_total", "Bytes received from clients.", getBytesIn());
+    counter(out, "simplechat_messages_out_total", "Messages queued to clients.", getMessagesOut());
+    counter(out, "simplechat_bytes_out_total", "Bytes written to clients.", getBytesOut());
+    counter(out, "simplechat_dropped_messages_total", "Messages dropped by full outbound queues.",
+      getDroppedMessages());
+    counter(out, "simplechat_rejected_messages_total", "Messages from clients dropped by rate limits.",
+      getRejectedMessages());
+    counter(out, "simplechat_throttled_messages_total", "Messages from clients delayed by rate limits.",
+      getThrottledMessages());
+    gauge(out, "simplechat_outbound_queued", "Messages waiting in outbound queues.", getOutboundQueued());
+    gauge(out, "simplechat_outbound_queue_largest", "Depth of the longest outbound queue.",
+      getLargestOutboundQueue());
+    counter(out, "simplechat_broadcasts_total", "Broadcasts sent.", getBroadcasts());
+    counter(out, "simplechat_broadcast_encodings_total", "Encodings made for broadcasts.",
+      broadcastEncodings.sum());
+    summary(out, "simplechat_broadcast_seconds", "Time to queue a broadcast to every recipient.",
+      broadcastTime);
+    summary(out, "simplechat_handler_seconds", "Time spent in handleMessageFromClient.", handlerTime);
+    counter(out, "simplechat_tls_handshake_failures_total", "TLS handshakes that failed or timed out.",
+      getTlsHandshakeFailures());
+    summary(out, "simplechat_tls_handshake_seconds", "Time to complete a TLS handshake.",
+      tlsHandshakeTime);
+    return out.toString();
+  }
+
+  /**
+   * Returns the metrics as lines of text, for the server console.
+   */
+  public String toString()
+  {
+    return "connections:     " + getConnections() + " open, " + getConnectionsOpened()
+      + " opened, " + getConnectionsClosed() + " closed, " + getIdleTimeouts() + " idle\n"
+      + "setup:           p50 " + getConnectionSetupP50Micros() + " us, p99 "
+      + getConnectionSetupP99Micros() + " us\n"
+      + "logins:          " + getLogins() + "\n"
+      + "messages in:     " + getMessagesIn() + " (" + getBytesIn() + " bytes)\n"
+      + "messages out:    " + getMessagesOut() + " (" + getBytesOut() + " bytes), "
+      + getDroppedMessages() + " dropped\n"
+      + "rate limited:    " + getRejectedMessages() + " rejected, " + getThrottledMessages()
+      + " throttled\n"
+      + "outbound queues: " + getOutboundQueued() + " queued, largest " + getLargestOutboundQueue()
+      + "\n"
+      + "broadcasts:      " + getBroadcasts() + ", p50 " + getBroadcastP50Micros() + " us, p99 "
+      + getBroadcastP99Micros() + " us\n"
+      + "handler:         p50 " + getHandlerP50Micros() + " us, p99 " + getHandlerP99Micros()
+      + " us\n"
+      + "tls handshakes:  " + getTlsHandshakes() + ", " + getTlsHandshakeFailures() + " failed, p50 "
+      + getTlsHandshakeP50Micros() + " us, p99 " + getTlsHandshakeP99Micros() + " us\n";
+  }
+
+  /**
+   * Registers the metrics over JMX and starts the HTTP endpoint if one is
+   * configured.  Failures leave the server running without them.
+   */
+  synchronized void publish(int port)
+  {
+    if (registered == null)
+    {
+      try
+      {
+        ObjectName name = new ObjectName("simplechat:type=Server,port=" + port);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        registered = name;
+      }
+      catch (JMException e) {}
+    }
+    if (endpoint == null && DEFAULT_METRICS_PORT > 0)
+    {
+      try
+      {
+        endpoint = HttpServer.create(new InetSocketAddress("localhost", DEFAULT_METRICS_PORT), 0);
+        endpoint.createContext("/metrics", exchange ->
+        {
+          byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody())
+          {
+            out.write(body);
+          }
+        });
+        endpoint.start();
+      }
+      catch (IOException e)
+      {
+        endpoint = null;
+      }
+    }
+  }
+
+  /**
+   * Undoes publish.
+   */
+  synchronized void unpublish()
+  {
+    if (registered != null)
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+      }
+      catch (JMException e) {}
+      registered = null;
+    }
+    if (endpoint != null)
+    {
+      endpoint.stop(0);
+      endpoint = null;
+    }
+  }
+
+  private static void counter(StringBuilder out, String name, String help, long value)
+  {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+      .append("# TYPE ").append(name).append(" counter\n")
+      .append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void gauge(StringBuilder out, String name, String help, long value)
+  {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+      .append("# TYPE ").append(name).append(" gauge\n")
+      .append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void summary(StringBuilder out, String name, String help, Histogram histogram)
+  {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+      .append("# TYPE ").append(name).append(" summary\n");
+    double[] quantiles = {0.5, 0.99, 0.999};
+    for (double quantile : quantiles)
+    {
+      out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+        .append(histogram.getPercentile(quantile) / 1e9).append('\n');
+    }
+    out.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n')
+      .append(name).append("_count ").append(histogram.getCount()).append('\n');
+  }
+}
+//End of ServerMetrics class
@@ -0,0 +1,61 @@
+package server;
+
+/**
+ * The management interface of ServerMetrics, under which each listening
+ * server is registered with the platform MBean server as
+ * <code>simplechat:type=Server,port=<i>port</i></code>.  Times are in
+ * microseconds.
+ */
+public interface ServerMetricsMBean
+{
+  int getConnections();
+
+  long getConnectionsOpened();
+
+  long getConnectionsClosed();
+
+  long getIdleTimeouts();
+
+  long getLogins();
+
+  long getMessagesIn();
+
+  long getBytesIn();
+
+  long getMessagesOut();
+
+  long getBytesOut();
+
+  long getDroppedMessages();
+
+  long getRejectedMessages();
+
+  long getThrottledMessages();
+
+  long getOutboundQueued();
+
+  int getLargestOutboundQueue();
+
+  long getBroadcasts();
+
+  long getBroadcastP50Micros();
+
+  long getBroadcastP99Micros();
+
+  long getHandlerP50Micros();
+
+  long getHandlerP99Micros();
+
+  long getTlsHandshakes();
+
+  long getTlsHandshakeFailures();
+
+  long getTlsHandshakeP50Micros();
+
+  long getTlsHandshakeP99Micros();
+
+  long getConnectionSetupP50Micros();
+
+  long getConnectionSetupP99Micros();
+}
+//End of ServerMetricsMBean interface
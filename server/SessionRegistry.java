@@ -0,0 +1,107 @@
+package server;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes logged-on clients by login ID.  Lookups never block, and a
+ * login ID is claimed with a single atomic putIfAbsent, so two clients
+ * racing for the same ID cannot both get it.  The server releases a
+ * client's ID when its connection closes, even if it closes while the
+ * ID is being claimed.
+ */
+public class SessionRegistry
+{
+  //Instance variables **********************************************
+
+  /**
+   * The connection holding each login ID.
+   */
+  private final ConcurrentHashMap<String, ConnectionToClient> sessions =
+    new ConcurrentHashMap<String, ConnectionToClient>();
+
+  /**
+   * Counts logins.
+   */
+  private final ServerMetrics metrics;
+
+  //Constructors ****************************************************
+
+  SessionRegistry(ServerMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Gives a login ID to a client unless another client holds it, or the
+   * client already has a login ID.
+   *
+   * @param loginID The login ID asked for.
+   * @param client The client asking for it.
+   * @return Whether the client now holds the login ID.
+   */
+  public boolean claim(String loginID, ConnectionToClient client)
+  {
+    if (client.loginID != null)
+    {
+      return loginID.equals(client.loginID);
+    }
+    client.loginID = loginID; // before the mapping is published, so release sees it
+    if (sessions.putIfAbsent(loginID, client) != null)
+    {
+      client.loginID = null;
+      return false;
+    }
+    if (!client.isConnected()) // closed, and perhaps released, while claiming
+    {
+      sessions.remove(loginID, client);
+      return false;
+    }
+    metrics.logins.increment();
+    return true;
+  }
+
+  /**
+   * Returns the client holding a login ID.
+   *
+   * @param loginID The login ID.
+   * @return The client, or null if nobody is logged on with that ID.
+   */
+  public ConnectionToClient find(String loginID)
+  {
+    return sessions.get(loginID);
+  }
+
+  /**
+   * Returns the number of logged-on clients.
+   */
+  public int size()
+  {
+    return sessions.size();
+  }
+
+  /**
+   * Returns the login IDs of the logged-on clients, sorted.
+   */
+  public SortedSet<String> loginIDs()
+  {
+    return new TreeSet<String>(sessions.keySet());
+  }
+
+  /**
+   * Frees the login ID of a client whose connection closed.  The client
+   * keeps reporting its login ID, so disconnect hooks can still name it.
+   */
+  void release(ConnectionToClient client)
+  {
+    String loginID = client.loginID;
+    if (loginID != null)
+    {
+      sessions.remove(loginID, client);
+    }
+  }
+}
+//End of SessionRegistry class
@@ -0,0 +1,132 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket refilled at a steady rate, safe to take from on many
+ * threads at once without locks or allocation.<p>
+ *
+ * The whole state is one number, the time at which the bucket would be
+ * full again (the "theoretical arrival time" of the generic cell rate
+ * algorithm).  Taking tokens moves that time forward by what they are
+ * worth; they can be taken as long as it stays within the burst of the
+ * present.  A take is a read and a compare-and-set.
+ */
+public final class TokenBucket
+{
+  //Instance variables **********************************************
+
+  /**
+   * Tokens added per second.
+   */
+  private final long rate;
+
+  /**
+   * How far ahead of now the full time may run: the burst in
+   * nanoseconds of refill.
+   */
+  private final long tolerance;
+
+  private final AtomicLong full;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a full bucket.
+   *
+   * @param rate Tokens added per second.
+   * @param burst The tokens the bucket holds.
+   */
+  public TokenBucket(long rate, long burst)
+  {
+    if (rate <= 0 || burst <= 0)
+    {
+      throw new IllegalArgumentException("invalid rate or burst");
+    }
+    this.rate = rate;
+    this.tolerance = nanos(burst);
+    this.full = new AtomicLong(System.nanoTime());
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Takes tokens if the bucket holds them.
+   *
+   * @param tokens The number of tokens.
+   * @return 0 if they were taken, otherwise how many nanoseconds until
+   *         the bucket will hold them; nothing is taken.
+   */
+  public long tryTake(long tokens)
+  {
+    long now = System.nanoTime();
+    long cost = nanos(tokens);
+    while (true)
+    {
+      long current = full.get();
+      long next = Math.max(current, now) + cost;
+      long wait = next - now - tolerance;
+      if (wait > 0)
+      {
+        return wait;
+      }
+      if (full.compareAndSet(current, next))
+      {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Returns how long until the bucket will hold tokens, without taking
+   * them.
+   *
+   * @param tokens The number of tokens.
+   * @return The nanoseconds to wait, 0 if the bucket holds them now.
+   */
+  public long waitFor(long tokens)
+  {
+    long now = System.nanoTime();
+    return Math.max(0, Math.max(full.get(), now) + nanos(tokens) - now - tolerance);
+  }
+
+  /**
+   * Takes tokens, borrowing against the refill if the bucket does not
+   * hold them.
+   *
+   * @param tokens The number of tokens.
+   * @return How many nanoseconds the caller should wait before using
+   *         them, 0 if none.
+   */
+  public long take(long tokens)
+  {
+    long now = System.nanoTime();
+    long cost = nanos(tokens);
+    while (true)
+    {
+      long current = full.get();
+      long next = Math.max(current, now) + cost;
+      if (full.compareAndSet(current, next))
+      {
+        return Math.max(0, next - now - tolerance);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the bucket is full, i.e. nobody took from it lately.
+   */
+  public boolean isFull()
+  {
+    return full.get() - System.nanoTime() <= 0;
+  }
+
+  /**
+   * Returns what a number of tokens is worth in nanoseconds of refill.
+   */
+  private long nanos(long tokens)
+  {
+    return tokens * 1000000000L / rate;
+  }
+}
+//End of TokenBucket class